@@ -181,10 +181,6 @@ public class ControlsFragment extends Fragment {
 //			myToast.show();
 		});
 
-		view.findViewById(R.id.testMatchingTimeButton).setOnClickListener(v->{
-			DP3T.testMatchingTimeButtonClicked(getContext());
-		});
-
 		Button refreshButton = view.findViewById(R.id.home_button_sync);
 		refreshButton.setOnClickListener(v -> resyncSdk());
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dpppt.android.sdk.backend.models.ApplicationInfo;
+import org.dpppt.android.sdk.internal.backend.DiscoveryRepository;
+import org.dpppt.android.sdk.internal.backend.models.ApplicationsList;
+import org.dpppt.android.sdk.internal.util.Json;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Loads the discovery from a {@link MockWebServer} and checks when the cached discovery is used and revalidated.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AppConfigManagerTest {
+
+	private static final String APP_ID = "org.dpppt.discovery.test";
+	private static final String BUCKET_BASE_URL = "https://bucket.example.org/";
+	private static final String ETAG = "\"discovery-1\"";
+	private static final String PREFS_NAME = "dp3t_sdk_preferences";
+	private static final String PREF_DISCOVERY_LOADED_AT = "discovery_loaded_at";
+	private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private Context context;
+	private AppConfigManager appConfigManager;
+	private SharedPreferences sharedPrefs;
+	private MockWebServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		appConfigManager = AppConfigManager.getInstance(context);
+		appConfigManager.clearPreferences();
+		sharedPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		server = new MockWebServer();
+		server.start();
+		appConfigManager.setDiscoveryBaseUrl(context, server.url("/").toString());
+		appConfigManager.setDevDiscoveryModeEnabled(false);
+		appConfigManager.setAppId(APP_ID);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		appConfigManager.setDiscoveryBaseUrl(context, DiscoveryRepository.DISCOVERY_BASE_URL);
+		appConfigManager.clearPreferences();
+	}
+
+	@Test
+	public void firstLoadBlocks() throws Exception {
+		server.enqueue(discoveryResponse());
+
+		appConfigManager.updateFromDiscovery();
+		assertEquals(BUCKET_BASE_URL, appConfigManager.getAppConfig().getBucketBaseUrl());
+		RecordedRequest request = server.takeRequest();
+		assertEquals("/discovery.json", request.getPath());
+		assertNull(request.getHeader("If-None-Match"));
+	}
+
+	@Test
+	public void cachedDiscoveryIsNotRequested() throws Exception {
+		server.enqueue(discoveryResponse());
+		appConfigManager.updateFromDiscovery();
+
+		appConfigManager.updateFromDiscovery();
+		appConfigManager.triggerLoad();
+		assertEquals(BUCKET_BASE_URL, appConfigManager.getAppConfig().getBucketBaseUrl());
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void notModifiedKeepsStaleDiscovery() throws Exception {
+		server.enqueue(discoveryResponse());
+		appConfigManager.updateFromDiscovery();
+		server.takeRequest();
+		sharedPrefs.edit().putLong(PREF_DISCOVERY_LOADED_AT, 0).commit();
+
+		server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", ETAG));
+		// the stale discovery is used while it is revalidated in the background
+		appConfigManager.updateFromDiscovery();
+		assertEquals(BUCKET_BASE_URL, appConfigManager.getAppConfig().getBucketBaseUrl());
+		RecordedRequest request = server.takeRequest(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		assertNotNull(request);
+		assertEquals(ETAG, request.getHeader("If-None-Match"));
+
+		awaitDiscoveryLoaded();
+		assertEquals(BUCKET_BASE_URL, appConfigManager.getAppConfig().getBucketBaseUrl());
+		assertEquals(2, server.getRequestCount());
+	}
+
+	private void awaitDiscoveryLoaded() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (sharedPrefs.getLong(PREF_DISCOVERY_LOADED_AT, 0) == 0) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("discovery not revalidated");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private static MockResponse discoveryResponse() {
+		ApplicationsList applicationsList = new ApplicationsList();
+		applicationsList.getApplications().add(new ApplicationInfo(APP_ID, "https://report1.example.org/",
+				"https://report2.example.org/", BUCKET_BASE_URL));
+		return new MockResponse()
+				.setHeader("Content-Type", "application/json")
+				.setHeader("ETag", ETAG)
+				// revalidated by the app, not by the shared HTTP cache
+				.setHeader("Cache-Control", "no-store")
+				.setBody(Json.toJson(applicationsList));
+	}
+
+}
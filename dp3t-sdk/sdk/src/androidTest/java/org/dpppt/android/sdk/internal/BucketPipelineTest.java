@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dpppt.android.sdk.internal.backend.ExposeeBucket;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class BucketPipelineTest {
+
+	private static final long FIRST_BATCH = 1588089600000L;
+	private static final int BATCH_COUNT = 10;
+	private static final int PREFETCH_DEPTH = 2;
+	private static final int PARALLELISM = 4;
+
+	@Test
+	public void consumesInOrderWithBoundedPrefetch() throws Exception {
+		AtomicInteger held = new AtomicInteger();
+		AtomicInteger maxHeld = new AtomicInteger();
+		BucketPipeline pipeline = new BucketPipeline(batchReleaseTime -> {
+			sleep(5);
+			int current = held.incrementAndGet();
+			maxHeld.accumulateAndGet(current, Math::max);
+			return ExposeeBucket.skipped(batchReleaseTime, 0);
+		}, PREFETCH_DEPTH, 1);
+
+		List<Long> consumed = new ArrayList<>();
+		pipeline.run(batches(), bucket -> {
+			consumed.add(bucket.getBatchReleaseTime());
+			sleep(20);
+			held.decrementAndGet();
+		});
+
+		assertEquals(batches(), consumed);
+		assertTrue("held " + maxHeld.get(), maxHeld.get() <= PREFETCH_DEPTH + 1);
+	}
+
+	@Test
+	public void fetchesInParallelAndConsumesInOrder() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		BucketPipeline pipeline = new BucketPipeline(batchReleaseTime -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			sleep(20);
+			running.decrementAndGet();
+			return ExposeeBucket.skipped(batchReleaseTime, 0);
+		}, 0, PARALLELISM);
+
+		List<Long> consumed = new ArrayList<>();
+		pipeline.run(batches(), bucket -> consumed.add(bucket.getBatchReleaseTime()));
+
+		assertEquals(batches(), consumed);
+		assertTrue("running " + maxRunning.get(), maxRunning.get() > 1 && maxRunning.get() <= PARALLELISM);
+	}
+
+	@Test
+	public void continuesAfterFailingBatch() throws Exception {
+		long failingBatch = FIRST_BATCH + 3 * BATCH_LENGTH;
+		BucketPipeline pipeline = new BucketPipeline(batchReleaseTime -> {
+			if (batchReleaseTime == failingBatch) {
+				throw new IOException("failed");
+			}
+			return ExposeeBucket.skipped(batchReleaseTime, 0);
+		}, PREFETCH_DEPTH, PARALLELISM);
+
+		List<Long> consumed = new ArrayList<>();
+		try {
+			pipeline.run(batches(), bucket -> consumed.add(bucket.getBatchReleaseTime()));
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertEquals(BATCH_COUNT - 1, consumed.size());
+			assertFalse(consumed.contains(failingBatch));
+		}
+	}
+
+	private static List<Long> batches() {
+		List<Long> batches = new ArrayList<>();
+		for (int i = 0; i < BATCH_COUNT; i++) {
+			batches.add(FIRST_BATCH + i * BATCH_LENGTH);
+		}
+		return batches;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
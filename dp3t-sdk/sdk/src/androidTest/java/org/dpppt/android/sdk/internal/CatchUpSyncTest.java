@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dpppt.android.sdk.internal.backend.BackendBucketRepository;
+import org.dpppt.android.sdk.internal.backend.MockBucketServer;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.dpppt.android.sdk.internal.matching.HashMatcher;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Catches up on four days of missed batches from a {@link MockBucketServer} with simulated latency.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CatchUpSyncTest {
+
+	private static final long FIRST_BATCH = 1588089600000L;
+	private static final int BATCH_COUNT = 48;
+	private static final int BUCKET_SIZE = 2000;
+	private static final int EXPOSED_BATCH = 10;
+	private static final long RESPONSE_DELAY_MILLIS = 50;
+	private static final int PARALLELISM = 4;
+	private static final long LATCH_TIMEOUT_SECONDS = 30;
+
+	private MockBucketServer server;
+	private ExposeeHashStore store;
+	private SortedHashIndex localHashes;
+	private List<Long> batches;
+
+	@Before
+	public void setUp() throws Exception {
+		Random random = new Random(9);
+		server = new MockBucketServer();
+		batches = new ArrayList<>();
+		List<BtLocHash> local = new ArrayList<>();
+		for (int i = 0; i < BATCH_COUNT; i++) {
+			long batchReleaseTime = FIRST_BATCH + i * BATCH_LENGTH;
+			List<BtLocHash> bucket = new ArrayList<>();
+			for (int j = 0; j < BUCKET_SIZE; j++) {
+				bucket.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+			}
+			if (i == EXPOSED_BATCH) {
+				local.add(bucket.get(0));
+			}
+			server.putBucket(batchReleaseTime, bucket);
+			batches.add(batchReleaseTime);
+		}
+		for (int i = 0; i < 1000; i++) {
+			local.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		localHashes = SortedHashIndex.fromHashes(local);
+		server.setResponseDelay(RESPONSE_DELAY_MILLIS);
+		server.start();
+		Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		store = new ExposeeHashStore(new File(context.getCacheDir(), "catch_up_test"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		store.clear();
+	}
+
+	@Test
+	public void catchUpFetchesInParallel() throws Exception {
+		assertEquals(1, catchUp(1));
+		assertEquals(PARALLELISM, catchUp(PARALLELISM));
+	}
+
+	@Test
+	public void missingBatchDoesNotStopOthers() throws Exception {
+		long missingBatch = batches.get(3);
+		server.removeBucket(missingBatch);
+		Map<Long, Integer> matches = new TreeMap<>();
+		try {
+			createPipeline(4).run(batches, bucket -> {
+				HashMatcher matcher = new HashMatcher(localHashes);
+				bucket.match(matcher);
+				matches.put(bucket.getBatchReleaseTime(), matcher.getMatchCount());
+			});
+			fail("expected StatusCodeException");
+		} catch (StatusCodeException e) {
+			assertEquals(BATCH_COUNT - 1, matches.size());
+			assertEquals(1, (int) matches.get(batches.get(EXPOSED_BATCH)));
+		}
+	}
+
+	/**
+	 * Catches up with the given number of fetchers. Every fetch waits until as many fetches as allowed are open at once,
+	 * so the catch up only finishes in time if the pipeline really fetches in parallel.
+	 *
+	 * @return the highest number of fetches that were open at once
+	 */
+	private int catchUp(int parallelism) throws Exception {
+		BucketPipeline.BucketFetcher download = createFetcher();
+		CountDownLatch allOpen = new CountDownLatch(parallelism);
+		AtomicInteger open = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		BucketPipeline.BucketFetcher fetcher = batchReleaseTime -> {
+			int current = open.incrementAndGet();
+			synchronized (peak) {
+				peak.set(Math.max(peak.get(), current));
+			}
+			try {
+				allOpen.countDown();
+				if (!allOpen.await(LATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					throw new IOException("fewer than " + parallelism + " fetches were open at once");
+				}
+				return download.fetch(batchReleaseTime);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				open.decrementAndGet();
+			}
+		};
+
+		Map<Long, Integer> matches = new TreeMap<>();
+		new BucketPipeline(fetcher, 2, parallelism).run(batches, bucket -> {
+			HashMatcher matcher = new HashMatcher(localHashes);
+			assertEquals(BUCKET_SIZE, bucket.match(matcher));
+			matches.put(bucket.getBatchReleaseTime(), matcher.getMatchCount());
+		});
+		assertEquals(BATCH_COUNT, matches.size());
+		assertEquals(1, (int) matches.get(batches.get(EXPOSED_BATCH)));
+		store.clear();
+		return peak.get();
+	}
+
+	private BucketPipeline createPipeline(int parallelism) {
+		return new BucketPipeline(createFetcher(), 2, parallelism);
+	}
+
+	private BucketPipeline.BucketFetcher createFetcher() {
+		Context context = InstrumentationRegistry.getInstrumentation().getContext();
+		BackendBucketRepository repository =
+				new BackendBucketRepository(context, server.getBaseUrl(), server.getPublicKey());
+		return batchReleaseTime -> repository.getExposeeBucket(batchReleaseTime, store);
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.gson.Gson;
+
+import org.dpppt.android.sdk.internal.backend.BackendReportRepository;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
+import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.database.Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.GzipSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Uploads a report in pages to a {@link MockWebServer} that fails in the middle of the upload.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExposeeUploaderTest {
+
+	private static final long KEY_DATE = 1588032000000L;
+	private static final int HASH_COUNT = 25;
+	private static final int HASHES_PER_PAGE = 10;
+
+	private Context context;
+	private AppConfigManager appConfigManager;
+	private Database database;
+	private MockWebServer server;
+	private List<BtLocHash> hashes;
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		appConfigManager = AppConfigManager.getInstance(context);
+		appConfigManager.clearPreferences();
+		database = new Database(context);
+		database.recreateTablesSynchronous();
+		server = new MockWebServer();
+		server.start();
+
+		Random random = new Random(22);
+		hashes = new ArrayList<>();
+		for (int i = 0; i < HASH_COUNT; i++) {
+			hashes.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		database.addBroadcastBtLocHashes(hashes, KEY_DATE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		appConfigManager.clearPreferences();
+		database.recreateTablesSynchronous();
+	}
+
+	@Test
+	public void resumesAfterLastAcceptedPage() throws Exception {
+		long firstPageEnd = database.getBroadcastBtLocHashPageEnd(0, HASHES_PER_PAGE);
+		server.enqueue(new MockResponse());
+		server.enqueue(new MockResponse().setResponseCode(503));
+		try {
+			createUploader().uploadSync(createRequest(), null);
+			fail("failed page not reported");
+		} catch (StatusCodeException e) {
+			assertEquals(503, e.getCode());
+		}
+		assertEquals(firstPageEnd, appConfigManager.getUploadedHashesUntilId(KEY_DATE));
+		assertEquals(hashes.subList(0, 10), takeUploadedHashes());
+		assertEquals(hashes.subList(10, 20), takeUploadedHashes());
+
+		server.enqueue(new MockResponse());
+		server.enqueue(new MockResponse());
+		createUploader().uploadSync(createRequest(), null);
+		// the accepted page is not sent again
+		assertEquals(hashes.subList(10, 20), takeUploadedHashes());
+		assertEquals(hashes.subList(20, HASH_COUNT), takeUploadedHashes());
+		assertEquals(4, server.getRequestCount());
+		assertEquals(0, appConfigManager.getUploadedHashesUntilId(KEY_DATE));
+	}
+
+	@Test
+	public void otherKeyStartsFromFirstPage() throws Exception {
+		appConfigManager.setUploadedHashesUntilId(KEY_DATE - 1, database.getBroadcastBtLocHashPageEnd(0, HASHES_PER_PAGE));
+		for (int i = 0; i < 3; i++) {
+			server.enqueue(new MockResponse());
+		}
+		createUploader().uploadSync(createRequest(), null);
+		assertEquals(hashes.subList(0, 10), takeUploadedHashes());
+		assertEquals(3, server.getRequestCount());
+	}
+
+	private ExposeeUploader createUploader() {
+		String baseUrl = server.url("/").toString();
+		return new ExposeeUploader(context, new BackendReportRepository(context, baseUrl, baseUrl), HASHES_PER_PAGE);
+	}
+
+	private static ExposeeRequest createRequest() {
+		return new ExposeeRequest("a2V5", null, KEY_DATE, null);
+	}
+
+	private List<BtLocHash> takeUploadedHashes() throws Exception {
+		RecordedRequest request = server.takeRequest();
+		assertEquals("/v1/exposed", request.getPath());
+		String json = Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+		ExposeeRequest decoded = new Gson().fromJson(json, ExposeeRequest.class);
+		assertEquals(KEY_DATE, decoded.getKeyDate());
+		return decoded.getHashes();
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.dpppt.android.sdk.internal.backend.HotspotShareBatch;
+import org.dpppt.android.sdk.internal.crypto.HotspotVectorBatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+@RunWith(Parameterized.class)
+public class HotspotSharingBenchmark {
+
+	private static final int VECTOR_LENGTH = 11;
+
+	@Parameterized.Parameters
+	public static Collection<Integer> data() {
+		return Arrays.asList(1000, 10000, 100000);
+	}
+
+	private int size;
+
+	public HotspotSharingBenchmark(int size) {
+		this.size = size;
+	}
+
+	@Rule
+	public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+	@Test
+	public void split_and_encode_hotspot_vectors() {
+		Random random = new Random(1);
+		HotspotVectorBatch batch = new HotspotVectorBatch(VECTOR_LENGTH);
+		int[] vector = new int[VECTOR_LENGTH];
+		for (int n = 0; n < size; n++) {
+			for (int i = 0; i < VECTOR_LENGTH; i++) {
+				vector[i] = random.nextInt(20);
+			}
+			batch.add(vector);
+		}
+		SecureRandom secureRandom = new SecureRandom();
+
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			HotspotShareBatch[] shares = batch.split(secureRandom);
+			shares[0].encode();
+			shares[1].encode();
+		}
+	}
+
+}
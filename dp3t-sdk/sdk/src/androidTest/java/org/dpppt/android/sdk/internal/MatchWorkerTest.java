@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.dpppt.android.sdk.internal.matching.HashBloomFilter;
+import org.dpppt.android.sdk.internal.matching.SortedHashFile;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class MatchWorkerTest {
+
+	private Context context;
+	private AppConfigManager appConfigManager;
+	private Database database;
+	private ExposeeHashStore store;
+	private Random random;
+
+	@Before
+	public void setUp() {
+		context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		appConfigManager = AppConfigManager.getInstance(context);
+		appConfigManager.clearPreferences();
+		database = new Database(context);
+		database.recreateTablesSynchronous();
+		store = new ExposeeHashStore(context);
+		store.clear();
+		random = new Random(12);
+	}
+
+	@After
+	public void tearDown() {
+		appConfigManager.clearPreferences();
+		database.recreateTablesSynchronous();
+		store.clear();
+	}
+
+	@Test
+	public void matchesLateHashesAgainstStoredBuckets() throws Exception {
+		long now = System.currentTimeMillis();
+		long batchReleaseTime = now - now % BATCH_LENGTH;
+		List<BtLocHash> bucket = randomHashes(1000);
+		stageBucket(batchReleaseTime - BATCH_LENGTH, bucket);
+		appConfigManager.setLastLoadedBatchReleaseTime(batchReleaseTime - BATCH_LENGTH);
+
+		long receivedTime = now - TimeUnit.HOURS.toMillis(3);
+		database.addReceivedBtLocHashes(randomHashes(100), receivedTime, 0);
+		MatchWorker.matchBuckets(context);
+		assertEquals(0, database.getMatchedReceivedBtLocHashCount());
+		assertEquals(database.getLastReceivedBtLocHashId(), appConfigManager.getLastMatchedReceivedHashId());
+
+		// received after the bucket was matched
+		database.addReceivedBtLocHashes(Arrays.asList(bucket.get(3), randomHashes(1).get(0)), receivedTime, 0);
+		MatchWorker.matchBuckets(context);
+		assertEquals(1, database.getMatchedReceivedBtLocHashCount());
+		assertEquals(database.getLastReceivedBtLocHashId(), appConfigManager.getLastMatchedReceivedHashId());
+	}
+
+	@Test
+	public void keepsLateHashesWhileFilterOfSkippedBucketIsPositive() throws Exception {
+		long now = System.currentTimeMillis();
+		long batchReleaseTime = now - now % BATCH_LENGTH;
+		List<BtLocHash> bucket = randomHashes(1000);
+		HashBloomFilter filter =
+				HashBloomFilter.wrap(ByteBuffer.wrap(HashBloomFilter.create(SortedHashIndex.fromHashes(bucket), 0.01)));
+		store.addFilter(batchReleaseTime - BATCH_LENGTH, filter);
+		appConfigManager.setLastLoadedBatchReleaseTime(batchReleaseTime - BATCH_LENGTH);
+
+		long receivedTime = now - TimeUnit.HOURS.toMillis(3);
+		database.addReceivedBtLocHashes(Arrays.asList(bucket.get(5)), receivedTime, 0);
+		MatchWorker.matchBuckets(context);
+		assertEquals(0, appConfigManager.getLastMatchedReceivedHashId());
+
+		// once a sync fetched the bucket, the late hash is matched against it
+		stageBucket(batchReleaseTime - BATCH_LENGTH, bucket);
+		MatchWorker.matchBuckets(context);
+		assertEquals(1, database.getMatchedReceivedBtLocHashCount());
+		assertEquals(database.getLastReceivedBtLocHashId(), appConfigManager.getLastMatchedReceivedHashId());
+	}
+
+	private void stageBucket(long batchReleaseTime, List<BtLocHash> hashes) throws Exception {
+		SortedHashFile.Writer writer = store.createWriter(batchReleaseTime, hashes.size());
+		for (BtLocHash hash : hashes) {
+			writer.accept(hash.getHigh(), hash.getLow());
+		}
+		store.add(batchReleaseTime, writer, null);
+	}
+
+	private List<BtLocHash> randomHashes(int count) {
+		List<BtLocHash> hashes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			hashes.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		return hashes;
+	}
+
+}
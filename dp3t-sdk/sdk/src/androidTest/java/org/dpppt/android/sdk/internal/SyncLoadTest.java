@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.dpppt.android.sdk.internal.backend.DiscoveryRepository;
+import org.dpppt.android.sdk.internal.backend.MockBackend;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the real sync, from the discovery to the committed match, against a {@link MockBackend} serving a signed bucket of
+ * the given number of hashes, and reports its latency, allocations and peak heap. It needs no network, so matching
+ * performance can be tracked on CI. The bucket sizes can be set with the comma separated instrumentation argument
+ * {@value #ARGUMENT_HASH_COUNTS}. Results are logged and sent as instrumentation status, for {@code am instrument -r}.
+ * Allocations are counted for the whole process, including the local servers, which only copy cached responses.
+ */
+@RunWith(Parameterized.class)
+public class SyncLoadTest {
+
+	private static final String TAG = "SyncLoadTest";
+
+	private static final String ARGUMENT_HASH_COUNTS = "syncLoadHashCounts";
+	private static final String DEFAULT_HASH_COUNTS = "10000,100000,500000,1000000";
+	private static final int STATUS_IN_PROGRESS = 2;
+
+	private static final int LOCAL_HASH_COUNT = 5000;
+	private static final int EXPOSED_HASH_COUNT = 10;
+	private static final int ITERATIONS = 5;
+	private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 5;
+
+	@Parameterized.Parameters
+	public static Collection<Integer> data() {
+		String hashCounts = InstrumentationRegistry.getArguments().getString(ARGUMENT_HASH_COUNTS, DEFAULT_HASH_COUNTS);
+		List<Integer> data = new ArrayList<>();
+		for (String hashCount : hashCounts.split(",")) {
+			data.add(Integer.parseInt(hashCount.trim()));
+		}
+		return data;
+	}
+
+	private int size;
+
+	private Context context;
+	private AppConfigManager appConfigManager;
+	private Database database;
+	private ExposeeHashStore store;
+	private MockBackend backend;
+	private long batchReleaseTime;
+
+	public SyncLoadTest(int size) {
+		this.size = size;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		appConfigManager = AppConfigManager.getInstance(context);
+		appConfigManager.clearPreferences();
+		database = new Database(context);
+		database.recreateTablesSynchronous();
+		store = new ExposeeHashStore(context);
+		store.clear();
+
+		// the batch a sync starts with if none was loaded before
+		long now = System.currentTimeMillis();
+		batchReleaseTime = now - now % BATCH_LENGTH;
+
+		Random random = new Random(size);
+		List<BtLocHash> bucket = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			bucket.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		List<BtLocHash> local = new ArrayList<>(LOCAL_HASH_COUNT);
+		for (int i = 0; i < EXPOSED_HASH_COUNT; i++) {
+			local.add(bucket.get(i * (size / EXPOSED_HASH_COUNT)));
+		}
+		while (local.size() < LOCAL_HASH_COUNT) {
+			local.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		database.addReceivedBtLocHashes(local, batchReleaseTime - BATCH_LENGTH, 0);
+
+		backend = new MockBackend("org.dpppt.sync.load.test");
+		backend.getBucketServer().putBucket(batchReleaseTime, bucket);
+		// in case a run crosses the next batch release
+		backend.getBucketServer().putBucket(batchReleaseTime + BATCH_LENGTH, new ArrayList<>());
+		backend.getBucketServer().setResponseCacheEnabled(true);
+		backend.start();
+
+		appConfigManager.setAppId(backend.getAppId());
+		appConfigManager.setDiscoveryBaseUrl(context, backend.getDiscoveryBaseUrl());
+		SyncWorker.setBucketSignaturePublicKey(backend.getBucketServer().getPublicKey());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		backend.shutdown();
+		SyncWorker.setBucketSignaturePublicKey(null);
+		appConfigManager.setDiscoveryBaseUrl(context, DiscoveryRepository.DISCOVERY_BASE_URL);
+		appConfigManager.clearPreferences();
+		store.clear();
+		database.recreateTablesSynchronous();
+	}
+
+	@Test
+	public void syncBucket() throws Exception {
+		// the first run also loads the discovery and warms up, it is not counted
+		long[] latencies = new long[ITERATIONS];
+		long totalAllocated = 0;
+		long peakHeap = 0;
+		for (int i = -1; i < ITERATIONS; i++) {
+			appConfigManager.setLastLoadedBatchReleaseTime(batchReleaseTime - BATCH_LENGTH);
+			store.clear();
+
+			Runtime.getRuntime().gc();
+			long heapBefore = getUsedHeap();
+			HeapSampler heapSampler = new HeapSampler();
+			heapSampler.start();
+			long allocatedBefore = getAllocatedBytes();
+			long start = System.nanoTime();
+
+			SyncWorker.doSync(context);
+
+			long latency = System.nanoTime() - start;
+			long allocated = getAllocatedBytes() - allocatedBefore;
+			long heap = heapSampler.finish() - heapBefore;
+
+			assertTrue(appConfigManager.getLastLoadedBatchReleaseTime() >= batchReleaseTime);
+			assertEquals(EXPOSED_HASH_COUNT, database.getMatchedReceivedBtLocHashCount());
+			if (i >= 0) {
+				latencies[i] = latency;
+				totalAllocated += allocated;
+				peakHeap = Math.max(peakHeap, heap);
+			}
+		}
+		assertEquals(1, backend.getDiscoveryRequestCount());
+
+		Arrays.sort(latencies);
+		double medianLatencyMillis = latencies[ITERATIONS / 2] / 1e6;
+		long meanAllocated = totalAllocated / ITERATIONS;
+		Log.d(TAG, String.format("Syncing %d exposee hashes against %d local hashes took %.1f ms (median), " +
+						"allocated %d KB and raised the heap by at most %d KB.", size, LOCAL_HASH_COUNT, medianLatencyMillis,
+				meanAllocated / 1024, peakHeap / 1024));
+
+		Bundle status = new Bundle();
+		status.putInt("sync_load_hashes", size);
+		status.putDouble("sync_load_latency_median_ms", medianLatencyMillis);
+		status.putLong("sync_load_allocated_bytes", meanAllocated);
+		status.putLong("sync_load_peak_heap_bytes", peakHeap);
+		InstrumentationRegistry.getInstrumentation().sendStatus(STATUS_IN_PROGRESS, status);
+	}
+
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long getAllocatedBytes() {
+		return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+	}
+
+	/**
+	 * Polls the used heap, a collection between two samples can hide a short peak.
+	 */
+	private static class HeapSampler extends Thread {
+
+		private volatile boolean running = true;
+		private long peak;
+
+		@Override
+		public void run() {
+			while (running) {
+				peak = Math.max(peak, getUsedHeap());
+				try {
+					Thread.sleep(HEAP_SAMPLE_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		long finish() throws InterruptedException {
+			running = false;
+			join();
+			return Math.max(peak, getUsedHeap());
+		}
+
+	}
+
+}
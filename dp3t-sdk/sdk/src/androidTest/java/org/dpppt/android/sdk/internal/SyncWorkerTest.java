@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.dpppt.android.sdk.backend.models.ApplicationInfo;
+import org.dpppt.android.sdk.internal.backend.MockBucketServer;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.database.models.SyncedBatch;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link SyncWorker#doSync} against a {@link MockBucketServer}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SyncWorkerTest {
+
+	private static final String PATH_EXPOSED_HASHES = "/v1/exposedHashes/";
+	private static final int BATCH_COUNT = 6;
+	private static final int BUCKET_SIZE = 500;
+
+	private Context context;
+	private AppConfigManager appConfigManager;
+	private Database database;
+	private ExposeeHashStore store;
+	private MockBucketServer server;
+	private Random random;
+	private List<Long> batches;
+	private int takenRequests;
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		appConfigManager = AppConfigManager.getInstance(context);
+		appConfigManager.clearPreferences();
+		database = new Database(context);
+		database.recreateTablesSynchronous();
+		store = new ExposeeHashStore(context);
+		store.clear();
+		random = new Random(15);
+
+		server = new MockBucketServer();
+		long now = System.currentTimeMillis();
+		long currentBatch = now - now % BATCH_LENGTH;
+		batches = new ArrayList<>();
+		for (int i = BATCH_COUNT - 1; i >= 0; i--) {
+			long batchReleaseTime = currentBatch - i * BATCH_LENGTH;
+			server.putBucket(batchReleaseTime, randomHashes(BUCKET_SIZE));
+			batches.add(batchReleaseTime);
+		}
+		// in case the test crosses the next batch release
+		server.putBucket(currentBatch + BATCH_LENGTH, new ArrayList<>());
+		server.start();
+		takenRequests = 0;
+
+		appConfigManager.setManualApplicationInfo(new ApplicationInfo("org.dpppt.sync.test", server.getBaseUrl(),
+				server.getBaseUrl(), server.getBaseUrl()));
+		appConfigManager.setLastLoadedBatchReleaseTime(batches.get(0) - BATCH_LENGTH);
+		SyncWorker.setBucketSignaturePublicKey(server.getPublicKey());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		MatchWorker.stopMatchWorker(context);
+		server.shutdown();
+		SyncWorker.setBucketSignaturePublicKey(null);
+		appConfigManager.clearPreferences();
+		database.recreateTablesSynchronous();
+		store.clear();
+	}
+
+	@Test
+	public void retryOnlyDownloadsMissingBatch() throws Exception {
+		long missingBatch = batches.get(2);
+		List<BtLocHash> missingBucket = randomHashes(BUCKET_SIZE);
+		server.removeBucket(missingBatch);
+		try {
+			SyncWorker.doSync(context);
+			fail("missing batch not reported");
+		} catch (StatusCodeException e) {
+			assertEquals(404, e.getCode());
+		}
+		// nothing is committed, but every other batch is checkpointed as downloaded
+		assertEquals(batches.get(0) - BATCH_LENGTH, appConfigManager.getLastLoadedBatchReleaseTime());
+		assertEquals(new HashSet<>(batches), takeRequestedBatches());
+		List<SyncedBatch> checkpoints = database.getSyncedBatches(batches.get(0));
+		assertEquals(BATCH_COUNT - 1, checkpoints.size());
+		for (SyncedBatch checkpoint : checkpoints) {
+			assertFalse(checkpoint.isMatched());
+			assertTrue(checkpoint.getBatchReleaseTime() != missingBatch);
+		}
+
+		server.putBucket(missingBatch, missingBucket);
+		SyncWorker.doSync(context);
+		Set<Long> retried = takeRequestedBatches();
+		assertTrue(retried.contains(missingBatch));
+		for (long batchReleaseTime : batches) {
+			if (batchReleaseTime != missingBatch) {
+				assertFalse(retried.contains(batchReleaseTime));
+			}
+		}
+		assertTrue(appConfigManager.getLastLoadedBatchReleaseTime() >= batches.get(BATCH_COUNT - 1));
+		assertTrue(database.getSyncedBatches(batches.get(0)).isEmpty());
+	}
+
+	@Test
+	public void stagedBatchesAreMatchedLater() throws Exception {
+		long exposedBatch = addExposedHash();
+
+		SyncWorker.doSync(context, false);
+		// only staged, nothing is matched or committed
+		for (long batchReleaseTime : batches) {
+			assertTrue(store.contains(batchReleaseTime));
+		}
+		assertEquals(batches.get(0) - BATCH_LENGTH, appConfigManager.getLastLoadedBatchReleaseTime());
+		assertEquals(0, database.getMatchedReceivedBtLocHashCount());
+		for (SyncedBatch checkpoint : database.getSyncedBatches(batches.get(0))) {
+			assertFalse(checkpoint.isMatched());
+		}
+
+		MatchWorker.matchBuckets(context);
+		assertEquals(1, database.getMatchedReceivedBtLocHashCount());
+		assertTrue(appConfigManager.getLastLoadedBatchReleaseTime() >= batches.get(BATCH_COUNT - 1));
+		assertTrue(database.getSyncedBatches(batches.get(0)).isEmpty());
+		assertTrue(store.contains(exposedBatch));
+		assertEquals(BATCH_COUNT, takeRequestedBatches().size());
+	}
+
+	@Test
+	public void stagingEnqueuesMatchWorker() throws Exception {
+		addExposedHash();
+
+		SyncWorker.stageBuckets(context);
+		List<WorkInfo> workInfos = WorkManager.getInstance(context).getWorkInfosByTag(MatchWorker.WORK_TAG).get();
+		assertFalse(workInfos.isEmpty());
+
+		// the enqueued worker may already be running, both commit under the same lock
+		MatchWorker.matchBuckets(context);
+		assertEquals(1, database.getMatchedReceivedBtLocHashCount());
+		assertTrue(appConfigManager.getLastLoadedBatchReleaseTime() >= batches.get(BATCH_COUNT - 1));
+	}
+
+	@Test
+	public void syncIsDelayedUntilAfterNextRelease() {
+		long batchReleaseTime = batches.get(0);
+		long now = batchReleaseTime + TimeUnit.MINUTES.toMillis(10);
+		assertEquals(BATCH_LENGTH - TimeUnit.MINUTES.toMillis(10), SyncWorker.getSyncDelay(now, 0));
+		assertEquals(BATCH_LENGTH - TimeUnit.MINUTES.toMillis(10) + SyncWorker.MAX_SYNC_JITTER / 2,
+				SyncWorker.getSyncDelay(now, 0.5));
+		long maxDelay = SyncWorker.getSyncDelay(now, Math.nextDown(1.0));
+		assertTrue(maxDelay < BATCH_LENGTH - TimeUnit.MINUTES.toMillis(10) + SyncWorker.MAX_SYNC_JITTER);
+		// right at a release the sync waits for the next one
+		assertEquals(BATCH_LENGTH, SyncWorker.getSyncDelay(batchReleaseTime, 0));
+		assertEquals(1, SyncWorker.getSyncDelay(batchReleaseTime + BATCH_LENGTH - 1, 0));
+	}
+
+	@Test
+	public void consecutiveReleasesAlternateWorkNames() {
+		String first = SyncWorker.getAlignedWorkName(batches.get(0));
+		String second = SyncWorker.getAlignedWorkName(batches.get(1));
+		assertFalse(first.equals(second));
+		assertEquals(first, SyncWorker.getAlignedWorkName(batches.get(2)));
+		assertEquals(second, SyncWorker.getAlignedWorkName(batches.get(3)));
+	}
+
+	/**
+	 * Records a local hash that is contained in one of the buckets.
+	 *
+	 * @return the batch of the bucket
+	 */
+	private long addExposedHash() {
+		long exposedBatch = batches.get(3);
+		List<BtLocHash> bucket = randomHashes(BUCKET_SIZE);
+		server.putBucket(exposedBatch, bucket);
+		database.addReceivedBtLocHashes(Collections.singletonList(bucket.get(7)),
+				exposedBatch - TimeUnit.HOURS.toMillis(1), 0);
+		return exposedBatch;
+	}
+
+	private Set<Long> takeRequestedBatches() throws InterruptedException {
+		Set<Long> requested = new HashSet<>();
+		while (takenRequests < server.getRequestCount()) {
+			String path = server.takeRequest().getPath();
+			takenRequests++;
+			if (path != null && path.startsWith(PATH_EXPOSED_HASHES)) {
+				requested.add(Long.parseLong(path.substring(PATH_EXPOSED_HASHES.length()).split("/")[0]));
+			}
+		}
+		return requested;
+	}
+
+	private List<BtLocHash> randomHashes(int count) {
+		List<BtLocHash> hashes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			hashes.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		return hashes;
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+import org.dpppt.android.sdk.backend.models.ApplicationInfo;
+import org.dpppt.android.sdk.internal.backend.MockHotspotServers;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
+import org.dpppt.android.sdk.internal.crypto.HotspotVectorBatch;
+import org.dpppt.android.sdk.internal.database.Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.dpppt.android.sdk.internal.UploadWorker.TYPE_HOTSPOT_SHARES;
+import static org.dpppt.android.sdk.internal.backend.BackendReportRepository.SERVER_1;
+import static org.dpppt.android.sdk.internal.backend.BackendReportRepository.SERVER_2;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Uploads hotspot shares to a {@link MockHotspotServers} stand-in and checks that the servers' sums reconstruct the
+ * aggregate of the vectors.
+ */
+@RunWith(AndroidJUnit4.class)
+public class UploadWorkerTest {
+
+	private static final String TAG = "UploadWorkerTest";
+
+	private static final int VECTOR_LENGTH = 11;
+
+	private Context context;
+	private Database database;
+	private MockHotspotServers servers;
+	private Random random;
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		database = new Database(context);
+		database.removePendingUploads(SERVER_1, TYPE_HOTSPOT_SHARES, Long.MAX_VALUE);
+		database.removePendingUploads(SERVER_2, TYPE_HOTSPOT_SHARES, Long.MAX_VALUE);
+		servers = new MockHotspotServers();
+		servers.start();
+		AppConfigManager.getInstance(context).setManualApplicationInfo(new ApplicationInfo("org.dpppt.upload.test",
+				servers.getBaseUrl1(), servers.getBaseUrl2(), servers.getBaseUrl1()));
+		random = new Random(3);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		servers.shutdown();
+		AppConfigManager.getInstance(context).clearPreferences();
+	}
+
+	@Test
+	public void joinsPendingBatchesPerServer() throws Exception {
+		int[] aggregate = new int[VECTOR_LENGTH];
+		for (int i = 0; i < 20; i++) {
+			addRandomVectors(1, aggregate);
+		}
+
+		UploadWorker.uploadPending(context);
+
+		assertEquals(1, servers.getRequestCount1());
+		assertEquals(1, servers.getRequestCount2());
+		assertEquals(20, servers.getVectorCount());
+		assertArrayEquals(aggregate, servers.getAggregate());
+		assertEquals(0, database.getPendingUploads(SERVER_1, TYPE_HOTSPOT_SHARES).size());
+		assertEquals(0, database.getPendingUploads(SERVER_2, TYPE_HOTSPOT_SHARES).size());
+	}
+
+	@Test
+	public void keepsSharesOfFailedServer() throws Exception {
+		int[] aggregate = new int[VECTOR_LENGTH];
+		addRandomVectors(10, aggregate);
+		servers.setServer2Available(false);
+
+		try {
+			UploadWorker.uploadPending(context);
+			fail("failed upload not reported");
+		} catch (StatusCodeException e) {
+			assertEquals(503, e.getCode());
+		}
+		assertEquals(0, database.getPendingUploads(SERVER_1, TYPE_HOTSPOT_SHARES).size());
+		assertEquals(1, database.getPendingUploads(SERVER_2, TYPE_HOTSPOT_SHARES).size());
+
+		servers.setServer2Available(true);
+		UploadWorker.uploadPending(context);
+		assertEquals(1, servers.getRequestCount1());
+		assertEquals(2, servers.getRequestCount2());
+		assertArrayEquals(aggregate, servers.getAggregate());
+	}
+
+	@Test
+	public void dropsBothSharesOfRejectedBatch() throws Exception {
+		addRandomVectors(10, new int[VECTOR_LENGTH]);
+		servers.setServer1Rejecting(true);
+
+		UploadWorker.uploadPending(context);
+
+		assertEquals(1, servers.getRequestCount1());
+		assertEquals(0, servers.getRequestCount2());
+		assertEquals(0, database.getPendingUploads(SERVER_1, TYPE_HOTSPOT_SHARES).size());
+		assertEquals(0, database.getPendingUploads(SERVER_2, TYPE_HOTSPOT_SHARES).size());
+	}
+
+	@Test
+	public void uploadsThousandsOfVectors() throws Exception {
+		int[] aggregate = new int[VECTOR_LENGTH];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			addRandomVectors(1000, aggregate);
+		}
+		long stored = System.currentTimeMillis();
+		UploadWorker.uploadPending(context);
+		long uploaded = System.currentTimeMillis();
+		Log.d(TAG, String.format("Splitting and storing 10000 vectors took %d ms, uploading them %d ms.", stored - start,
+				uploaded - stored));
+
+		assertEquals(1, servers.getRequestCount1());
+		assertEquals(1, servers.getRequestCount2());
+		assertEquals(10000, servers.getVectorCount());
+		assertArrayEquals(aggregate, servers.getAggregate());
+	}
+
+	private void addRandomVectors(int count, int[] aggregate) {
+		HotspotVectorBatch batch = new HotspotVectorBatch(VECTOR_LENGTH);
+		for (int n = 0; n < count; n++) {
+			int[] vector = new int[VECTOR_LENGTH];
+			for (int i = 0; i < VECTOR_LENGTH; i++) {
+				vector[i] = random.nextInt(20);
+				aggregate[i] += vector[i];
+			}
+			batch.add(vector);
+		}
+		UploadWorker.storeHotspotShares(database, batch, new SecureRandom());
+	}
+
+}
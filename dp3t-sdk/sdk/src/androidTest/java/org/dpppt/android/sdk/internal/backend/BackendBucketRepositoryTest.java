@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.dpppt.android.sdk.backend.SignatureException;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.dpppt.android.sdk.internal.matching.HashMatcher;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
+import org.dpppt.android.sdk.internal.matching.TimePartitionedHashIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class BackendBucketRepositoryTest {
+
+	private static final long BATCH_RELEASE_TIME = 1588089600000L;
+	private static final int BUCKET_SIZE = 10000;
+
+	private MockBucketServer server;
+	private ExposeeHashStore store;
+	private List<BtLocHash> local;
+
+	@Before
+	public void setUp() throws Exception {
+		Random random = new Random(4);
+		List<BtLocHash> exposed = new ArrayList<>();
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			exposed.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		local = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			local.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		local.add(exposed.get(17));
+		local.add(exposed.get(BUCKET_SIZE - 1));
+
+		server = new MockBucketServer();
+		server.putBucket(BATCH_RELEASE_TIME, exposed);
+		server.start();
+		store = new ExposeeHashStore(new File(
+				InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "bucket_test"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		store.clear();
+	}
+
+	@Test
+	public void matchProtobufBucket() throws Exception {
+		assertMatches();
+	}
+
+	@Test
+	public void matchDeltaEncodedBucket() throws Exception {
+		server.setDeltaEncodingEnabled(true);
+		assertMatches();
+	}
+
+	@Test
+	public void matchJsonBucket() throws Exception {
+		server.setProtobufEnabled(false);
+		assertMatches();
+	}
+
+	@Test
+	public void filterSkipsBucketWithoutPositives() throws Exception {
+		SortedHashIndex localHashes = SortedHashIndex.fromHashes(local.subList(0, 100));
+		ExposeeBucket bucket = createRepository().getExposeeBucketWithFilter(BATCH_RELEASE_TIME, localHashes, null, store);
+		assertTrue(bucket.isSkipped());
+		assertEquals(BUCKET_SIZE, bucket.getCount());
+		assertEquals(1, server.getRequestCount());
+		assertFalse(store.contains(BATCH_RELEASE_TIME));
+
+		// the filter is kept for local hashes recorded later
+		assertTrue(store.hasFilters());
+		assertTrue(store.getFilterPositives(localHashes).isEmpty());
+		assertEquals(Arrays.asList(BATCH_RELEASE_TIME), store.getFilterPositives(SortedHashIndex.fromHashes(local)));
+
+		// fetching the bucket for a positive replaces the filter
+		createRepository().getExposeeBucket(BATCH_RELEASE_TIME, store);
+		assertTrue(store.contains(BATCH_RELEASE_TIME));
+		assertFalse(store.hasFilters());
+	}
+
+	@Test
+	public void filterConfirmsPositivesWithBucket() throws Exception {
+		SortedHashIndex localHashes = SortedHashIndex.fromHashes(local);
+		ExposeeBucket bucket = createRepository().getExposeeBucketWithFilter(BATCH_RELEASE_TIME, localHashes, null, store);
+		assertFalse(bucket.isSkipped());
+		HashMatcher matcher = new HashMatcher(localHashes);
+		assertEquals(BUCKET_SIZE, bucket.match(matcher));
+		assertEquals(2, matcher.getMatchCount());
+		assertEquals(2, server.getRequestCount());
+	}
+
+	@Test
+	public void filterFallsBackWithoutBackendSupport() throws Exception {
+		server.setFilterEnabled(false);
+		SortedHashIndex localHashes = SortedHashIndex.fromHashes(local);
+		ExposeeBucket bucket = createRepository().getExposeeBucketWithFilter(BATCH_RELEASE_TIME, localHashes, null, store);
+		HashMatcher matcher = new HashMatcher(localHashes);
+		bucket.match(matcher);
+		assertEquals(2, matcher.getMatchCount());
+	}
+
+	@Test
+	public void downloadsOnlyShardsOfVisitedRegions() throws Exception {
+		long batchReleaseTime = BATCH_RELEASE_TIME + BATCH_LENGTH;
+		Random random = new Random(7);
+		List<BtLocHash> visitedShard = null;
+		for (int i = 0; i < 20; i++) {
+			List<BtLocHash> shard = new ArrayList<>();
+			for (int j = 0; j < 500; j++) {
+				shard.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+			}
+			server.putShard(batchReleaseTime, "9q8" + (char) ('a' + i), shard);
+			if (i == 3) {
+				visitedShard = shard;
+			}
+		}
+		List<BtLocHash> localHashes = new ArrayList<>(local);
+		localHashes.add(visitedShard.get(5));
+		List<String> regions = Arrays.asList("9q8d", "u0m0");
+
+		ExposeeHashStore store = new ExposeeHashStore(new File(
+				InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "shard_test"));
+		try {
+			HashMatcher matcher = new HashMatcher(SortedHashIndex.fromHashes(localHashes));
+			assertEquals(500, createRepository().getExposeeBucket(batchReleaseTime, regions, store).match(matcher));
+			assertEquals(1, matcher.getMatchCount());
+
+			server.setShardingEnabled(false);
+			matcher = new HashMatcher(SortedHashIndex.fromHashes(localHashes));
+			assertEquals(20 * 500, createRepository().getExposeeBucket(batchReleaseTime, regions, store).match(matcher));
+			assertEquals(1, matcher.getMatchCount());
+		} finally {
+			store.clear();
+		}
+	}
+
+	@Test
+	public void addsShardsOfNewlyVisitedRegions() throws Exception {
+		long batchReleaseTime = BATCH_RELEASE_TIME + BATCH_LENGTH;
+		Random random = new Random(8);
+		List<List<BtLocHash>> shards = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			List<BtLocHash> shard = new ArrayList<>();
+			for (int j = 0; j < 500; j++) {
+				shard.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+			}
+			server.putShard(batchReleaseTime, "9q8" + (char) ('a' + i), shard);
+			shards.add(shard);
+		}
+		BackendBucketRepository repository = createRepository();
+		repository.getExposeeBucket(batchReleaseTime, Collections.singletonList("9q8a"), store);
+		server.takeRequest();
+
+		// hashes recorded in regions that were visited after the download
+		SortedHashIndex lateHashes = SortedHashIndex.fromHashes(Arrays.asList(shards.get(1).get(5), shards.get(2).get(9)));
+		HashMatcher matcher = new HashMatcher(lateHashes);
+		store.match(matcher);
+		assertEquals(0, matcher.getMatchCount());
+
+		List<String> regions = Arrays.asList("9q8a", "9q8b");
+		assertEquals(Collections.singletonList(batchReleaseTime), store.getBatchesMissingRegions(regions));
+		repository.addMissingShards(batchReleaseTime, regions, store);
+		assertTrue(server.takeRequest().getPath().endsWith("/" + batchReleaseTime + "/9q8b"));
+		assertTrue(store.getBatchesMissingRegions(regions).isEmpty());
+		matcher = new HashMatcher(lateHashes);
+		store.match(matcher);
+		assertEquals(1, matcher.getMatchCount());
+
+		// nothing is downloaded once all shards are stored
+		int requestCount = server.getRequestCount();
+		repository.addMissingShards(batchReleaseTime, regions, store);
+		assertEquals(requestCount, server.getRequestCount());
+
+		// without shards the whole bucket replaces the stored ones
+		server.setShardingEnabled(false);
+		repository.addMissingShards(batchReleaseTime, Arrays.asList("9q8a", "9q8b", "9q8c"), store);
+		assertNull(store.getRegions(batchReleaseTime));
+		matcher = new HashMatcher(lateHashes);
+		store.match(matcher);
+		assertEquals(2, matcher.getMatchCount());
+	}
+
+	@Test
+	public void matchesWithinTimePartitions() throws Exception {
+		long batchReleaseTime = BATCH_RELEASE_TIME + 2 * BATCH_LENGTH;
+		long partitionLength = TimePartitionedHashIndex.PARTITION_LENGTH;
+		Random random = new Random(8);
+		List<List<BtLocHash>> partitions = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			List<BtLocHash> partition = new ArrayList<>();
+			for (int j = 0; j < 1000; j++) {
+				partition.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+			}
+			server.putPartition(batchReleaseTime, BATCH_RELEASE_TIME + i * partitionLength, partition);
+			partitions.add(partition);
+		}
+		SortedHashIndex.Builder builder = new SortedHashIndex.Builder(0);
+		for (BtLocHash hash : local) {
+			builder.add(hash.getHigh(), hash.getLow(), BATCH_RELEASE_TIME + random.nextInt(6) * partitionLength);
+		}
+		BtLocHash exposed = partitions.get(2).get(10);
+		builder.add(exposed.getHigh(), exposed.getLow(), BATCH_RELEASE_TIME + 2 * partitionLength + 60 * 1000L);
+		// recorded in another partition, so it cannot be the same hash
+		BtLocHash collision = partitions.get(3).get(20);
+		builder.add(collision.getHigh(), collision.getLow(), BATCH_RELEASE_TIME + 4 * partitionLength);
+		SortedHashIndex localHashes = builder.build();
+
+		ExposeeHashStore store = new ExposeeHashStore(new File(
+				InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "partition_test"));
+		try {
+			ExposeeBucket bucket = createRepository().getExposeeBucket(batchReleaseTime, store);
+			assertTrue(bucket.isTimePartitioned());
+
+			HashMatcher matcher = new HashMatcher(localHashes);
+			assertEquals(6000, bucket.match(matcher, TimePartitionedHashIndex.fromIndex(localHashes)));
+			assertEquals(1, matcher.getMatchCount());
+
+			HashMatcher unpartitionedMatcher = new HashMatcher(localHashes);
+			bucket.match(unpartitionedMatcher);
+			assertEquals(2, unpartitionedMatcher.getMatchCount());
+		} finally {
+			store.clear();
+		}
+	}
+
+	@Test
+	public void reusesStoredBucketIfNotModified() throws Exception {
+		server.setETagsEnabled(true);
+		BackendBucketRepository repository = createRepository();
+		ExposeeHashStore store = new ExposeeHashStore(new File(
+				InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "etag_test"));
+		try {
+			ExposeeBucket downloaded = repository.getExposeeBucket(BATCH_RELEASE_TIME, store);
+			ExposeeBucket reused = repository.getExposeeBucket(BATCH_RELEASE_TIME, store);
+			assertNull(server.takeRequest().getHeader("If-None-Match"));
+			assertNotNull(server.takeRequest().getHeader("If-None-Match"));
+			assertArrayEquals(downloaded.getContentHash(), reused.getContentHash());
+			HashMatcher matcher = new HashMatcher(SortedHashIndex.fromHashes(local));
+			assertEquals(BUCKET_SIZE, reused.match(matcher));
+			assertEquals(2, matcher.getMatchCount());
+
+			server.putBucket(BATCH_RELEASE_TIME, local);
+			matcher = new HashMatcher(SortedHashIndex.fromHashes(local));
+			assertEquals(local.size(), repository.getExposeeBucket(BATCH_RELEASE_TIME, store).match(matcher));
+			assertEquals(local.size(), matcher.getMatchCount());
+		} finally {
+			store.clear();
+		}
+	}
+
+	@Test
+	public void rejectsTamperedBucket() throws Exception {
+		server.setTamperingEnabled(true);
+		try {
+			assertMatches();
+			fail("tampered bucket accepted");
+		} catch (SignatureException e) {
+			assertFalse(store.contains(BATCH_RELEASE_TIME));
+		}
+
+		server.setProtobufEnabled(false);
+		try {
+			assertMatches();
+			fail("tampered bucket accepted");
+		} catch (SignatureException e) {
+			assertFalse(store.contains(BATCH_RELEASE_TIME));
+		}
+	}
+
+	private BackendBucketRepository createRepository() {
+		Context context = InstrumentationRegistry.getInstrumentation().getContext();
+		return new BackendBucketRepository(context, server.getBaseUrl(), server.getPublicKey());
+	}
+
+	private void assertMatches() throws Exception {
+		ExposeeBucket bucket = createRepository().getExposeeBucket(BATCH_RELEASE_TIME, store);
+		HashMatcher matcher = new HashMatcher(SortedHashIndex.fromHashes(local));
+		assertEquals(BUCKET_SIZE, bucket.match(matcher));
+		assertEquals(2, matcher.getMatchCount());
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import android.database.MatrixCursor;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.google.gson.Gson;
+
+import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class ExposeeHashesRequestBodyTest {
+
+	private static final long KEY_DATE = 1588032000000L;
+
+	@Test
+	public void writesRequestWithHashesFromCursor() throws Exception {
+		Random random = new Random(6);
+		ArrayList<BtLocHash> hashes = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			hashes.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		ExposeeRequest request = new ExposeeRequest("a2V5", null, KEY_DATE, null);
+		ExposeeHashesRequestBody body = new ExposeeHashesRequestBody(request, () -> {
+			MatrixCursor cursor = new MatrixCursor(new String[] { "hash" });
+			for (BtLocHash hash : hashes) {
+				cursor.addRow(new Object[] { hash.toBytes() });
+			}
+			return cursor;
+		});
+
+		// written twice like a retried request
+		body.writeTo(new Buffer());
+		Buffer compressed = new Buffer();
+		body.writeTo(compressed);
+
+		String json = Okio.buffer(new GzipSource(compressed)).readUtf8();
+		ExposeeRequest decoded = new Gson().fromJson(json, ExposeeRequest.class);
+		assertEquals("a2V5", decoded.getKey());
+		assertEquals(KEY_DATE, decoded.getKeyDate());
+		assertNull(decoded.getAuthData());
+		assertEquals(hashes, decoded.getHashes());
+	}
+
+	@Test
+	public void writesRequestWithoutHashes() throws Exception {
+		ExposeeRequest request = new ExposeeRequest("a2V5", null, KEY_DATE, null);
+		Buffer compressed = new Buffer();
+		new ExposeeHashesRequestBody(request, () -> new MatrixCursor(new String[] { "hash" })).writeTo(compressed);
+
+		ExposeeRequest decoded =
+				new Gson().fromJson(Okio.buffer(new GzipSource(compressed)).readUtf8(), ExposeeRequest.class);
+		assertEquals(0, decoded.getHashes().size());
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import org.dpppt.android.sdk.backend.models.ApplicationInfo;
+import org.dpppt.android.sdk.internal.backend.models.ApplicationsList;
+import org.dpppt.android.sdk.internal.util.Json;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Local stand-in for the whole backend of an app: the discovery, a {@link MockBucketServer} and the
+ * {@link MockHotspotServers} as report servers. Point the {@link org.dpppt.android.sdk.internal.AppConfigManager} to
+ * {@link #getDiscoveryBaseUrl()} and the SDK finds the other servers through the discovery, without any network access.
+ */
+public class MockBackend {
+
+	private static final String PATH_DISCOVERY = "/discovery.json";
+	private static final String PATH_DISCOVERY_DEV = "/discovery_dev.json";
+
+	private final String appId;
+	private final MockWebServer discoveryServer = new MockWebServer();
+	private final MockBucketServer bucketServer = new MockBucketServer();
+	private final MockHotspotServers reportServers = new MockHotspotServers();
+
+	public MockBackend(@NonNull String appId) {
+		this.appId = appId;
+		discoveryServer.setDispatcher(new DiscoveryDispatcher());
+	}
+
+	public void start() throws IOException {
+		discoveryServer.start();
+		bucketServer.start();
+		reportServers.start();
+	}
+
+	public void shutdown() throws IOException {
+		discoveryServer.shutdown();
+		bucketServer.shutdown();
+		reportServers.shutdown();
+	}
+
+	public String getAppId() {
+		return appId;
+	}
+
+	public String getDiscoveryBaseUrl() {
+		return discoveryServer.url("/").toString();
+	}
+
+	public int getDiscoveryRequestCount() {
+		return discoveryServer.getRequestCount();
+	}
+
+	public MockBucketServer getBucketServer() {
+		return bucketServer;
+	}
+
+	public MockHotspotServers getReportServers() {
+		return reportServers;
+	}
+
+	public ApplicationInfo getApplicationInfo() {
+		return new ApplicationInfo(appId, reportServers.getBaseUrl1(), reportServers.getBaseUrl2(),
+				bucketServer.getBaseUrl());
+	}
+
+	private class DiscoveryDispatcher extends Dispatcher {
+
+		@NonNull
+		@Override
+		public MockResponse dispatch(@NonNull RecordedRequest request) {
+			String path = request.getPath();
+			if (!PATH_DISCOVERY.equals(path) && !PATH_DISCOVERY_DEV.equals(path)) {
+				return new MockResponse().setResponseCode(404);
+			}
+			ApplicationsList applicationsList = new ApplicationsList();
+			applicationsList.getApplications().add(getApplicationInfo());
+			return new MockResponse()
+					.setHeader("Content-Type", "application/json")
+					.setBody(Json.toJson(applicationsList));
+		}
+
+	}
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+
+import org.dpppt.android.sdk.internal.backend.proto.Exposed;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.matching.DeltaHashCodec;
+import org.dpppt.android.sdk.internal.matching.HashBloomFilter;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
+import org.dpppt.android.sdk.internal.util.Base64Util;
+import org.dpppt.android.sdk.internal.util.Json;
+import org.dpppt.android.sdk.util.SignatureUtil;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Local stand-in for the bucket backend. Serves signed exposee hash buckets registered with {@link #putBucket} or, split
+ * by geohash region, with {@link #putShard}.
+ */
+public class MockBucketServer {
+
+	private static final String PATH_EXPOSED_HASHES = "/v1/exposedHashes/";
+	private static final String PATH_EXPOSED_HASH_FILTER = "/v1/exposedHashFilter/";
+	private static final double FILTER_FALSE_POSITIVE_PROBABILITY = 0.001;
+
+	private final MockWebServer server = new MockWebServer();
+	private final KeyPair keyPair = Keys.keyPairFor(SignatureAlgorithm.ES256);
+	private final Map<Long, List<BtLocHash>> buckets = new ConcurrentHashMap<>();
+	private final Map<Long, Map<String, List<BtLocHash>>> shards = new ConcurrentHashMap<>();
+	private final Map<Long, Map<Long, List<BtLocHash>>> partitions = new ConcurrentHashMap<>();
+	private final Map<String, MockResponse> responseCache = new ConcurrentHashMap<>();
+
+	private volatile boolean protobufEnabled = true;
+	private volatile boolean deltaEncodingEnabled = false;
+	private volatile boolean filterEnabled = true;
+	private volatile boolean shardingEnabled = true;
+	private volatile boolean eTagsEnabled = false;
+	private volatile boolean tamperingEnabled = false;
+	private volatile long responseDelayMillis = 0;
+	private volatile boolean responseCacheEnabled = false;
+
+	public MockBucketServer() {
+		server.setDispatcher(new BucketDispatcher());
+	}
+
+	public void start() throws IOException {
+		server.start();
+	}
+
+	public void shutdown() throws IOException {
+		server.shutdown();
+	}
+
+	public String getBaseUrl() {
+		return server.url("/").toString();
+	}
+
+	public PublicKey getPublicKey() {
+		return keyPair.getPublic();
+	}
+
+	public int getRequestCount() {
+		return server.getRequestCount();
+	}
+
+	public RecordedRequest takeRequest() throws InterruptedException {
+		return server.takeRequest();
+	}
+
+	public void putBucket(long batchReleaseTime, @NonNull List<BtLocHash> hashes) {
+		buckets.put(batchReleaseTime, hashes);
+		responseCache.clear();
+	}
+
+	/**
+	 * Registers the hashes uploaded from a geohash region. They are also part of the whole bucket of the batch.
+	 */
+	public synchronized void putShard(long batchReleaseTime, @NonNull String region, @NonNull List<BtLocHash> hashes) {
+		Map<String, List<BtLocHash>> batchShards = shards.get(batchReleaseTime);
+		if (batchShards == null) {
+			batchShards = new ConcurrentHashMap<>();
+			shards.put(batchReleaseTime, batchShards);
+		}
+		batchShards.put(region, hashes);
+		List<BtLocHash> bucket = new ArrayList<>();
+		for (List<BtLocHash> shard : batchShards.values()) {
+			bucket.addAll(shard);
+		}
+		buckets.put(batchReleaseTime, bucket);
+		responseCache.clear();
+	}
+
+	/**
+	 * Registers the hashes of a batch computed for the given rounded timestamp. They are sent grouped by time to clients
+	 * announcing support for it and are also part of the whole bucket of the batch.
+	 */
+	public synchronized void putPartition(long batchReleaseTime, long partitionTime, @NonNull List<BtLocHash> hashes) {
+		Map<Long, List<BtLocHash>> batchPartitions = partitions.get(batchReleaseTime);
+		if (batchPartitions == null) {
+			batchPartitions = new ConcurrentHashMap<>();
+			partitions.put(batchReleaseTime, batchPartitions);
+		}
+		batchPartitions.put(partitionTime, hashes);
+		List<BtLocHash> bucket = new ArrayList<>();
+		for (List<BtLocHash> partition : batchPartitions.values()) {
+			bucket.addAll(partition);
+		}
+		buckets.put(batchReleaseTime, bucket);
+		responseCache.clear();
+	}
+
+	public void removeBucket(long batchReleaseTime) {
+		buckets.remove(batchReleaseTime);
+		shards.remove(batchReleaseTime);
+		partitions.remove(batchReleaseTime);
+		responseCache.clear();
+	}
+
+	/**
+	 * Simulates a backend that only knows the JSON representation.
+	 */
+	public void setProtobufEnabled(boolean protobufEnabled) {
+		this.protobufEnabled = protobufEnabled;
+	}
+
+	/**
+	 * Sends protobuf buckets sorted and delta encoded to clients that announce support for it.
+	 */
+	public void setDeltaEncodingEnabled(boolean deltaEncodingEnabled) {
+		this.deltaEncodingEnabled = deltaEncodingEnabled;
+	}
+
+	/**
+	 * Simulates a backend without {@link org.dpppt.android.sdk.internal.matching.HashBloomFilter} support.
+	 */
+	public void setFilterEnabled(boolean filterEnabled) {
+		this.filterEnabled = filterEnabled;
+	}
+
+	/**
+	 * Simulates a backend that only serves whole buckets.
+	 */
+	public void setShardingEnabled(boolean shardingEnabled) {
+		this.shardingEnabled = shardingEnabled;
+	}
+
+	/**
+	 * Sends buckets with an ETag and answers conditional requests for unmodified buckets with 304.
+	 */
+	public void setETagsEnabled(boolean eTagsEnabled) {
+		this.eTagsEnabled = eTagsEnabled;
+	}
+
+	/**
+	 * Signs a modified copy of every body, so that the signature does not match the content that is sent.
+	 */
+	public void setTamperingEnabled(boolean tamperingEnabled) {
+		this.tamperingEnabled = tamperingEnabled;
+	}
+
+	/**
+	 * Delays every response to simulate network latency.
+	 */
+	public void setResponseDelay(long responseDelayMillis) {
+		this.responseDelayMillis = responseDelayMillis;
+	}
+
+	/**
+	 * Encodes and signs every bucket only once and answers equal requests with the same response, so that serving large
+	 * buckets barely loads the device in load tests. Changing the buckets clears the cache, changing other settings does
+	 * not.
+	 */
+	public void setResponseCacheEnabled(boolean responseCacheEnabled) {
+		this.responseCacheEnabled = responseCacheEnabled;
+		responseCache.clear();
+	}
+
+	public static byte[] packHashes(List<BtLocHash> hashes) {
+		byte[] packed = new byte[hashes.size() * BtLocHash.HASH_LENGTH];
+		for (int i = 0; i < hashes.size(); i++) {
+			hashes.get(i).writeTo(packed, i * BtLocHash.HASH_LENGTH);
+		}
+		return packed;
+	}
+
+	protected MockResponse signedResponse(byte[] body, String contentType) {
+		byte[] contentHash;
+		try {
+			byte[] signedBody = body;
+			if (tamperingEnabled && body.length > 0) {
+				signedBody = body.clone();
+				signedBody[signedBody.length - 1] ^= 1;
+			}
+			contentHash = MessageDigest.getInstance(SignatureUtil.HASH_ALGO).digest(signedBody);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		String jws = Jwts.builder()
+				.setIssuer("dp3t")
+				.claim("content-hash", Base64Util.toBase64(contentHash))
+				.claim("hash-alg", "sha-256")
+				.signWith(keyPair.getPrivate())
+				.compact();
+		return new MockResponse()
+				.setResponseCode(200)
+				.setHeader("Content-Type", contentType)
+				.setHeader(SignatureUtil.HTTP_HEADER_JWS, jws)
+				.setHeadersDelay(responseDelayMillis, TimeUnit.MILLISECONDS)
+				.setBody(new Buffer().write(body));
+	}
+
+	private MockResponse bucketResponse(RecordedRequest request, long batchReleaseTime, List<BtLocHash> hashes,
+			Map<Long, List<BtLocHash>> batchPartitions) {
+		String accept = request.getHeader("Accept");
+		String hashEncoding = request.getHeader("Accept-Hash-Encoding");
+		if (protobufEnabled && accept != null && accept.contains("application/x-protobuf")) {
+			Exposed.ProtoExposedHashList.Builder hashList = Exposed.ProtoExposedHashList.newBuilder()
+					.setBatchReleaseTime(batchReleaseTime);
+			if (batchPartitions != null && hashEncoding != null && hashEncoding.contains("time-partitioned")) {
+				for (Map.Entry<Long, List<BtLocHash>> partition : batchPartitions.entrySet()) {
+					hashList.addPartitions(Exposed.ProtoHashPartition.newBuilder()
+							.setTime(partition.getKey())
+							.setHashes(ByteString.copyFrom(packHashes(partition.getValue()))));
+				}
+			} else if (deltaEncodingEnabled && hashEncoding != null && hashEncoding.contains("delta-varint")) {
+				hashList.setDeltaHashes(ByteString.copyFrom(DeltaHashCodec.encode(SortedHashIndex.fromHashes(hashes))));
+			} else {
+				hashList.setHashes(ByteString.copyFrom(packHashes(hashes)));
+			}
+			return conditionalResponse(request, hashList.build().toByteArray(), "application/x-protobuf");
+		}
+		return conditionalResponse(request, Json.toJson(hashes).getBytes(), "application/json");
+	}
+
+	private MockResponse conditionalResponse(RecordedRequest request, byte[] body, String contentType) {
+		MockResponse response = signedResponse(body, contentType);
+		if (!eTagsEnabled) {
+			return response;
+		}
+		String eTag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+		if (eTag.equals(request.getHeader("If-None-Match"))) {
+			return new MockResponse()
+					.setResponseCode(304)
+					.setHeader("ETag", eTag)
+					.setHeader(SignatureUtil.HTTP_HEADER_JWS, response.getHeaders().get(SignatureUtil.HTTP_HEADER_JWS));
+		}
+		return response.setHeader("ETag", eTag);
+	}
+
+	private class BucketDispatcher extends Dispatcher {
+
+		@NonNull
+		@Override
+		public MockResponse dispatch(@NonNull RecordedRequest request) {
+			if (!responseCacheEnabled) {
+				return createResponse(request);
+			}
+			String key = request.getPath() + "\n" + request.getHeader("Accept") + "\n" +
+					request.getHeader("Accept-Hash-Encoding") + "\n" + request.getHeader("If-None-Match");
+			MockResponse response = responseCache.get(key);
+			if (response == null) {
+				// the body is copied whenever the response is written, so it can be sent again
+				response = createResponse(request);
+				responseCache.put(key, response);
+			}
+			return response;
+		}
+
+		private MockResponse createResponse(RecordedRequest request) {
+			String path = request.getPath();
+			if (filterEnabled && path != null && path.startsWith(PATH_EXPOSED_HASH_FILTER)) {
+				long batchReleaseTime = Long.parseLong(path.substring(PATH_EXPOSED_HASH_FILTER.length()));
+				List<BtLocHash> hashes = buckets.get(batchReleaseTime);
+				if (hashes == null) {
+					return new MockResponse().setResponseCode(404);
+				}
+				byte[] filter = HashBloomFilter.create(SortedHashIndex.fromHashes(hashes), FILTER_FALSE_POSITIVE_PROBABILITY);
+				return signedResponse(filter, "application/x-dp3t-bloom-filter");
+			}
+			if (path != null && path.startsWith(PATH_EXPOSED_HASHES) && path.indexOf('/', PATH_EXPOSED_HASHES.length()) >= 0) {
+				String[] segments = path.substring(PATH_EXPOSED_HASHES.length()).split("/");
+				long batchReleaseTime = Long.parseLong(segments[0]);
+				if (!shardingEnabled || !buckets.containsKey(batchReleaseTime)) {
+					return new MockResponse().setResponseCode(404);
+				}
+				Map<String, List<BtLocHash>> batchShards = shards.get(batchReleaseTime);
+				List<BtLocHash> hashes = new ArrayList<>();
+				for (String region : segments[1].split(",")) {
+					if (batchShards != null && batchShards.containsKey(region)) {
+						hashes.addAll(batchShards.get(region));
+					}
+				}
+				return bucketResponse(request, batchReleaseTime, hashes, null);
+			}
+			if (path != null && path.startsWith(PATH_EXPOSED_HASHES)) {
+				long batchReleaseTime = Long.parseLong(path.substring(PATH_EXPOSED_HASHES.length()));
+				List<BtLocHash> hashes = buckets.get(batchReleaseTime);
+				if (hashes == null) {
+					return new MockResponse().setResponseCode(404);
+				}
+				return bucketResponse(request, batchReleaseTime, hashes, partitions.get(batchReleaseTime));
+			}
+			return new MockResponse().setResponseCode(404);
+		}
+
+	}
+
+}
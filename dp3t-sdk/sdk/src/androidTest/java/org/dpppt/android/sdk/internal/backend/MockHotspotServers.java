@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Local stand-in for the two report servers. Each server only sums up the {@link HotspotShareBatch}es it receives, the
+ * aggregate of the hotspot vectors is the sum of both servers' sums. Reports are accepted and counted.
+ */
+public class MockHotspotServers {
+
+	private static final String PATH_ADD_HOTSPOT = "/v1/addHotspot";
+	private static final String PATH_EXPOSED = "/v1/exposed";
+
+	private final ShareServer server1 = new ShareServer();
+	private final ShareServer server2 = new ShareServer();
+
+	public void start() throws IOException {
+		server1.server.start();
+		server2.server.start();
+	}
+
+	public void shutdown() throws IOException {
+		server1.server.shutdown();
+		server2.server.shutdown();
+	}
+
+	public String getBaseUrl1() {
+		return server1.server.url("/").toString();
+	}
+
+	public String getBaseUrl2() {
+		return server2.server.url("/").toString();
+	}
+
+	public int getRequestCount1() {
+		return server1.server.getRequestCount();
+	}
+
+	public int getRequestCount2() {
+		return server2.server.getRequestCount();
+	}
+
+	/**
+	 * @return the number of reports received by the given server
+	 */
+	public synchronized int getReportCount(int server) {
+		return server == BackendReportRepository.SERVER_1 ? server1.reportCount : server2.reportCount;
+	}
+
+	/**
+	 * @return the number of vectors whose shares reached both servers
+	 */
+	public synchronized int getVectorCount() {
+		return Math.min(server1.vectorCount, server2.vectorCount);
+	}
+
+	/**
+	 * Reconstructs the sum of all vectors from the sums of both servers.
+	 */
+	public synchronized int[] getAggregate() {
+		if (server1.sum == null || server2.sum == null) {
+			return null;
+		}
+		int[] aggregate = new int[server1.sum.length];
+		for (int i = 0; i < aggregate.length; i++) {
+			aggregate[i] = server1.sum[i] + server2.sum[i];
+		}
+		return aggregate;
+	}
+
+	/**
+	 * Lets the second server answer with 503 to simulate an outage.
+	 */
+	public void setServer2Available(boolean available) {
+		server2.available = available;
+	}
+
+	/**
+	 * Lets the first server reject hotspot shares with 400.
+	 */
+	public void setServer1Rejecting(boolean rejecting) {
+		server1.rejecting = rejecting;
+	}
+
+	private class ShareServer extends Dispatcher {
+
+		private final MockWebServer server = new MockWebServer();
+		private volatile boolean available = true;
+		private volatile boolean rejecting;
+		private int[] sum;
+		private int vectorCount;
+		private int reportCount;
+
+		ShareServer() {
+			server.setDispatcher(this);
+		}
+
+		@NonNull
+		@Override
+		public MockResponse dispatch(@NonNull RecordedRequest request) {
+			if (!available) {
+				return new MockResponse().setResponseCode(503);
+			}
+			if (PATH_EXPOSED.equals(request.getPath()) && "POST".equals(request.getMethod())) {
+				synchronized (MockHotspotServers.this) {
+					reportCount++;
+				}
+				return new MockResponse();
+			}
+			if (rejecting || !PATH_ADD_HOTSPOT.equals(request.getPath()) ||
+					!HotspotShareBatch.CONTENT_TYPE.toString().equals(request.getHeader("Content-Type"))) {
+				return new MockResponse().setResponseCode(400);
+			}
+			HotspotShareBatch batch;
+			try {
+				batch = HotspotShareBatch.decode(request.getBody().readByteArray());
+			} catch (IllegalArgumentException e) {
+				return new MockResponse().setResponseCode(400);
+			}
+			synchronized (MockHotspotServers.this) {
+				if (sum == null) {
+					sum = new int[batch.getVectorLength()];
+				}
+				for (int vector = 0; vector < batch.getCount(); vector++) {
+					for (int i = 0; i < sum.length; i++) {
+						sum[i] += batch.getShare(vector, i);
+					}
+				}
+				vectorCount += batch.getCount();
+			}
+			return new MockResponse();
+		}
+
+	}
+
+}
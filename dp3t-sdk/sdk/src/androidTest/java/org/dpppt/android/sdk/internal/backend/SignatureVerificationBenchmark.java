@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.dpppt.android.sdk.backend.SignatureException;
+import org.dpppt.android.sdk.backend.SignatureVerificationInterceptor;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.matching.HashMatcher;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
+import org.dpppt.android.sdk.util.SignatureUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares verifying the signature of multi-MB buckets while they are decoded to buffering the whole body to hash it
+ * before decoding, as the interceptor used to do.
+ */
+@RunWith(Parameterized.class)
+public class SignatureVerificationBenchmark {
+
+	private static final String TAG = "SignatureVerification";
+	private static final long BATCH_RELEASE_TIME = 1588089600000L;
+
+	@Parameterized.Parameters
+	public static Collection<Integer> data() {
+		return Arrays.asList(100000, 500000, 1000000);
+	}
+
+	@Rule
+	public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+	private final int bucketSize;
+	private MockBucketServer server;
+	private HashMatcher matcher;
+
+	public SignatureVerificationBenchmark(int bucketSize) {
+		this.bucketSize = bucketSize;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		Random random = new Random(5);
+		List<BtLocHash> exposed = new ArrayList<>();
+		for (int i = 0; i < bucketSize; i++) {
+			exposed.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		List<BtLocHash> local = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			local.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		matcher = new HashMatcher(SortedHashIndex.fromHashes(local));
+
+		server = new MockBucketServer();
+		server.putBucket(BATCH_RELEASE_TIME, exposed);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+	}
+
+	@Test
+	public void streaming_verification() throws IOException {
+		benchmark(new SignatureVerificationInterceptor(server.getPublicKey()), "streaming");
+	}
+
+	@Test
+	public void buffered_verification() throws IOException {
+		benchmark(new BufferedVerificationInterceptor(server.getPublicKey()), "buffered");
+	}
+
+	private void benchmark(Interceptor verificationInterceptor, String name) throws IOException {
+		OkHttpClient client = new OkHttpClient.Builder()
+				.addInterceptor(verificationInterceptor)
+				.build();
+		Request request = new Request.Builder()
+				.url(server.getBaseUrl() + "v1/exposedHashes/" + BATCH_RELEASE_TIME)
+				.header("Accept", "application/x-protobuf")
+				.build();
+
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			Runtime.getRuntime().gc();
+			long start = System.currentTimeMillis();
+			long contentLength;
+			try (Response response = client.newCall(request).execute(); ResponseBody body = response.body()) {
+				contentLength = body.contentLength();
+				assertEquals(bucketSize, ExposeeBucket.read(body.contentType(), body.byteStream(), matcher));
+			}
+			long duration = System.currentTimeMillis() - start;
+			Log.d(TAG, String.format("Reading %d hashes (%.1f MB) with %s verification took %d ms.", bucketSize,
+					contentLength / (1024.0 * 1024.0), name, duration));
+		}
+	}
+
+	/**
+	 * The former verification, which hashes a copy of the whole body before it is passed on.
+	 */
+	private static class BufferedVerificationInterceptor implements Interceptor {
+
+		private static final long PEEK_MEMORY_LIMIT = 64 * 1024 * 1024L;
+
+		private final PublicKey publicKey;
+
+		BufferedVerificationInterceptor(PublicKey publicKey) {
+			this.publicKey = publicKey;
+		}
+
+		@NonNull
+		@Override
+		public Response intercept(@NonNull Chain chain) throws IOException {
+			Response response = chain.proceed(chain.request());
+			byte[] signedContentHash =
+					SignatureUtil.getVerifiedContentHash(response.header(SignatureUtil.HTTP_HEADER_JWS), publicKey);
+			byte[] body = response.peekBody(PEEK_MEMORY_LIMIT).bytes();
+			try {
+				if (!Arrays.equals(MessageDigest.getInstance(SignatureUtil.HASH_ALGO).digest(body), signedContentHash)) {
+					throw new SignatureException("Signature mismatch");
+				}
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			return response;
+		}
+
+	}
+
+}
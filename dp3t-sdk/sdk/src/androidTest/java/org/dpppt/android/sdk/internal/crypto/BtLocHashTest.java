@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.crypto;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.util.Arrays;
+
+import org.dpppt.android.sdk.internal.util.Json;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class BtLocHashTest {
+
+	@Test
+	public void testBytesRoundTrip() {
+		byte[] data = new byte[BtLocHash.HASH_LENGTH];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (0xF0 + 3 * i);
+		}
+		BtLocHash hash = BtLocHash.fromBytes(data);
+		assertArrayEquals(data, hash.toBytes());
+		assertEquals("F0F3F6F9FCFF0205080B", hash.toHex());
+	}
+
+	@Test
+	public void testHexRoundTrip() {
+		BtLocHash hash = BtLocHash.fromHex("0123456789abcdefABCD");
+		assertEquals("0123456789ABCDEFABCD", hash.toHex());
+		assertEquals(hash, BtLocHash.fromHex(hash.toHex()));
+	}
+
+	@Test
+	public void testUnsignedOrder() {
+		BtLocHash small = BtLocHash.fromHex("7FFFFFFFFFFFFFFFFFFF");
+		BtLocHash large = BtLocHash.fromHex("80000000000000000000");
+		BtLocHash largeLow = BtLocHash.fromHex("8000000000000000FFFF");
+		assertTrue(small.compareTo(large) < 0);
+		assertTrue(large.compareTo(largeLow) < 0);
+	}
+
+	@Test
+	public void testJsonIsBase16() {
+		BtLocHash hash = BtLocHash.fromHex("F0F3F6F9FCFF0205080B");
+		assertEquals("[\"F0F3F6F9FCFF0205080B\"]", Json.toJson(Arrays.asList(hash)));
+	}
+
+}
@@ -14,14 +14,22 @@ import android.content.Context;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
 import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.database.ExposureEngine;
+import org.dpppt.android.sdk.internal.database.models.DeviceLocation;
 import org.dpppt.android.sdk.internal.database.models.Handshake;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
 import org.dpppt.android.sdk.internal.util.DayDate;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import static org.dpppt.android.sdk.internal.util.Base64Util.fromBase64;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
@@ -175,6 +183,39 @@ public class ContactTests {
 		assertTrue(database.getExposureDays().size() == 2);
 	}
 
+	@Test
+	public void testExposureFromMatchedHashes() {
+		Context context = InstrumentationRegistry.getInstrumentation().getContext();
+		CryptoModule module = CryptoModule.getInstance(context);
+		module.reset();
+		module.init();
+
+		Database database = new Database(context);
+		database.recreateTablesSynchronous();
+
+		byte[] sk0 = module.getCurrentSK(new DayDate());
+		EphId closeContact = module.createEphIds(sk0, true).get(5);
+		EphId distantContact = module.createEphIds(sk0, true).get(6);
+		for (int offset = -30; offset < -15; offset++) {
+			long time = System.currentTimeMillis() - DAY + offset * MINUTE;
+			DeviceLocation location = new DeviceLocation(time, 47.3769, 8.5417);
+			database.addHandshake(context, new Handshake(0, time, closeContact, -21, -70, "", "", 0, location));
+			database.addHandshake(context, new Handshake(0, time, distantContact, -21, -100, "", "", 0, location));
+		}
+
+		SortedHashIndex receivedHashes = database.getReceivedBtLocHashIndex(0, 0, database.getLastReceivedBtLocHashId());
+		List<BtLocHash> matchedHashes = new ArrayList<>();
+		for (int i = 0; i < receivedHashes.size(); i++) {
+			matchedHashes.add(receivedHashes.get(i));
+		}
+
+		ExposureEngine exposureEngine = new ExposureEngine(context);
+		assertTrue(exposureEngine.addMatchedHashes(matchedHashes));
+		assertFalse(exposureEngine.addMatchedHashes(matchedHashes));
+		assertEquals(1, database.getExposureDays().size());
+		assertEquals(new DayDate(System.currentTimeMillis() - DAY - 30 * MINUTE),
+				database.getExposureDays().get(0).getExposedDate());
+	}
 
 	private void waitForDatabase(Database database) throws InterruptedException {
 		final Object syncObject = new Object();
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class DeltaHashCodecTest {
+
+	@Test
+	public void testReadReturnsEncodedHashes() throws IOException {
+		Random random = new Random(5);
+		List<BtLocHash> hashes = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			hashes.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		hashes.add(hashes.get(0));
+		hashes.add(new BtLocHash(Long.MIN_VALUE, Short.MIN_VALUE));
+		hashes.add(new BtLocHash(Long.MAX_VALUE, Short.MAX_VALUE));
+		hashes.add(new BtLocHash(0L, (short) 0));
+		SortedHashIndex index = SortedHashIndex.fromHashes(hashes);
+
+		List<BtLocHash> decoded = read(DeltaHashCodec.encode(index), index.size());
+
+		assertEquals(index.size(), decoded.size());
+		for (int i = 0; i < index.size(); i++) {
+			assertEquals(index.get(i), decoded.get(i));
+		}
+	}
+
+	@Test
+	public void testReadEmpty() throws IOException {
+		SortedHashIndex index = SortedHashIndex.fromHashes(new ArrayList<>());
+		assertEquals(0, read(DeltaHashCodec.encode(index), 0).size());
+	}
+
+	@Test
+	public void testReadTruncatedRecord() throws IOException {
+		List<BtLocHash> hashes = Arrays.asList(new BtLocHash(1L << 50, (short) 1), new BtLocHash(1L << 51, (short) 2));
+		byte[] encoded = DeltaHashCodec.encode(SortedHashIndex.fromHashes(hashes));
+		try {
+			read(Arrays.copyOf(encoded, encoded.length - 1), 2);
+			fail("truncated record not detected");
+		} catch (InvalidProtocolBufferException e) {
+			// expected
+		}
+	}
+
+	private static List<BtLocHash> read(byte[] encoded, int expectedCount) throws IOException {
+		List<BtLocHash> decoded = new ArrayList<>();
+		CodedInputStream input = CodedInputStream.newInstance(encoded);
+		int limit = input.pushLimit(encoded.length);
+		assertEquals(expectedCount, DeltaHashCodec.read(input, (high, low) -> decoded.add(new BtLocHash(high, low))));
+		input.popLimit(limit);
+		return decoded;
+	}
+
+}
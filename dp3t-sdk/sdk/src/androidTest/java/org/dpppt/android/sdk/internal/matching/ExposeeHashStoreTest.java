@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class ExposeeHashStoreTest {
+
+	private static final long FIRST_BATCH = 1588089600000L;
+
+	private File directory;
+	private ExposeeHashStore store;
+
+	@Before
+	public void setUp() {
+		directory = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "store_test");
+		store = new ExposeeHashStore(directory);
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void sortsRunsAndSurvivesReopen() throws Exception {
+		Random random = new Random(4);
+		List<BtLocHash> hashes = randomHashes(random, 2 * SortedHashFile.RUN_LENGTH + 1000);
+		hashes.add(new BtLocHash(0, (short) 0));
+		SortedHashFile.Writer writer = store.createWriter(FIRST_BATCH, 10);
+		for (BtLocHash hash : hashes) {
+			writer.accept(hash.getHigh(), hash.getLow());
+		}
+		// duplicates within and across runs are stored once
+		writer.accept(hashes.get(0).getHigh(), hashes.get(0).getLow());
+		writer.accept(hashes.get(hashes.size() - 1).getHigh(), hashes.get(hashes.size() - 1).getLow());
+		store.add(FIRST_BATCH, writer, null);
+
+		File batchFile = new File(directory, FIRST_BATCH + ".tbl");
+		int fences = (hashes.size() + SortedHashFile.BLOCK_LENGTH - 1) / SortedHashFile.BLOCK_LENGTH;
+		assertEquals(SortedHashFile.HEADER_LENGTH + (long) (hashes.size() + fences) * BtLocHash.HASH_LENGTH,
+				batchFile.length());
+		try (SortedHashFile reopened = store.open(FIRST_BATCH)) {
+			assertEquals(hashes.size(), reopened.size());
+			for (BtLocHash hash : hashes) {
+				assertTrue(reopened.contains(hash.getHigh(), hash.getLow()));
+			}
+			for (BtLocHash hash : randomHashes(random, 1000)) {
+				assertFalse(reopened.contains(hash.getHigh(), hash.getLow()));
+			}
+			assertFalse(reopened.contains(-1L, (short) -1));
+		}
+	}
+
+	@Test
+	public void rejectsCorruptFile() throws Exception {
+		addBatch(FIRST_BATCH, randomHashes(new Random(8), 1000));
+		File batchFile = new File(directory, FIRST_BATCH + ".tbl");
+		try (RandomAccessFile file = new RandomAccessFile(batchFile, "rw")) {
+			// claim more records than the file holds
+			file.seek(4);
+			int size = file.readInt();
+			file.seek(4);
+			file.writeInt(size + 1);
+		}
+		try {
+			store.open(FIRST_BATCH).close();
+			fail("corrupt file opened");
+		} catch (IOException e) {
+			// expected
+		}
+
+		addBatch(FIRST_BATCH, randomHashes(new Random(8), 1000));
+		try (RandomAccessFile file = new RandomAccessFile(batchFile, "rw")) {
+			file.setLength(file.length() - 1);
+		}
+		try {
+			store.open(FIRST_BATCH).close();
+			fail("truncated file opened");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void matchesLateLocalHashes() throws Exception {
+		Random random = new Random(5);
+		List<BtLocHash> firstBucket = randomHashes(random, 5000);
+		List<BtLocHash> secondBucket = randomHashes(random, 5000);
+		addBatch(FIRST_BATCH, firstBucket);
+		addBatch(FIRST_BATCH + BATCH_LENGTH, secondBucket);
+		// a discarded download is never matched
+		SortedHashFile.Writer discarded = store.createWriter(FIRST_BATCH + 2 * BATCH_LENGTH, 10);
+		discarded.accept(secondBucket.get(42).getHigh(), secondBucket.get(42).getLow());
+		store.discard(discarded);
+
+		List<BtLocHash> lateHashes = randomHashes(random, 100);
+		lateHashes.add(firstBucket.get(0));
+		lateHashes.add(secondBucket.get(17));
+		lateHashes.add(secondBucket.get(17));
+		HashMatcher matcher = new HashMatcher(SortedHashIndex.fromHashes(lateHashes));
+		assertEquals(2, store.match(matcher));
+		assertEquals(3, matcher.getMatchCount());
+	}
+
+	@Test
+	public void removesOldBatches() throws Exception {
+		Random random = new Random(6);
+		addBatch(FIRST_BATCH, randomHashes(random, 10));
+		addBatch(FIRST_BATCH + 12 * BATCH_LENGTH, randomHashes(random, 10));
+		// left behind by downloads that were killed
+		assertTrue(new File(directory, (FIRST_BATCH + 13 * BATCH_LENGTH) + ".tmp").createNewFile());
+		assertTrue(new File(directory, (FIRST_BATCH + 13 * BATCH_LENGTH) + ".tmp.runs").createNewFile());
+		assertTrue(new File(directory, (FIRST_BATCH + 14 * BATCH_LENGTH) + ".prt").createNewFile());
+
+		store.removeBatchesBefore(FIRST_BATCH + 12 * BATCH_LENGTH);
+
+		assertEquals(Arrays.asList((FIRST_BATCH + 12 * BATCH_LENGTH) + ".tbl"), Arrays.asList(directory.list()));
+	}
+
+	@Test
+	public void keepsPartitionTimesWithTable() throws Exception {
+		long[] partitionTimes = { FIRST_BATCH - 300000, FIRST_BATCH };
+		SortedHashFile.Writer writer = store.createWriter(FIRST_BATCH, 10);
+		writer.accept(1, (short) 1);
+		store.add(FIRST_BATCH, writer, partitionTimes);
+		addBatch(FIRST_BATCH + BATCH_LENGTH, randomHashes(new Random(7), 10));
+
+		assertTrue(store.contains(FIRST_BATCH));
+		assertArrayEquals(partitionTimes, store.getPartitionTimes(FIRST_BATCH));
+		assertNull(store.getPartitionTimes(FIRST_BATCH + BATCH_LENGTH));
+		assertNull(store.open(FIRST_BATCH + 2 * BATCH_LENGTH));
+
+		store.removeBatchesBefore(FIRST_BATCH + BATCH_LENGTH);
+		assertFalse(store.contains(FIRST_BATCH));
+		assertNull(store.getPartitionTimes(FIRST_BATCH));
+	}
+
+	@Test
+	public void keepsRegionsOfStoredShards() throws Exception {
+		Random random = new Random(6);
+		SortedHashFile.Writer writer = store.createWriter(FIRST_BATCH, 100);
+		for (BtLocHash hash : randomHashes(random, 100)) {
+			writer.accept(hash.getHigh(), hash.getLow());
+		}
+		store.add(FIRST_BATCH, writer, null, Arrays.asList("9q8a", "9q8b"));
+		addBatch(FIRST_BATCH + BATCH_LENGTH, randomHashes(random, 100));
+
+		assertEquals(Arrays.asList("9q8a", "9q8b"), new ArrayList<>(store.getRegions(FIRST_BATCH)));
+		assertNull(store.getRegions(FIRST_BATCH + BATCH_LENGTH));
+		assertTrue(store.getBatchesMissingRegions(Arrays.asList("9q8a")).isEmpty());
+		assertEquals(Arrays.asList(FIRST_BATCH), store.getBatchesMissingRegions(Arrays.asList("9q8a", "9q8c")));
+
+		store.removeBatchesBefore(FIRST_BATCH);
+		assertEquals(2, store.getRegions(FIRST_BATCH).size());
+	}
+
+	private void addBatch(long batchReleaseTime, List<BtLocHash> hashes) throws IOException {
+		SortedHashFile.Writer writer = store.createWriter(batchReleaseTime, hashes.size());
+		for (BtLocHash hash : hashes) {
+			writer.accept(hash.getHigh(), hash.getLow());
+		}
+		store.add(batchReleaseTime, writer, null);
+	}
+
+	private static List<BtLocHash> randomHashes(Random random, int count) {
+		List<BtLocHash> hashes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			hashes.add(new BtLocHash(random.nextLong(), (short) random.nextInt()));
+		}
+		return hashes;
+	}
+
+}
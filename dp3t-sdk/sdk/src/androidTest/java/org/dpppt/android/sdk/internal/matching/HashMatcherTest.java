@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class HashMatcherTest {
+
+	@Test
+	public void testIndexIsSorted() {
+		SortedHashIndex index = SortedHashIndex.fromHashes(randomHashes(new Random(1), 10000, 500));
+		for (int i = 1; i < index.size(); i++) {
+			assertTrue(index.get(i - 1).compareTo(index.get(i)) <= 0);
+		}
+	}
+
+	@Test
+	public void testMatchesLikeHashSet() {
+		Random random = new Random(2);
+		List<BtLocHash> local = randomHashes(random, 5000, 2000);
+		List<BtLocHash> exposed = randomHashes(random, 20000, 2000);
+
+		HashSet<BtLocHash> exposedSet = new HashSet<>(exposed);
+		int expected = 0;
+		for (BtLocHash hash : local) {
+			if (exposedSet.contains(hash)) {
+				expected++;
+			}
+		}
+
+		SortedHashIndex index = SortedHashIndex.fromHashes(local);
+		HashMatcher matcher = new HashMatcher(SortedHashIndex.fromHashes(local));
+		for (BtLocHash hash : exposed) {
+			matcher.offer(hash);
+		}
+		assertEquals(expected, matcher.getMatchCount());
+	}
+
+	@Test
+	public void testTimeWindow() {
+		BtLocHash hash = new BtLocHash(42L, (short) 7);
+		SortedHashIndex index = new SortedHashIndex.Builder(3)
+				.add(hash.getHigh(), hash.getLow(), 100)
+				.add(hash.getHigh(), hash.getLow(), 200)
+				.add(1L, (short) 1, 150)
+				.build();
+
+		HashMatcher matcher = new HashMatcher(index).setTimeWindow(150, 250);
+		assertTrue(matcher.offer(hash));
+		assertEquals(1, matcher.getMatchCount());
+
+		HashMatcher outsideMatcher = new HashMatcher(index).setTimeWindow(300, 400);
+		assertFalse(outsideMatcher.offer(hash));
+		assertEquals(0, outsideMatcher.getMatchCount());
+	}
+
+	private static List<BtLocHash> randomHashes(Random random, int count, int distinct) {
+		List<BtLocHash> hashes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int value = random.nextInt(distinct) - distinct / 2;
+			hashes.add(new BtLocHash((long) value << 40, (short) value));
+		}
+		return hashes;
+	}
+
+}
@@ -23,7 +23,9 @@ import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Random;
@@ -38,14 +40,17 @@ import org.dpppt.android.sdk.internal.BroadcastHelper;
 import org.dpppt.android.sdk.internal.ErrorHelper;
 import org.dpppt.android.sdk.internal.SyncWorker;
 import org.dpppt.android.sdk.internal.TracingService;
+import org.dpppt.android.sdk.internal.UploadWorker;
 import org.dpppt.android.sdk.internal.backend.CertificatePinning;
 import org.dpppt.android.sdk.internal.backend.ServerTimeOffsetException;
 import org.dpppt.android.sdk.internal.backend.StatusCodeException;
 import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
 import org.dpppt.android.sdk.internal.crypto.CryptoModule;
+import org.dpppt.android.sdk.internal.crypto.HotspotVectorBatch;
 import org.dpppt.android.sdk.internal.database.Database;
 import org.dpppt.android.sdk.internal.database.models.ExposureDay;
 import org.dpppt.android.sdk.internal.logger.Logger;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
 import org.dpppt.android.sdk.internal.util.DayDate;
 import org.dpppt.android.sdk.internal.util.ProcessUtil;
 
@@ -59,6 +64,8 @@ public class DP3T {
 
 	public static final String UPDATE_INTENT_ACTION = "org.dpppt.android.sdk.UPDATE_ACTION";
 
+	private static final int HOTSPOT_VECTOR_LENGTH = 11;
+
 	private static String appId;
 	private static ArrayList<Integer> aggregate;
 	private static int vectorsSentCount;
@@ -137,74 +144,45 @@ public class DP3T {
 		return appConfigManager.isAdvertisingEnabled() || appConfigManager.isReceivingEnabled();
 	}
 	public static void postButtonClicked(Context context){
-		ResponseCallback<Void> callback = new ResponseCallback<Void>() {
-			@Override
-			public void onSuccess(Void response) {
-				System.out.println("Success");
-			}
-
-			@Override
-			public void onError(Throwable throwable) {
-				System.out.println("Error: "+throwable.getLocalizedMessage());
-			}
-		};
-		AppConfigManager appConfigManager = AppConfigManager.getInstance(context);
-		try {
-			Random rand = new Random();
-			vectorsSentCount++;
+		Random rand = new Random();
+		vectorsSentCount++;
+		if(vectorsSentCount%3==1){
+			aggregate = new ArrayList<Integer>();
+		}
+		int[] hotspotVector = new int[HOTSPOT_VECTOR_LENGTH];
+		for(int i = 0;i<HOTSPOT_VECTOR_LENGTH;i++){
+			hotspotVector[i] = rand.nextInt(20);
 			if(vectorsSentCount%3==1){
-				aggregate = new ArrayList<Integer>();
-			}
-			ArrayList<Integer> hotspotVector = new ArrayList<>();
-			//hotspotVector.add(2);
-			ArrayList<Integer> hotspotRandomVectorA = new ArrayList<>();
-			ArrayList<Integer> hotspotRandomVectorB = new ArrayList<>();
-			for(int i = 0;i<11;i++){
-				Integer random1 = rand.nextInt(20);
-				hotspotVector.add(random1);
-				if(vectorsSentCount%3==1){
-					aggregate.add(random1);
-				}
-				else{
-					aggregate.set(i,aggregate.get(i)+random1);
-				}
-				Integer random2 = rand.nextInt(100);
-				hotspotRandomVectorA.add(random2);
-				hotspotRandomVectorB.add(hotspotVector.get(i) - random2);
+				aggregate.add(hotspotVector[i]);
 			}
-			System.out.println("HotspotVector = "+hotspotVector);
-			System.out.println("Share A = "+hotspotRandomVectorA);
-			System.out.println("Share B = "+hotspotRandomVectorB);
-			if(vectorsSentCount%3==0){
-				System.out.println("Aggregate = " + aggregate);
-				aggregate = null;
+			else{
+				aggregate.set(i,aggregate.get(i)+hotspotVector[i]);
 			}
-			appConfigManager.getBackendReportRepository(context).sendHotspotVectors(hotspotRandomVectorA,hotspotRandomVectorB, new ResponseCallback<Void>() {
-				@Override
-				public void onSuccess(Void response) {
-					callback.onSuccess(response);
-				}
-
-				@Override
-				public void onError(Throwable throwable) {
-					callback.onError(throwable);
-				}
-			});
-//			appConfigManager.getBackendReportRepository(context).testGetCall(new ResponseCallback<Void>() {
-//				@Override
-//				public void onSuccess(Void response) {
-//					callback.onSuccess(response);
-//				}
-//
-//				@Override
-//				public void onError(Throwable throwable) {
-//					callback.onError(throwable);
-//				}
-//			});
-		} catch (IllegalStateException e) {
-			Logger.e(TAG, e);
 		}
+		Logger.d(TAG, "hotspot vector " + Arrays.toString(hotspotVector));
+		if(vectorsSentCount%3==0){
+			Logger.d(TAG, "hotspot aggregate " + aggregate);
+			aggregate = null;
+		}
+		sendHotspotVectors(context, Collections.singletonList(hotspotVector));
 	}
+
+	/**
+	 * Splits the hotspot vectors into two secret shares and queues one batch of shares for each report server. The
+	 * vectors must all have the same length. The batches are uploaded in the background and retried until they are
+	 * accepted.
+	 */
+	public static void sendHotspotVectors(Context context, List<int[]> hotspotVectors) {
+		if (hotspotVectors.isEmpty()) {
+			return;
+		}
+		HotspotVectorBatch batch = new HotspotVectorBatch(hotspotVectors.get(0).length);
+		for (int[] hotspotVector : hotspotVectors) {
+			batch.add(hotspotVector);
+		}
+		UploadWorker.addHotspotVectors(context, batch);
+	}
+
 	public static void sync(Context context) {
 		checkInit();
 		try {
@@ -244,27 +222,15 @@ public class DP3T {
 		checkInit();
 
 		DayDate onsetDate = new DayDate(onset.getTime());
-		System.out.println("DP3T thread:"+Thread.currentThread());
-//		ExposeeRequest exposeeRequest = CryptoModule.getInstance(context).getSecretKeyForPublishing(onsetDate, exposeeAuthMethod);
-		ExposeeRequest exposeeRequest = CryptoModule.getInstance(context).getHashesForPublishing(onsetDate,exposeeAuthMethod);
-		AppConfigManager appConfigManager = AppConfigManager.getInstance(context);
+		ExposeeRequest exposeeRequest = CryptoModule.getInstance(context).getSecretKeyForPublishing(onsetDate, exposeeAuthMethod);
+		if (exposeeRequest == null) {
+			callback.onError(new IllegalArgumentException("No secret key for the onset date " + onsetDate));
+			return;
+		}
 		try {
-			appConfigManager.getBackendReportRepository(context).addExposee(exposeeRequest, exposeeAuthMethod,
-					new ResponseCallback<Void>() {
-						@Override
-						public void onSuccess(Void response) {
-							appConfigManager.setIAmInfected(true);
-							CryptoModule.getInstance(context).reset();
-							stop(context);
-							callback.onSuccess(response);
-						}
-
-						@Override
-						public void onError(Throwable throwable) {
-							callback.onError(throwable);
-						}
-					});
-		} catch (IllegalStateException e) {
+			// uploaded by the outbox, so it never races a retry of the same report
+			UploadWorker.addReport(context, onsetDate, exposeeAuthMethod, callback);
+		} catch (IOException e) {
 			callback.onError(e);
 			Logger.e(TAG, e);
 		}
@@ -306,6 +272,54 @@ public class DP3T {
 		appConfigManager.setNumberOfWindowsForExposure(numberOfWindowsForExposure);
 	}
 
+	/**
+	 * Downloads a compact filter of each batch first and only fetches the full bucket if a local hash may be exposed.
+	 * Requires backend support, batches without a filter are downloaded in full.
+	 */
+	public static void setBucketFilterModeEnabled(Context context, boolean enabled) {
+		checkInit();
+
+		AppConfigManager.getInstance(context).setBucketFilterModeEnabled(enabled);
+	}
+
+	/**
+	 * Downloads only the shards of each batch for the geohash regions (about 40 by 20 km) the device visited in the
+	 * retention period instead of the whole bucket. Note that the requests reveal these coarse regions to the backend.
+	 * Requires backend support, batches without shards are downloaded in full.
+	 * <p>
+	 * When a region is visited for the first time, its shards of the batches downloaded before are fetched with the next
+	 * sync, so that hashes received there are still matched against them.
+	 */
+	public static void setBucketRegionShardingEnabled(Context context, boolean enabled) {
+		checkInit();
+
+		AppConfigManager.getInstance(context).setBucketRegionShardingEnabled(enabled);
+	}
+
+	/**
+	 * Sets how many batches are downloaded ahead while the current batch is matched. 0 disables prefetching.
+	 */
+	public static void setBucketPrefetchDepth(Context context, int prefetchDepth) {
+		checkInit();
+
+		if (prefetchDepth < 0) {
+			throw new IllegalArgumentException("prefetchDepth must not be negative");
+		}
+		AppConfigManager.getInstance(context).setBucketPrefetchDepth(prefetchDepth);
+	}
+
+	/**
+	 * Sets how many batches are downloaded concurrently when catching up after the device was offline.
+	 */
+	public static void setBucketFetchParallelism(Context context, int parallelism) {
+		checkInit();
+
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		AppConfigManager.getInstance(context).setBucketFetchParallelism(parallelism);
+	}
+
 	public static void setCertificatePinner(@NonNull CertificatePinner certificatePinner) {
 		CertificatePinning.setCertificatePinner(certificatePinner);
 	}
@@ -324,13 +338,8 @@ public class DP3T {
 		CryptoModule.getInstance(context).reset();
 		appConfigManager.clearPreferences();
 		Logger.clear();
+		new ExposeeHashStore(context).clear();
 		Database db = new Database(context);
 		db.recreateTables(response -> onDeleteListener.run());
 	}
-
-	public static void testMatchingTimeButtonClicked(Context context) {
-		new Thread(() -> SyncWorker.testMatching(context)).start();
-		return;
-
-	}
 }
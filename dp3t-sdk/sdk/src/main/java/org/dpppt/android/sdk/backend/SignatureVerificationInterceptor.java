@@ -13,20 +13,20 @@ package org.dpppt.android.sdk.backend;
 import androidx.annotation.NonNull;
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.util.Arrays;
 
 import org.dpppt.android.sdk.util.SignatureUtil;
 
 import okhttp3.Interceptor;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
+/**
+ * Verifies the JWS of successful responses and wraps their body in a {@link SignatureVerifyingResponseBody}, which fails
+ * with a {@link SignatureException} at the end of the body if its content hash does not match the signed one.
+ */
 public class SignatureVerificationInterceptor implements Interceptor {
 
-	private static final long PEEK_MEMORY_LIMIT = 64 * 1024 * 1024L;
-
 	private final PublicKey publicKey;
 
 	public SignatureVerificationInterceptor(@NonNull PublicKey publicKey) {
@@ -53,21 +53,13 @@ public class SignatureVerificationInterceptor implements Interceptor {
 
 		byte[] signedContentHash = SignatureUtil.getVerifiedContentHash(jwsHeader, publicKey);
 
-		byte[] body = response.peekBody(PEEK_MEMORY_LIMIT).bytes();
-
-		byte[] actualContentHash;
-		try {
-			MessageDigest digest = MessageDigest.getInstance(SignatureUtil.HASH_ALGO);
-			actualContentHash = digest.digest(body);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		}
-
-		if (!Arrays.equals(actualContentHash, signedContentHash)) {
-			throw new SignatureException("Signature mismatch");
+		ResponseBody body = response.body();
+		if (body == null) {
+			return response;
 		}
-
-		return response;
+		return response.newBuilder()
+				.body(new SignatureVerifyingResponseBody(body, signedContentHash))
+				.build();
 	}
 
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.android.sdk.backend;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.HashingSource;
+import okio.Okio;
+
+/**
+ * Response body that hashes its content while it is consumed and compares the hash to the signed content hash once the end
+ * of the body is reached. The body is neither buffered nor read twice, but the signature is only verified if the consumer
+ * reads until the end of the stream, so nothing read from it may be committed before that.
+ */
+class SignatureVerifyingResponseBody extends ResponseBody {
+
+	private final ResponseBody body;
+	private final BufferedSource source;
+
+	SignatureVerifyingResponseBody(@NonNull ResponseBody body, @NonNull byte[] signedContentHash) {
+		this.body = body;
+		this.source = Okio.buffer(new VerifyingSource(HashingSource.sha256(body.source()), signedContentHash));
+	}
+
+	@Nullable
+	@Override
+	public MediaType contentType() {
+		return body.contentType();
+	}
+
+	@Override
+	public long contentLength() {
+		return body.contentLength();
+	}
+
+	@NonNull
+	@Override
+	public BufferedSource source() {
+		return source;
+	}
+
+	private static class VerifyingSource extends ForwardingSource {
+
+		private final HashingSource hashingSource;
+		private final byte[] signedContentHash;
+		private boolean verified = false;
+
+		VerifyingSource(HashingSource hashingSource, byte[] signedContentHash) {
+			super(hashingSource);
+			this.hashingSource = hashingSource;
+			this.signedContentHash = signedContentHash;
+		}
+
+		@Override
+		public long read(@NonNull Buffer sink, long byteCount) throws IOException {
+			long read = super.read(sink, byteCount);
+			if (read == -1 && !verified) {
+				if (!Arrays.equals(hashingSource.hash().toByteArray(), signedContentHash)) {
+					throw new SignatureException("Signature mismatch");
+				}
+				verified = true;
+			}
+			return read;
+		}
+
+	}
+
+}
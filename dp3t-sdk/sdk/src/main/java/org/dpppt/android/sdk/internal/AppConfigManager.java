@@ -13,16 +13,23 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.dpppt.android.sdk.backend.ResponseCallback;
 import org.dpppt.android.sdk.backend.models.ApplicationInfo;
 import org.dpppt.android.sdk.internal.backend.BackendReportRepository;
 import org.dpppt.android.sdk.internal.backend.DiscoveryRepository;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
 import org.dpppt.android.sdk.internal.backend.models.ApplicationsList;
+import org.dpppt.android.sdk.internal.backend.models.DiscoveryResult;
+import org.dpppt.android.sdk.internal.logger.Logger;
 import org.dpppt.android.sdk.internal.util.Json;
 
 public class AppConfigManager {
 
+	private static final String TAG = "AppConfigManager";
+
 	private static AppConfigManager instance;
 
 	public static synchronized AppConfigManager getInstance(Context context) {
@@ -43,6 +50,9 @@ public class AppConfigManager {
 
 	private static final int DEFAULT_NUMBER_OF_WINDOWS_FOR_EXPOSURE = 3;
 	private static final float DEFAULT_CONTACT_ATTENUATION_THRESHOLD = 73.0f;
+	private static final int DEFAULT_BUCKET_PREFETCH_DEPTH = 2;
+	private static final int DEFAULT_BUCKET_FETCH_PARALLELISM = 4;
+	private static final long DISCOVERY_CACHE_TTL = TimeUnit.HOURS.toMillis(24);
 
 	private static final String PREFS_NAME = "dp3t_sdk_preferences";
 	private static final String PREF_APPLICATION_LIST = "applicationList";
@@ -61,12 +71,23 @@ public class AppConfigManager {
 	private static final String PREF_BLUETOOTH_USE_SCAN_RESPONSE = "scanResponseEnabled";
 	private static final String PREF_CONTACT_ATTENUATION_THRESHOLD = "contact_attenuation_threshold";
 	private static final String PREF_NUMBER_OF_WINDOWS_FOR_EXPOSURE = "number_of_windows_for_exposure";
+	private static final String PREF_BUCKET_FILTER_MODE_ENABLED = "bucket_filter_mode_enabled";
+	private static final String PREF_BUCKET_PREFETCH_DEPTH = "bucket_prefetch_depth";
+	private static final String PREF_BUCKET_REGION_SHARDING_ENABLED = "bucket_region_sharding_enabled";
+	private static final String PREF_BUCKET_FETCH_PARALLELISM = "bucket_fetch_parallelism";
+	private static final String PREF_LAST_MATCHED_RECEIVED_HASH_ID = "last_matched_received_hash_id";
+	private static final String PREF_DISCOVERY_ETAG = "discovery_etag";
+	private static final String PREF_DISCOVERY_LOADED_AT = "discovery_loaded_at";
+	private static final String PREF_DISCOVERY_DEV = "discovery_dev";
+	private static final String PREF_UPLOADED_HASHES_KEY_DATE = "uploaded_hashes_key_date";
+	private static final String PREF_UPLOADED_HASHES_UNTIL_ID = "uploaded_hashes_until_id";
 
 	private String appId;
 	private boolean useDiscovery;
 	private boolean isDevDiscoveryMode;
 	private SharedPreferences sharedPrefs;
 	private DiscoveryRepository discoveryRepository;
+	private final AtomicBoolean revalidatingDiscovery = new AtomicBoolean();
 
 	private AppConfigManager(Context context) {
 		discoveryRepository = new DiscoveryRepository(context);
@@ -79,17 +100,9 @@ public class AppConfigManager {
 
 	public void triggerLoad() {
 		useDiscovery = true;
-		discoveryRepository.getDiscovery(new ResponseCallback<ApplicationsList>() {
-			@Override
-			public void onSuccess(ApplicationsList response) {
-				sharedPrefs.edit().putString(PREF_APPLICATION_LIST, Json.toJson(response)).apply();
-			}
-
-			@Override
-			public void onError(Throwable throwable) {
-				throwable.printStackTrace();
-			}
-		}, isDevDiscoveryMode);
+		if (!hasCachedDiscovery() || isDiscoveryStale()) {
+			revalidateDiscovery();
+		}
 	}
 
 	public void setManualApplicationInfo(ApplicationInfo applicationInfo) {
@@ -97,14 +110,82 @@ public class AppConfigManager {
 		setAppId(applicationInfo.getAppId());
 		ApplicationsList applicationsList = new ApplicationsList();
 		applicationsList.getApplications().add(applicationInfo);
-		sharedPrefs.edit().putString(PREF_APPLICATION_LIST, Json.toJson(applicationsList)).apply();
+		sharedPrefs.edit()
+				.putString(PREF_APPLICATION_LIST, Json.toJson(applicationsList))
+				.remove(PREF_DISCOVERY_LOADED_AT)
+				.remove(PREF_DISCOVERY_ETAG)
+				.apply();
+	}
+
+	/**
+	 * Loads the discovery from another server than {@link DiscoveryRepository#DISCOVERY_BASE_URL}, e.g. a local stand-in
+	 * of the backend. The cached discovery is dropped.
+	 */
+	public void setDiscoveryBaseUrl(Context context, String discoveryBaseUrl) {
+		discoveryRepository = new DiscoveryRepository(context, discoveryBaseUrl);
+		useDiscovery = true;
+		sharedPrefs.edit()
+				.remove(PREF_DISCOVERY_LOADED_AT)
+				.remove(PREF_DISCOVERY_ETAG)
+				.apply();
+	}
+
+	/**
+	 * Makes sure the discovery is loaded. A cached discovery is used right away and revalidated in the background once it
+	 * is older than its TTL, only the very first load blocks.
+	 */
+	public void updateFromDiscovery() throws IOException, StatusCodeException {
+		if (!useDiscovery) {
+			return;
+		}
+		if (!hasCachedDiscovery()) {
+			boolean dev = isDevDiscoveryMode;
+			storeDiscovery(discoveryRepository.getDiscoverySync(dev, null), dev);
+		} else if (isDiscoveryStale()) {
+			revalidateDiscovery();
+		}
+	}
+
+	private boolean hasCachedDiscovery() {
+		return sharedPrefs.contains(PREF_DISCOVERY_LOADED_AT) &&
+				sharedPrefs.getBoolean(PREF_DISCOVERY_DEV, false) == isDevDiscoveryMode;
 	}
 
-	public void updateFromDiscoverySynchronous() throws IOException {
-		if (useDiscovery) {
-			ApplicationsList response = discoveryRepository.getDiscoverySync(isDevDiscoveryMode);
-			sharedPrefs.edit().putString(PREF_APPLICATION_LIST, Json.toJson(response)).apply();
+	private boolean isDiscoveryStale() {
+		return System.currentTimeMillis() - sharedPrefs.getLong(PREF_DISCOVERY_LOADED_AT, 0) > DISCOVERY_CACHE_TTL;
+	}
+
+	private void revalidateDiscovery() {
+		if (!revalidatingDiscovery.compareAndSet(false, true)) {
+			return;
 		}
+		boolean dev = isDevDiscoveryMode;
+		String eTag = hasCachedDiscovery() ? sharedPrefs.getString(PREF_DISCOVERY_ETAG, null) : null;
+		discoveryRepository.getDiscovery(new ResponseCallback<DiscoveryResult>() {
+			@Override
+			public void onSuccess(DiscoveryResult response) {
+				storeDiscovery(response, dev);
+				revalidatingDiscovery.set(false);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				// keep using the stale discovery
+				Logger.e(TAG, throwable);
+				revalidatingDiscovery.set(false);
+			}
+		}, dev, eTag);
+	}
+
+	private void storeDiscovery(DiscoveryResult discoveryResult, boolean dev) {
+		SharedPreferences.Editor editor = sharedPrefs.edit();
+		if (!discoveryResult.isNotModified()) {
+			editor.putString(PREF_APPLICATION_LIST, Json.toJson(discoveryResult.getApplicationsList()));
+		}
+		editor.putString(PREF_DISCOVERY_ETAG, discoveryResult.getETag())
+				.putLong(PREF_DISCOVERY_LOADED_AT, System.currentTimeMillis())
+				.putBoolean(PREF_DISCOVERY_DEV, dev)
+				.apply();
 	}
 
 	public ApplicationsList getLoadedApplicationsList() {
@@ -257,6 +338,70 @@ public class AppConfigManager {
 		sharedPrefs.edit().putInt(PREF_NUMBER_OF_WINDOWS_FOR_EXPOSURE, threshold).apply();
 	}
 
+	public boolean isBucketFilterModeEnabled() {
+		return sharedPrefs.getBoolean(PREF_BUCKET_FILTER_MODE_ENABLED, false);
+	}
+
+	public void setBucketFilterModeEnabled(boolean enabled) {
+		sharedPrefs.edit().putBoolean(PREF_BUCKET_FILTER_MODE_ENABLED, enabled).apply();
+	}
+
+	public boolean isBucketRegionShardingEnabled() {
+		return sharedPrefs.getBoolean(PREF_BUCKET_REGION_SHARDING_ENABLED, false);
+	}
+
+	public void setBucketRegionShardingEnabled(boolean enabled) {
+		sharedPrefs.edit().putBoolean(PREF_BUCKET_REGION_SHARDING_ENABLED, enabled).apply();
+	}
+
+	public int getBucketPrefetchDepth() {
+		return sharedPrefs.getInt(PREF_BUCKET_PREFETCH_DEPTH, DEFAULT_BUCKET_PREFETCH_DEPTH);
+	}
+
+	public void setBucketPrefetchDepth(int prefetchDepth) {
+		sharedPrefs.edit().putInt(PREF_BUCKET_PREFETCH_DEPTH, prefetchDepth).apply();
+	}
+
+	public int getBucketFetchParallelism() {
+		return sharedPrefs.getInt(PREF_BUCKET_FETCH_PARALLELISM, DEFAULT_BUCKET_FETCH_PARALLELISM);
+	}
+
+	public void setBucketFetchParallelism(int parallelism) {
+		sharedPrefs.edit().putInt(PREF_BUCKET_FETCH_PARALLELISM, parallelism).apply();
+	}
+
+	public long getLastMatchedReceivedHashId() {
+		return sharedPrefs.getLong(PREF_LAST_MATCHED_RECEIVED_HASH_ID, 0);
+	}
+
+	public void setLastMatchedReceivedHashId(long receivedHashId) {
+		sharedPrefs.edit().putLong(PREF_LAST_MATCHED_RECEIVED_HASH_ID, receivedHashId).apply();
+	}
+
+	/**
+	 * @return the id of the last broadcast hash uploaded with the report of the given key date, or 0 if none was uploaded
+	 */
+	public long getUploadedHashesUntilId(long keyDate) {
+		if (sharedPrefs.getLong(PREF_UPLOADED_HASHES_KEY_DATE, -1) != keyDate) {
+			return 0;
+		}
+		return sharedPrefs.getLong(PREF_UPLOADED_HASHES_UNTIL_ID, 0);
+	}
+
+	public void setUploadedHashesUntilId(long keyDate, long broadcastHashId) {
+		sharedPrefs.edit()
+				.putLong(PREF_UPLOADED_HASHES_KEY_DATE, keyDate)
+				.putLong(PREF_UPLOADED_HASHES_UNTIL_ID, broadcastHashId)
+				.apply();
+	}
+
+	public void clearUploadedHashes() {
+		sharedPrefs.edit()
+				.remove(PREF_UPLOADED_HASHES_KEY_DATE)
+				.remove(PREF_UPLOADED_HASHES_UNTIL_ID)
+				.apply();
+	}
+
 	public void clearPreferences() {
 		sharedPrefs.edit().clear().apply();
 	}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.database.models.SyncedBatch;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+
+/**
+ * Commits matched batches strictly in batch order, advancing the last loaded batch release time. Every batch is
+ * checkpointed once its bucket is downloaded and once it is matched, so a later sync resumes each batch at the phase
+ * where the failed one stopped: matched batches are only committed, downloaded ones are matched from the
+ * {@link org.dpppt.android.sdk.internal.matching.ExposeeHashStore}. Their matches were already passed to the
+ * {@link org.dpppt.android.sdk.internal.database.ExposureEngine} when matched, which ignores matches it has seen before,
+ * so committing a batch twice has no effect.
+ */
+class BatchCommitter {
+
+	private final Database database;
+	private final AppConfigManager appConfigManager;
+	private final TreeMap<Long, SyncedBatch> checkpoints = new TreeMap<>();
+
+	private long nextToCommit;
+
+	BatchCommitter(@NonNull Context context, @NonNull Database database, long nextBatchReleaseTime) {
+		this.database = database;
+		this.appConfigManager = AppConfigManager.getInstance(context);
+		this.nextToCommit = nextBatchReleaseTime;
+		List<SyncedBatch> syncedBatches = database.getSyncedBatches(nextBatchReleaseTime);
+		for (SyncedBatch syncedBatch : syncedBatches) {
+			checkpoints.put(syncedBatch.getBatchReleaseTime(), syncedBatch);
+		}
+	}
+
+	/**
+	 * @return true if the batch was already matched by an earlier sync
+	 */
+	synchronized boolean isSynced(long batchReleaseTime) {
+		SyncedBatch checkpoint = checkpoints.get(batchReleaseTime);
+		return checkpoint != null && checkpoint.isMatched();
+	}
+
+	/**
+	 * @return the checkpoint of a batch downloaded but not matched by an earlier sync or null
+	 */
+	@Nullable
+	synchronized SyncedBatch getDownloaded(long batchReleaseTime) {
+		SyncedBatch checkpoint = checkpoints.get(batchReleaseTime);
+		return checkpoint != null && !checkpoint.isMatched() ? checkpoint : null;
+	}
+
+	/**
+	 * Checkpoints a bucket staged in the store, unless the same download was already recorded.
+	 */
+	synchronized void addDownloaded(@NonNull SyncedBatch syncedBatch) {
+		SyncedBatch checkpoint = checkpoints.get(syncedBatch.getBatchReleaseTime());
+		if (checkpoint != null && Arrays.equals(checkpoint.getContentHash(), syncedBatch.getContentHash())) {
+			return;
+		}
+		database.addSyncedBatch(syncedBatch);
+		checkpoints.put(syncedBatch.getBatchReleaseTime(), syncedBatch);
+	}
+
+	synchronized void add(@NonNull SyncedBatch syncedBatch) {
+		database.addSyncedBatch(syncedBatch);
+		checkpoints.put(syncedBatch.getBatchReleaseTime(), syncedBatch);
+		commitReadyBatches();
+	}
+
+	synchronized void commitReadyBatches() {
+		SyncedBatch syncedBatch;
+		long lastCommitted = -1;
+		while ((syncedBatch = checkpoints.get(nextToCommit)) != null && syncedBatch.isMatched()) {
+			checkpoints.remove(nextToCommit);
+			appConfigManager.setLastLoadedBatchReleaseTime(syncedBatch.getBatchReleaseTime());
+			lastCommitted = nextToCommit;
+			nextToCommit += BATCH_LENGTH;
+		}
+		if (lastCommitted >= 0) {
+			database.removeSyncedBatches(lastCommitted);
+		}
+	}
+
+}
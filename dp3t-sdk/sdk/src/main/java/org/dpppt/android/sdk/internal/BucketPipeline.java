@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dpppt.android.sdk.internal.backend.ExposeeBucket;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
+import org.dpppt.android.sdk.internal.logger.Logger;
+
+/**
+ * Downloads the buckets of a list of batches ahead of matching them. While one bucket is handed to the consumer on the
+ * calling thread, following buckets are fetched in the background by up to parallelism threads. Buckets are always handed
+ * out in the given order and at most max(prefetchDepth + 1, parallelism) buckets are fetched ahead. The fetcher streams
+ * each bucket into the {@link org.dpppt.android.sdk.internal.matching.ExposeeHashStore}, so prefetching does not buffer
+ * buckets on the heap.
+ * <p>
+ * A failing batch does not stop the others, after all batches were processed the first failure is thrown.
+ */
+public class BucketPipeline {
+
+	private static final String TAG = "BucketPipeline";
+
+	public interface BucketFetcher {
+
+		ExposeeBucket fetch(long batchReleaseTime) throws IOException, StatusCodeException;
+
+	}
+
+	public interface BucketConsumer {
+
+		void accept(@NonNull ExposeeBucket bucket) throws IOException;
+
+	}
+
+	private final BucketFetcher fetcher;
+	private final int prefetchDepth;
+	private final int parallelism;
+
+	public BucketPipeline(@NonNull BucketFetcher fetcher, int prefetchDepth, int parallelism) {
+		if (prefetchDepth < 0) {
+			throw new IllegalArgumentException("prefetchDepth must not be negative");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.fetcher = fetcher;
+		this.prefetchDepth = prefetchDepth;
+		this.parallelism = parallelism;
+	}
+
+	public void run(@NonNull List<Long> batchReleaseTimes, @NonNull BucketConsumer consumer)
+			throws IOException, StatusCodeException {
+		if (batchReleaseTimes.isEmpty()) {
+			return;
+		}
+		int window = Math.max(prefetchDepth + 1, parallelism);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, batchReleaseTimes.size()));
+		ArrayDeque<Future<ExposeeBucket>> pending = new ArrayDeque<>();
+		Iterator<Long> toFetch = batchReleaseTimes.iterator();
+		Exception firstFailure = null;
+		try {
+			for (int i = 0; i < batchReleaseTimes.size(); i++) {
+				while (toFetch.hasNext() && pending.size() < window) {
+					long fetchTime = toFetch.next();
+					pending.add(executor.submit(() -> fetcher.fetch(fetchTime)));
+				}
+				try {
+					consumer.accept(await(pending.poll()));
+				} catch (InterruptedIOException e) {
+					throw e;
+				} catch (IOException | StatusCodeException | RuntimeException e) {
+					Logger.e(TAG, e);
+					if (firstFailure == null) {
+						firstFailure = e;
+					}
+				}
+			}
+		} finally {
+			for (Future<ExposeeBucket> future : pending) {
+				future.cancel(true);
+			}
+			executor.shutdownNow();
+		}
+		if (firstFailure != null) {
+			rethrow(firstFailure);
+		}
+	}
+
+	private static ExposeeBucket await(Future<ExposeeBucket> future) throws IOException, StatusCodeException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bucket");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			} else if (cause instanceof Exception) {
+				rethrow((Exception) cause);
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static void rethrow(Exception e) throws IOException, StatusCodeException {
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof StatusCodeException) {
+			throw (StatusCodeException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		throw new IOException(e);
+	}
+
+}
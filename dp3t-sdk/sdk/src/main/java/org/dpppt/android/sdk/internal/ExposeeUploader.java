@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import org.dpppt.android.sdk.backend.models.ExposeeAuthMethod;
+import org.dpppt.android.sdk.internal.backend.BackendReportRepository;
+import org.dpppt.android.sdk.internal.backend.ExposeeHashesRequestBody;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
+import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
+import org.dpppt.android.sdk.internal.database.Database;
+
+/**
+ * Uploads the broadcast hashes of a report in pages of at most {@link #HASHES_PER_PAGE}. Every page is posted with the key
+ * of the report as its own {@link ExposeeHashesRequestBody}, streamed from the database. The last accepted page is
+ * stored, so an upload that failed continues after it when the report is sent again.
+ */
+public class ExposeeUploader {
+
+	static final int HASHES_PER_PAGE = 20000;
+
+	private final AppConfigManager appConfigManager;
+	private final BackendReportRepository reportRepository;
+	private final Database database;
+	private final int hashesPerPage;
+
+	public ExposeeUploader(@NonNull Context context, @NonNull BackendReportRepository reportRepository) {
+		this(context, reportRepository, HASHES_PER_PAGE);
+	}
+
+	ExposeeUploader(@NonNull Context context, @NonNull BackendReportRepository reportRepository, int hashesPerPage) {
+		this.appConfigManager = AppConfigManager.getInstance(context);
+		this.reportRepository = reportRepository;
+		this.database = new Database(context);
+		this.hashesPerPage = hashesPerPage;
+	}
+
+	/**
+	 * Blocks until all pages are accepted.
+	 *
+	 * @param exposeeRequest the key of the report, without hashes
+	 */
+	public void uploadSync(@NonNull ExposeeRequest exposeeRequest, ExposeeAuthMethod exposeeAuthMethod)
+			throws IOException, StatusCodeException {
+		long afterId = appConfigManager.getUploadedHashesUntilId(exposeeRequest.getKeyDate());
+		while (true) {
+			long pageEnd = database.getBroadcastBtLocHashPageEnd(afterId, hashesPerPage);
+			if (pageEnd < 0 && afterId > 0) {
+				break;
+			}
+			reportRepository.addExposeeHashesSync(createPage(exposeeRequest, afterId, pageEnd), exposeeAuthMethod);
+			if (pageEnd < 0) {
+				break;
+			}
+			appConfigManager.setUploadedHashesUntilId(exposeeRequest.getKeyDate(), pageEnd);
+			afterId = pageEnd;
+		}
+		appConfigManager.clearUploadedHashes();
+	}
+
+	private ExposeeHashesRequestBody createPage(ExposeeRequest exposeeRequest, long afterId, long pageEnd) {
+		// a report without hashes still sends its key
+		long untilId = Math.max(pageEnd, afterId);
+		return new ExposeeHashesRequestBody(exposeeRequest, () -> database.getBroadcastBtLocHashes(afterId, untilId));
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import androidx.annotation.NonNull;
+import androidx.work.*;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.dpppt.android.sdk.internal.backend.ExposeeBucket;
+import org.dpppt.android.sdk.internal.crypto.CryptoModule;
+import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.database.ExposureEngine;
+import org.dpppt.android.sdk.internal.database.models.SyncedBatch;
+import org.dpppt.android.sdk.internal.logger.Logger;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.dpppt.android.sdk.internal.matching.HashMatcher;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
+import org.dpppt.android.sdk.internal.matching.TimePartitionedHashIndex;
+import org.dpppt.android.sdk.internal.util.DayDate;
+
+import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
+
+/**
+ * Matches the buckets staged in the {@link ExposeeHashStore} by the {@link SyncWorker}. Matching does not need the network
+ * but is CPU heavy, so it runs once the device is charging or idle, whichever comes first.
+ */
+public class MatchWorker extends Worker {
+
+	private static final String TAG = "MatchWorker";
+	static final String WORK_TAG = "org.dpppt.android.sdk.internal.MatchWorker";
+	private static final String WORK_NAME_CHARGING = WORK_TAG + ".charging";
+	private static final String WORK_NAME_IDLE = WORK_TAG + ".idle";
+
+	/**
+	 * Enqueues matching under both constraints, the run that starts second finds no staged batches left.
+	 */
+	public static void startMatchWorker(Context context) {
+		WorkManager workManager = WorkManager.getInstance(context);
+		enqueue(workManager, WORK_NAME_CHARGING, new Constraints.Builder()
+				.setRequiresCharging(true)
+				.build());
+		enqueue(workManager, WORK_NAME_IDLE, new Constraints.Builder()
+				.setRequiresDeviceIdle(true)
+				.build());
+	}
+
+	private static void enqueue(WorkManager workManager, String uniqueWorkName, Constraints constraints) {
+		OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(MatchWorker.class)
+				.setConstraints(constraints)
+				.addTag(WORK_TAG)
+				.build();
+		workManager.enqueueUniqueWork(uniqueWorkName, ExistingWorkPolicy.KEEP, workRequest);
+	}
+
+	public static void stopMatchWorker(Context context) {
+		WorkManager workManager = WorkManager.getInstance(context);
+		workManager.cancelAllWorkByTag(WORK_TAG);
+	}
+
+	public MatchWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+		super(context, workerParams);
+	}
+
+	@NonNull
+	@Override
+	public Result doWork() {
+		Logger.d(TAG, "start MatchWorker");
+		try {
+			matchBuckets(getApplicationContext());
+		} catch (IOException | SQLiteException e) {
+			Logger.e(TAG, e);
+			return Result.retry();
+		}
+		Logger.d(TAG, "MatchWorker finished with success");
+		return Result.success();
+	}
+
+	/**
+	 * Matches the staged batches in order and commits them, batches that are not staged yet are left to the next run.
+	 */
+	static void matchBuckets(Context context) throws IOException {
+		AppConfigManager appConfigManager = AppConfigManager.getInstance(context);
+		Database database = new Database(context);
+		ExposeeHashStore exposeeHashStore = new ExposeeHashStore(context);
+		ExposureEngine exposureEngine = new ExposureEngine(context);
+
+		synchronized (SyncWorker.SYNC_LOCK) {
+			long nextBatchReleaseTime = SyncWorker.getNextBatchReleaseTime(appConfigManager);
+			long retentionStart = SyncWorker.getRetentionStart(nextBatchReleaseTime);
+
+			// load the local hashes once, each batch only considers the entries recorded before its release
+			long lastReceivedHashId = database.getLastReceivedBtLocHashId();
+			SortedHashIndex localHashes = database.getReceivedBtLocHashIndex(retentionStart, 0, lastReceivedHashId);
+			TimePartitionedHashIndex localPartitions = TimePartitionedHashIndex.fromIndex(localHashes);
+
+			// hashes received since the last run are checked against the buckets that were already downloaded
+			SortedHashIndex lateHashes = database.getReceivedBtLocHashIndex(retentionStart,
+					appConfigManager.getLastMatchedReceivedHashId(), lastReceivedHashId);
+			if (lateHashes.size() > 0) {
+				HashMatcher lateMatcher = new HashMatcher(lateHashes);
+				exposeeHashStore.match(lateMatcher);
+				if (exposureEngine.addMatchedHashes(lateMatcher.getMatchedHashes())) {
+					BroadcastHelper.sendUpdateBroadcast(context);
+				}
+			}
+			// only advanced once the late matches are persisted, otherwise the next run checks the hashes again. While a
+			// filter of a skipped bucket reports a positive or a stored batch lacks the shards of a visited region the
+			// hashes stay late, until a sync fetched them.
+			List<String> regions = appConfigManager.isBucketRegionShardingEnabled()
+								   ? database.getVisitedRegions(retentionStart)
+								   : null;
+			if (exposeeHashStore.getFilterPositives(lateHashes).isEmpty() &&
+					(regions == null || exposeeHashStore.getBatchesMissingRegions(regions).isEmpty())) {
+				appConfigManager.setLastMatchedReceivedHashId(lastReceivedHashId);
+			}
+
+			// batches matched by an earlier, failed run are committed without matching them again
+			BatchCommitter committer = new BatchCommitter(context, database, nextBatchReleaseTime);
+			committer.commitReadyBatches();
+			for (long batchReleaseTime = nextBatchReleaseTime;
+				 batchReleaseTime < System.currentTimeMillis();
+				 batchReleaseTime += BATCH_LENGTH) {
+				SyncedBatch downloaded = committer.getDownloaded(batchReleaseTime);
+				if (downloaded == null) {
+					continue;
+				}
+				ExposeeBucket bucket = ExposeeBucket.fromStore(batchReleaseTime, downloaded.getNumberOfExposeeHashes(),
+						downloaded.getContentHash(), exposeeHashStore);
+				if (bucket == null) {
+					// no longer in the store, the next sync downloads it again
+					continue;
+				}
+				HashMatcher matcher = new HashMatcher(localHashes)
+						.setTimeWindow(SyncWorker.getRetentionStart(batchReleaseTime), batchReleaseTime);
+				int numberOfExposeeHashes = bucket.match(matcher, localPartitions);
+				Logger.d(TAG, "matched batch " + batchReleaseTime + " with " + numberOfExposeeHashes + " exposee hashes");
+				if (exposureEngine.addMatchedHashes(matcher.getMatchedHashes())) {
+					BroadcastHelper.sendUpdateBroadcast(context);
+				}
+				committer.add(SyncedBatch.matched(batchReleaseTime, numberOfExposeeHashes, matcher.getMatchCount(),
+						bucket.getContentHash()));
+			}
+
+			database.removeOldData();
+			exposeeHashStore.removeBatchesBefore(
+					new DayDate().subtractDays(CryptoModule.NUMBER_OF_DAYS_TO_KEEP_DATA).getStartOfDayTimestamp());
+
+			appConfigManager.setLastSyncDate(System.currentTimeMillis());
+		}
+	}
+
+}
@@ -17,8 +17,7 @@ import androidx.work.*;
 import java.io.IOException;
 import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Random;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -30,7 +29,11 @@ import org.dpppt.android.sdk.internal.backend.BackendBucketRepository;
 import org.dpppt.android.sdk.internal.backend.ServerTimeOffsetException;
 import org.dpppt.android.sdk.internal.backend.StatusCodeException;
 import org.dpppt.android.sdk.internal.backend.SyncErrorState;
+import org.dpppt.android.sdk.internal.crypto.CryptoModule;
 import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.database.models.SyncedBatch;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
 import org.dpppt.android.sdk.internal.logger.Logger;
 
 import static org.dpppt.android.sdk.internal.backend.BackendBucketRepository.BATCH_LENGTH;
@@ -39,25 +42,77 @@ public class SyncWorker extends Worker {
 
 	private static final String TAG = "SyncWorker";
 	private static final String WORK_TAG = "org.dpppt.android.sdk.internal.SyncWorker";
+	// prefix of the two alternating unique names of the release aligned syncs
+	private static final String WORK_NAME_ALIGNED = WORK_TAG + ".aligned";
+	private static final String WORK_NAME_FALLBACK = WORK_TAG + ".fallback";
+
+	static final long MAX_SYNC_JITTER = TimeUnit.MINUTES.toMillis(15);
+	// only re-arms the aligned schedule if it was lost, e.g. after the app was force stopped
+	private static final long FALLBACK_SYNC_INTERVAL_HOURS = 12;
+
+	/**
+	 * Keeps the download and match stages from committing batches concurrently.
+	 */
+	static final Object SYNC_LOCK = new Object();
 
 	private static PublicKey bucketSignaturePublicKey;
 
 	public static void startSyncWorker(Context context) {
-		Constraints constraints = new Constraints.Builder()
-				.setRequiredNetworkType(NetworkType.CONNECTED)
-				.build();
+		WorkManager workManager = WorkManager.getInstance(context);
+		// replaced by the release aligned schedule
+		workManager.cancelUniqueWork(WORK_TAG);
+
+		PeriodicWorkRequest periodicWorkRequest =
+				new PeriodicWorkRequest.Builder(SyncWorker.class, FALLBACK_SYNC_INTERVAL_HOURS, TimeUnit.HOURS)
+						.setConstraints(getConstraints())
+						.addTag(WORK_TAG)
+						.build();
+		workManager.enqueueUniquePeriodicWork(WORK_NAME_FALLBACK, ExistingPeriodicWorkPolicy.KEEP, periodicWorkRequest);
+
+		scheduleNextSync(workManager);
+	}
 
-		PeriodicWorkRequest periodicWorkRequest = new PeriodicWorkRequest.Builder(SyncWorker.class, 15, TimeUnit.MINUTES)
-				.setConstraints(constraints)
+	/**
+	 * Enqueues a sync shortly after the next batch release. Consecutive releases alternate between two unique work names,
+	 * so a running sync never replaces or appends to its own work, and an already scheduled sync for the same release is
+	 * kept.
+	 */
+	private static void scheduleNextSync(WorkManager workManager) {
+		long now = System.currentTimeMillis();
+		long nextBatchReleaseTime = now - (now % BATCH_LENGTH) + BATCH_LENGTH;
+		long delay = getSyncDelay(now, Math.random());
+		OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SyncWorker.class)
+				.setConstraints(getConstraints())
+				.setInitialDelay(delay, TimeUnit.MILLISECONDS)
+				.addTag(WORK_TAG)
 				.build();
+		workManager.enqueueUniqueWork(getAlignedWorkName(nextBatchReleaseTime), ExistingWorkPolicy.KEEP, workRequest);
+		Logger.d(TAG, "next sync in " + delay / 1000 + "s");
+	}
 
-		WorkManager workManager = WorkManager.getInstance(context);
-		workManager.enqueueUniquePeriodicWork(WORK_TAG, ExistingPeriodicWorkPolicy.KEEP, periodicWorkRequest);
+	/**
+	 * @param jitter random value in [0, 1), spreads the downloads of all devices over {@link #MAX_SYNC_JITTER}
+	 * @return the delay from now until the sync after the next batch release
+	 */
+	static long getSyncDelay(long now, double jitter) {
+		long nextBatchReleaseTime = now - (now % BATCH_LENGTH) + BATCH_LENGTH;
+		return nextBatchReleaseTime - now + (long) (jitter * MAX_SYNC_JITTER);
+	}
+
+	static String getAlignedWorkName(long batchReleaseTime) {
+		return WORK_NAME_ALIGNED + "." + (batchReleaseTime / BATCH_LENGTH % 2);
+	}
+
+	private static Constraints getConstraints() {
+		return new Constraints.Builder()
+				.setRequiredNetworkType(NetworkType.CONNECTED)
+				.build();
 	}
 
 	public static void stopSyncWorker(Context context) {
 		WorkManager workManager = WorkManager.getInstance(context);
 		workManager.cancelAllWorkByTag(WORK_TAG);
+		MatchWorker.stopMatchWorker(context);
 	}
 
 	public SyncWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
@@ -79,20 +134,50 @@ public class SyncWorker extends Worker {
 		TracingService.scheduleNextServerRestart(context);
 
 		try {
-			doSync(context);
+			stageBuckets(context);
 		} catch (IOException | StatusCodeException | ServerTimeOffsetException | SignatureException | SQLiteException e) {
 			Logger.d(TAG, "SyncWorker finished with exception " + e.getMessage());
 			return Result.retry();
+		} finally {
+			// scheduled from every run, retries included, so the next release is never missed
+			scheduleNextSync(WorkManager.getInstance(context));
 		}
 		Logger.d(TAG, "SyncWorker finished with success");
 		return Result.success();
 	}
 
+	/**
+	 * Downloads and matches all pending batches right away.
+	 */
 	public static void doSync(Context context)
 			throws IOException, StatusCodeException, ServerTimeOffsetException, SQLiteException, SignatureException {
+		doSync(context, true);
+	}
+
+	/**
+	 * Stages the pending buckets and leaves the matching to the {@link MatchWorker}.
+	 */
+	static void stageBuckets(Context context)
+			throws IOException, StatusCodeException, ServerTimeOffsetException, SQLiteException, SignatureException {
+		try {
+			doSync(context, false);
+		} finally {
+			// match whatever was staged, even if some batches are still missing
+			MatchWorker.startMatchWorker(context);
+		}
+	}
+
+	/**
+	 * @param match false to only stage the buckets in the {@link ExposeeHashStore}, leaving the matching to the
+	 * {@link MatchWorker}
+	 */
+	static void doSync(Context context, boolean match)
+			throws IOException, StatusCodeException, ServerTimeOffsetException, SQLiteException, SignatureException {
 		try {
-//			testMatching(context);
-			doSyncInternal(context);
+			downloadBuckets(context);
+			if (match) {
+				MatchWorker.matchBuckets(context);
+			}
 			Logger.i(TAG, "synced");
 			AppConfigManager.getInstance(context).setLastSyncNetworkSuccess(true);
 			SyncErrorState.getInstance().setSyncError(null);
@@ -118,9 +203,30 @@ public class SyncWorker extends Worker {
 		}
 	}
 
-	private static void doSyncInternal(Context context) throws IOException, StatusCodeException, ServerTimeOffsetException {
+	static long getNextBatchReleaseTime(AppConfigManager appConfigManager) {
+		long lastLoadedBatchReleaseTime = appConfigManager.getLastLoadedBatchReleaseTime();
+		if (lastLoadedBatchReleaseTime <= 0 || lastLoadedBatchReleaseTime % BATCH_LENGTH != 0) {
+			long now = System.currentTimeMillis();
+			return now - (now % BATCH_LENGTH);
+		} else {
+			return lastLoadedBatchReleaseTime + BATCH_LENGTH;
+		}
+	}
+
+	/**
+	 * @return the time of the oldest local hashes that can match the given batch or later ones
+	 */
+	static long getRetentionStart(long batchReleaseTime) {
+		return batchReleaseTime - BATCH_LENGTH - TimeUnit.DAYS.toMillis(CryptoModule.NUMBER_OF_DAYS_TO_KEEP_DATA);
+	}
+
+	/**
+	 * Stages the buckets of all pending batches in the {@link ExposeeHashStore} and checkpoints them as downloaded.
+	 */
+	private static void downloadBuckets(Context context)
+			throws IOException, StatusCodeException, ServerTimeOffsetException {
 		AppConfigManager appConfigManager = AppConfigManager.getInstance(context);
-		appConfigManager.updateFromDiscoverySynchronous();
+		appConfigManager.updateFromDiscovery();
 		ApplicationInfo appConfig = appConfigManager.getAppConfig();
 
 		Database database = new Database(context);
@@ -128,179 +234,70 @@ public class SyncWorker extends Worker {
 //		database.generateContactsFromHandshakes(context);
 //		appConfigManager.setLastLoadedBatchReleaseTime(System.currentTimeMillis()-BATCH_LENGTH*100);
 
-		long lastLoadedBatchReleaseTime = appConfigManager.getLastLoadedBatchReleaseTime();
-		long nextBatchReleaseTime;
-		if (lastLoadedBatchReleaseTime <= 0 || lastLoadedBatchReleaseTime % BATCH_LENGTH != 0) {
-			long now = System.currentTimeMillis();
-			nextBatchReleaseTime = now - (now % BATCH_LENGTH);
-		} else {
-			nextBatchReleaseTime = lastLoadedBatchReleaseTime + BATCH_LENGTH;
-		}
-
-		BackendBucketRepository backendBucketRepository =
-				new BackendBucketRepository(context, appConfig.getBucketBaseUrl(), bucketSignaturePublicKey);
-
-		for (long batchReleaseTime = nextBatchReleaseTime;
-			 batchReleaseTime < System.currentTimeMillis();
-			 batchReleaseTime += BATCH_LENGTH) {
-			HashSet<String> infectedHashes = new HashSet<>();
-			System.out.println("Getting exposed hashes from server");
-
-			infectedHashes.addAll(backendBucketRepository.getExposeeHashes(batchReleaseTime));
-			System.out.println("Received:"+ infectedHashes);
-			int numberOfMatches = 0;
-			ArrayList<String> receivedHashes = database.getReceivedBtLocHashes();
-			for(String hash: receivedHashes){
-				if(infectedHashes.contains(hash)){
-					numberOfMatches ++;
+		synchronized (SYNC_LOCK) {
+			long nextBatchReleaseTime = getNextBatchReleaseTime(appConfigManager);
+			long retentionStart = getRetentionStart(nextBatchReleaseTime);
+
+			BackendBucketRepository backendBucketRepository =
+					new BackendBucketRepository(context, appConfig.getBucketBaseUrl(), bucketSignaturePublicKey);
+			ExposeeHashStore exposeeHashStore = new ExposeeHashStore(context);
+
+			// batches matched or staged by an earlier sync are not downloaded again
+			BatchCommitter committer = new BatchCommitter(context, database, nextBatchReleaseTime);
+			List<Long> batchesToFetch = new ArrayList<>();
+			for (long batchReleaseTime = nextBatchReleaseTime;
+				 batchReleaseTime < System.currentTimeMillis();
+				 batchReleaseTime += BATCH_LENGTH) {
+				if (!committer.isSynced(batchReleaseTime) &&
+						(committer.getDownloaded(batchReleaseTime) == null || !exposeeHashStore.contains(batchReleaseTime))) {
+					batchesToFetch.add(batchReleaseTime);
 				}
 			}
-			if(numberOfMatches>0){
-				// TODO exposure calculation
-				System.out.println("YOU MAY BE EXPOSED");
-				BroadcastHelper.sendUpdateBroadcast(context);
-			}
-			appConfigManager.setLastLoadedBatchReleaseTime(batchReleaseTime);
-		}
 
-		database.removeOldData();
-
-		appConfigManager.setLastSyncDate(System.currentTimeMillis());
-	}
-	public static void testMatching(Context context) {
-		try {
-			System.out.println("In Testing");
-			AppConfigManager appConfigManager = AppConfigManager.getInstance(context);
-			appConfigManager.updateFromDiscoverySynchronous();
-			ApplicationInfo appConfig = appConfigManager.getAppConfig();
-			Database database = new Database(context);
-			BackendBucketRepository backendBucketRepository = new BackendBucketRepository(context, appConfig.getBucketBaseUrl(), bucketSignaturePublicKey);
-//			}appConfigManager.setLastLoadedBatchReleaseTime(System.currentTimeMillis()-BATCH_LENGTH*2);
-
-			// Test time to fetch X hashes from database
-			int testIterations = 20;
-			long noTestHashes = database.getTestHashesCount();
-			System.out.println("Number of local hashes" + noTestHashes);
-			if(noTestHashes<5000){
-				database.addTestHashes(generateTestHashes(5000-noTestHashes, 10));
-			}
-			boolean testing = true;
-			if(testing){
-				ArrayList<String> test = database.getTestHashes(2000);
-				System.out.println(test.size()+" "+test.get(0)+" "+test.get(10));
-//				backendBucketRepository.getTestExposeeHashes(0);
-//				return;
-			}
-			ArrayList<ArrayList<String>> dbHashes = new ArrayList<>();
-			ArrayList<Double> dbFetchTimes = new ArrayList<>();
-			System.out.println("\nAverage Time to fetch hashes from database ("+testIterations+"iterations)");
-			System.out.println("#\tns\tms:");
-			double fetchDbAvg;
-			ArrayList<String> receivedHashes;
-			for(int j = 1000;j<=3000;j+=1000) {
-				fetchDbAvg = 0;
-				receivedHashes = null;
-				for (int i = 0; i < testIterations; i++){
-					long fetchDbStart = System.nanoTime();
-					receivedHashes = database.getTestHashes(j);
-					long fetchDbEnd = System.nanoTime();
-					fetchDbAvg += (fetchDbEnd - fetchDbStart);
-//					System.out.print(fetchDbEnd - fetchDbStart + " ");
+			// local hashes can only match exposee hashes uploaded from the same location
+			List<String> regions = appConfigManager.isBucketRegionShardingEnabled()
+								   ? database.getVisitedRegions(retentionStart)
+								   : null;
+			// the stored batches only have the shards of the regions visited when they were downloaded, local hashes
+			// recorded in a region visited since can only match them once its shards are merged in
+			if (regions != null) {
+				for (long batchReleaseTime : exposeeHashStore.getBatchesMissingRegions(regions)) {
+					backendBucketRepository.addMissingShards(batchReleaseTime, regions, exposeeHashStore);
 				}
-				fetchDbAvg = fetchDbAvg / testIterations;
-				System.out.println(receivedHashes.size() + " " + (fetchDbAvg)+" "+String.format("%.4f",(fetchDbAvg)/1000000));
-				dbHashes.add(receivedHashes);
-				dbFetchTimes.add(fetchDbAvg);
 			}
-//			1000 500000 1308022.8333333333 1.3080 0
-//			1000 750000 143854.12777777776 0.1439 0
-//			1000 1000000 98074.63759259258 0.0981 0
-//			2000 500000 179727.43333333332 0.1797 0
-//			2000 750000 210560.4477777778 0.2106 0
-//			2000 1000000 188352.08159259259 0.1884 0
-//			3000 500000 273008.6 0.2730 0
-//			3000 750000 350534.32 0.3505 0
-//			3000 1000000 307189.7106666667 0.3072 0
-
-
-			// Test time to fetch Y hashes from server
-			ArrayList<HashSet<String>> serverHashes = new ArrayList<>();
-			ArrayList<Double> serverFetchTimes = new ArrayList<>();
-
-			double fetchServerAvg;
-			HashSet<String> infectedHashes = null;
-			for(int j = 500000;j<=1000000;j+=250000) {
-				fetchServerAvg = 0;
-//				Thread.sleep(2000);
-				for (int i = 0; i < testIterations; i++) {
-					infectedHashes = null;
-					Thread.sleep(1000);
-					long fetchServerStart = System.nanoTime();
-					infectedHashes = backendBucketRepository.getTestExposeeHashes(j);
-					long fetchServerEnd = System.nanoTime();
-					fetchServerAvg += (fetchServerEnd - fetchServerStart);
-//					System.out.print(fetchDbEnd - fetchDbStart + " ");
+			// a bucket skipped by its filter is fetched once a hash recorded later is a positive, the match worker checks
+			// the late hashes against it then
+			if (exposeeHashStore.hasFilters()) {
+				SortedHashIndex lateHashes = database.getReceivedBtLocHashIndex(retentionStart,
+						appConfigManager.getLastMatchedReceivedHashId(), database.getLastReceivedBtLocHashId());
+				for (long batchReleaseTime : exposeeHashStore.getFilterPositives(lateHashes)) {
+					backendBucketRepository.getExposeeBucket(batchReleaseTime, regions, exposeeHashStore);
 				}
-				fetchServerAvg = fetchServerAvg / testIterations;
-				serverHashes.add(infectedHashes);
-				serverFetchTimes.add(fetchServerAvg);
-			}
-			System.out.println("\nAverage Time to fetch hashes from server ("+testIterations+"iterations)");
-			System.out.println("#\tns\tms:");
-			for(int i=0;i<serverFetchTimes.size();i++){
-				System.out.println(serverHashes.get(i).size() + " " + serverFetchTimes.get(i)+" "+String.format("%.4f",(serverFetchTimes.get(i)/1000000)));
 			}
 
-			// Test time to match X hashes from database with Y hashes server
-			System.out.println("\nAverage Time to match #X local hashes with #Y hashes from server ("+testIterations+"iterations)");
-			System.out.println("#X\t#Y\tns\tms\t#matches:");
-			double matchAvg;
-			int numberOfMatches;
-			for(ArrayList<String> dbHashList: dbHashes){
-				numberOfMatches = 0;
-				matchAvg = 0;
-				for(HashSet<String> serverHashList: serverHashes){
-					for(int i = 0;i<testIterations;i++) {
-						long matchStart = System.nanoTime();
-						numberOfMatches = 0;
-						for (String hash : dbHashList) {
-							if (serverHashList.contains(hash)) {
-								numberOfMatches++;
-							}
-						}
-						long matchEnd = System.nanoTime();
-						matchAvg += (matchEnd - matchStart);
-					}
-					matchAvg = matchAvg/30;
-					System.out.println(dbHashList.size()+" "+serverHashList.size()+" "+matchAvg+" "+String.format("%.4f",matchAvg/1000000)+" "+numberOfMatches);
-				}
+			BucketPipeline.BucketFetcher fetcher;
+			if (appConfigManager.isBucketFilterModeEnabled()) {
+				SortedHashIndex localHashes =
+						database.getReceivedBtLocHashIndex(retentionStart, 0, database.getLastReceivedBtLocHashId());
+				fetcher = batchReleaseTime -> backendBucketRepository
+						.getExposeeBucketWithFilter(batchReleaseTime, localHashes, regions, exposeeHashStore);
+			} else {
+				fetcher = batchReleaseTime -> backendBucketRepository
+						.getExposeeBucket(batchReleaseTime, regions, exposeeHashStore);
 			}
-		} catch (StatusCodeException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			// download the next batches while the current one is checkpointed, in parallel when catching up
+			BucketPipeline pipeline = new BucketPipeline(fetcher, appConfigManager.getBucketPrefetchDepth(),
+					appConfigManager.getBucketFetchParallelism());
+			pipeline.run(batchesToFetch, bucket -> {
+				if (bucket.isSkipped()) {
+					// the filter rules out all local hashes, there is nothing left to match
+					committer.add(SyncedBatch.matched(bucket.getBatchReleaseTime(), bucket.getCount(), 0, null));
+				} else {
+					committer.addDownloaded(SyncedBatch.downloaded(bucket.getBatchReleaseTime(), bucket.getCount(),
+							bucket.getContentHash()));
+				}
+			});
 		}
-//		catch (InterruptedException e) {
-//			e.printStackTrace();
-//		}
-	}
-
-	private static ArrayList<String> generateTestHashes(long count, int hashBytes) {
-		char[] hexDigits = {'0', '1', '2', '3', '4', '5',
-				'6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
-		Random random = new Random();
-		ArrayList<String> randomHashes = new ArrayList<>();
-		for (int j = 0; j < count; j++){
-			StringBuffer sb = new StringBuffer();
-			for (int i = 0; i < hashBytes*2; i++) {
-				sb.append(hexDigits[random.nextInt(hexDigits.length)]);
-			}
-			randomHashes.add(sb.toString());
-//			System.out.println(sb.toString());
-	}
-	return randomHashes;
 	}
 
 }
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.security.crypto.EncryptedSharedPreferences;
+import androidx.security.crypto.MasterKeys;
+import androidx.work.*;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dpppt.android.sdk.DP3T;
+import org.dpppt.android.sdk.backend.ResponseCallback;
+import org.dpppt.android.sdk.backend.models.ExposeeAuthMethod;
+import org.dpppt.android.sdk.backend.models.ExposeeAuthMethodAuthorization;
+import org.dpppt.android.sdk.backend.models.ExposeeAuthMethodJson;
+import org.dpppt.android.sdk.internal.backend.BackendReportRepository;
+import org.dpppt.android.sdk.internal.backend.HotspotShareBatch;
+import org.dpppt.android.sdk.internal.backend.StatusCodeException;
+import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
+import org.dpppt.android.sdk.internal.crypto.CryptoModule;
+import org.dpppt.android.sdk.internal.crypto.HotspotVectorBatch;
+import org.dpppt.android.sdk.internal.database.Database;
+import org.dpppt.android.sdk.internal.database.models.PendingUpload;
+import org.dpppt.android.sdk.internal.logger.Logger;
+import org.dpppt.android.sdk.internal.util.Base64Util;
+import org.dpppt.android.sdk.internal.util.DayDate;
+import org.dpppt.android.sdk.internal.util.Json;
+
+import static org.dpppt.android.sdk.internal.backend.BackendReportRepository.SERVER_1;
+import static org.dpppt.android.sdk.internal.backend.BackendReportRepository.SERVER_2;
+
+/**
+ * Drains the outbox of uploads to the report servers. Uploads are stored in the database first, so none is lost if the
+ * process dies or a server is not reachable, and a failed run is retried with exponential backoff. The hotspot share
+ * batches pending for a server are joined into one {@link HotspotShareBatch}, and the uploads of a run are sent one
+ * after the other, so each server is reached over one pooled connection. A report is stored without its secret key, which
+ * is derived again when it is uploaded, and its authentication is kept in encrypted preferences.
+ */
+public class UploadWorker extends Worker {
+
+	private static final String TAG = "UploadWorker";
+	private static final String WORK_TAG = "org.dpppt.android.sdk.internal.UploadWorker";
+	private static final String WORK_NAME_REPORT = WORK_TAG + ".report";
+	private static final long BACKOFF_DELAY_SECONDS = 30;
+
+	static final String TYPE_HOTSPOT_SHARES = "hotspot_shares";
+	private static final String TYPE_REPORT = "report";
+
+	private static final String REPORT_STORE_NAME = "dp3t_report_store";
+	private static final String KEY_REPORT_AUTHORIZATION = "REPORT_AUTHORIZATION";
+	private static final String KEY_REPORT_AUTH_DATA = "REPORT_AUTH_DATA";
+
+	private static final Object UPLOAD_LOCK = new Object();
+
+	/**
+	 * Told about the first attempt to upload the report added by {@link DP3T#sendIAmInfected}.
+	 */
+	private static final AtomicReference<ResponseCallback<Void>> reportCallback = new AtomicReference<>();
+
+	public static void startUploadWorker(Context context) {
+		WorkManager.getInstance(context)
+				.enqueueUniqueWork(WORK_TAG, ExistingWorkPolicy.KEEP, createWorkRequest().build());
+	}
+
+	private static OneTimeWorkRequest.Builder createWorkRequest() {
+		return new OneTimeWorkRequest.Builder(UploadWorker.class)
+				.setConstraints(new Constraints.Builder()
+						.setRequiredNetworkType(NetworkType.CONNECTED)
+						.build())
+				.setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_DELAY_SECONDS, TimeUnit.SECONDS)
+				.addTag(WORK_TAG);
+	}
+
+	/**
+	 * Splits the hotspot vectors into their shares and stores them as a pair of batches, one for each server, then starts
+	 * uploading them.
+	 */
+	public static void addHotspotVectors(Context context, @NonNull HotspotVectorBatch hotspotVectors) {
+		HotspotShareBatch[] shares = hotspotVectors.split(new SecureRandom());
+		new Database(context).addPendingUploadPair(TYPE_HOTSPOT_SHARES, SERVER_1, Base64Util.toBase64(shares[0].encode()),
+				SERVER_2, Base64Util.toBase64(shares[1].encode()), result -> startUploadWorker(context));
+	}
+
+	static void storeHotspotShares(Database database, HotspotVectorBatch hotspotVectors, SecureRandom random) {
+		HotspotShareBatch[] shares = hotspotVectors.split(random);
+		database.addPendingUploadPairSynchronous(TYPE_HOTSPOT_SHARES, SERVER_1, Base64Util.toBase64(shares[0].encode()),
+				SERVER_2, Base64Util.toBase64(shares[1].encode()));
+	}
+
+	/**
+	 * Stores a report, replacing an earlier one that was not uploaded, and uploads it right away. The callback is told
+	 * about the first attempt on the main thread, a failed upload is retried in the background.
+	 */
+	public static void addReport(Context context, @NonNull DayDate onsetDate, ExposeeAuthMethod exposeeAuthMethod,
+			@NonNull ResponseCallback<Void> callback) throws IOException {
+		SharedPreferences.Editor editor = getReportStore(context).edit().clear();
+		if (exposeeAuthMethod instanceof ExposeeAuthMethodAuthorization) {
+			editor.putString(KEY_REPORT_AUTHORIZATION,
+					((ExposeeAuthMethodAuthorization) exposeeAuthMethod).getAuthorization());
+		} else if (exposeeAuthMethod instanceof ExposeeAuthMethodJson) {
+			editor.putString(KEY_REPORT_AUTH_DATA, ((ExposeeAuthMethodJson) exposeeAuthMethod).getValue());
+		}
+		editor.commit();
+		new Database(context).replacePendingUpload(SERVER_1, TYPE_REPORT,
+				Json.toJson(new PendingReport(onsetDate.getStartOfDayTimestamp())));
+		reportCallback.set(callback);
+		// not waiting for the network, so the caller learns about a first attempt that fails offline
+		OneTimeWorkRequest workRequest = createWorkRequest()
+				.setConstraints(Constraints.NONE)
+				.build();
+		WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME_REPORT, ExistingWorkPolicy.REPLACE, workRequest);
+	}
+
+	private static void removeReport(Context context) {
+		new Database(context).removePendingUploads(SERVER_1, TYPE_REPORT, Long.MAX_VALUE);
+		try {
+			getReportStore(context).edit().clear().commit();
+		} catch (IOException e) {
+			Logger.e(TAG, e);
+		}
+	}
+
+	private static SharedPreferences getReportStore(Context context) throws IOException {
+		try {
+			String keyAlias = MasterKeys.getOrCreate(MasterKeys.AES256_GCM_SPEC);
+			return EncryptedSharedPreferences.create(REPORT_STORE_NAME,
+					keyAlias,
+					context,
+					EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
+					EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public UploadWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+		super(context, workerParams);
+	}
+
+	@NonNull
+	@Override
+	public Result doWork() {
+		Logger.d(TAG, "start UploadWorker");
+		try {
+			uploadPending(getApplicationContext());
+		} catch (IOException | StatusCodeException | IllegalStateException | SQLiteException e) {
+			Logger.e(TAG, e);
+			notifyReportCallback(e);
+			return Result.retry();
+		}
+		Logger.d(TAG, "UploadWorker finished with success");
+		return Result.success();
+	}
+
+	/**
+	 * Uploads everything in the outbox. The servers are handled independently, if one fails the others are still drained
+	 * and the first error is thrown at the end.
+	 */
+	static void uploadPending(Context context) throws IOException, StatusCodeException {
+		synchronized (UPLOAD_LOCK) {
+			BackendReportRepository reportRepository =
+					AppConfigManager.getInstance(context).getBackendReportRepository(context);
+			Database database = new Database(context);
+			Exception error = null;
+			try {
+				uploadReport(context, database, reportRepository);
+				uploadHotspotShares(database, reportRepository, SERVER_1);
+			} catch (IOException | StatusCodeException e) {
+				error = e;
+			}
+			try {
+				uploadHotspotShares(database, reportRepository, SERVER_2);
+			} catch (IOException | StatusCodeException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			} else if (error != null) {
+				throw (StatusCodeException) error;
+			}
+		}
+	}
+
+	/**
+	 * Sends all pending share batches of the server as one batch, batches with another vector length are sent separately.
+	 * A share is worthless without the other half of its pair, so a rejected or corrupt batch is dropped together with its
+	 * other half. A half the other server already accepted cannot be withdrawn.
+	 */
+	private static void uploadHotspotShares(Database database, BackendReportRepository reportRepository, int server)
+			throws IOException, StatusCodeException {
+		List<PendingUpload> pending = database.getPendingUploads(server, TYPE_HOTSPOT_SHARES);
+		while (!pending.isEmpty()) {
+			List<HotspotShareBatch> batches = new ArrayList<>();
+			long lastId = -1;
+			for (PendingUpload upload : pending) {
+				HotspotShareBatch batch;
+				try {
+					batch = HotspotShareBatch.decode(Base64Util.fromBase64(upload.getPayload()));
+				} catch (IllegalArgumentException e) {
+					Logger.e(TAG, e);
+					batch = null;
+				}
+				if (batch == null) {
+					if (batches.isEmpty()) {
+						// all uploads before this one are removed already
+						database.removePendingUploadPairs(server, TYPE_HOTSPOT_SHARES, upload.getId());
+						continue;
+					}
+					break;
+				}
+				if (!batches.isEmpty() && batch.getVectorLength() != batches.get(0).getVectorLength()) {
+					break;
+				}
+				lastId = upload.getId();
+				batches.add(batch);
+			}
+			if (!batches.isEmpty()) {
+				try {
+					reportRepository.addHotspotSharesSync(server, HotspotShareBatch.concat(batches));
+					database.removePendingUploads(server, TYPE_HOTSPOT_SHARES, lastId);
+				} catch (StatusCodeException e) {
+					if (!isRejected(e)) {
+						throw e;
+					}
+					Logger.e(TAG, e);
+					database.removePendingUploadPairs(server, TYPE_HOTSPOT_SHARES, lastId);
+				}
+			}
+			pending = database.getPendingUploads(server, TYPE_HOTSPOT_SHARES);
+		}
+	}
+
+	private static void uploadReport(Context context, Database database, BackendReportRepository reportRepository)
+			throws IOException, StatusCodeException {
+		for (PendingUpload report : database.getPendingUploads(SERVER_1, TYPE_REPORT)) {
+			PendingReport pendingReport = Json.safeFromJson(report.getPayload(), PendingReport.class, () -> null);
+			ExposeeAuthMethod exposeeAuthMethod = getReportAuthMethod(context);
+			ExposeeRequest exposeeRequest = null;
+			if (pendingReport != null && pendingReport.onsetDate > 0) {
+				// the key is derived again, it is never stored with the report
+				exposeeRequest = CryptoModule.getInstance(context)
+						.getSecretKeyForPublishing(new DayDate(pendingReport.onsetDate), exposeeAuthMethod);
+			}
+			if (exposeeRequest != null) {
+				try {
+					new ExposeeUploader(context, reportRepository).uploadSync(exposeeRequest, exposeeAuthMethod);
+					removeReport(context);
+					onReportUploaded(context);
+					notifyReportCallback(null);
+					continue;
+				} catch (StatusCodeException e) {
+					if (!isRejected(e)) {
+						throw e;
+					}
+					Logger.e(TAG, e);
+					notifyReportCallback(e);
+				}
+			} else {
+				notifyReportCallback(new IllegalStateException("No secret key for the reported onset date"));
+			}
+			removeReport(context);
+		}
+	}
+
+	/**
+	 * @param throwable the error of the attempt or null if the report was uploaded
+	 */
+	private static void notifyReportCallback(@Nullable Throwable throwable) {
+		ResponseCallback<Void> callback = reportCallback.getAndSet(null);
+		if (callback == null) {
+			return;
+		}
+		new Handler(Looper.getMainLooper()).post(() -> {
+			if (throwable == null) {
+				callback.onSuccess(null);
+			} else {
+				callback.onError(throwable);
+			}
+		});
+	}
+
+	private static ExposeeAuthMethod getReportAuthMethod(Context context) throws IOException {
+		SharedPreferences reportStore = getReportStore(context);
+		String authorization = reportStore.getString(KEY_REPORT_AUTHORIZATION, null);
+		if (authorization != null) {
+			return new ExposeeAuthMethodAuthorization(authorization);
+		}
+		String authData = reportStore.getString(KEY_REPORT_AUTH_DATA, null);
+		return authData != null ? new ExposeeAuthMethodJson(authData) : null;
+	}
+
+	/**
+	 * @return true if the server refused the upload itself, sending it again would not help
+	 */
+	private static boolean isRejected(StatusCodeException e) {
+		return e.getCode() >= 400 && e.getCode() < 500 && e.getCode() != 408 && e.getCode() != 429;
+	}
+
+	private static void onReportUploaded(Context context) {
+		AppConfigManager.getInstance(context).setIAmInfected(true);
+		CryptoModule.getInstance(context).reset();
+		DP3T.stop(context);
+	}
+
+	private static class PendingReport {
+
+		private long onsetDate;
+
+		PendingReport(long onsetDate) {
+			this.onsetDate = onsetDate;
+		}
+
+	}
+
+}
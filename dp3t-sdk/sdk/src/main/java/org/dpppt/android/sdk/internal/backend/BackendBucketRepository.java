@@ -10,13 +10,16 @@
 package org.dpppt.android.sdk.internal.backend;
 
 import android.content.Context;
+import android.text.TextUtils;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.IOException;
 import java.security.PublicKey;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -24,7 +27,16 @@ import org.dpppt.android.sdk.backend.SignatureException;
 import org.dpppt.android.sdk.backend.SignatureVerificationInterceptor;
 import org.dpppt.android.sdk.internal.backend.models.ExposedOverview;
 import org.dpppt.android.sdk.internal.backend.proto.Exposed;
+import org.dpppt.android.sdk.internal.database.models.DeviceLocation;
+import org.dpppt.android.sdk.internal.logger.Logger;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.dpppt.android.sdk.internal.matching.HashBloomFilter;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
+import org.dpppt.android.sdk.util.SignatureUtil;
 
+import io.jsonwebtoken.JwtException;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
 import retrofit2.Response;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
@@ -34,9 +46,22 @@ public class BackendBucketRepository implements Repository {
 
 	public static long BATCH_LENGTH = 2 * 60 * 60 * 1000L; // 2 hours
 
+	private static final String TAG = "BackendBucketRepository";
+
+	private static final int MAX_REGIONS_PER_REQUEST = 64;
+	private static final int HTTP_NOT_MODIFIED = 304;
+
 	private BucketService bucketService;
+	private PublicKey publicKey;
+
+	private interface BucketCall {
+
+		Call<ResponseBody> create(@Nullable String eTag, @Nullable String lastModified);
+
+	}
 
 	public BackendBucketRepository(@NonNull Context context, @NonNull String bucketBaseUrl, @NonNull PublicKey publicKey) {
+		this.publicKey = publicKey;
 		Retrofit bucketRetrofit = new Retrofit.Builder()
 				.baseUrl(bucketBaseUrl)
 				.client(getClientBuilder(context)
@@ -70,42 +95,194 @@ public class BackendBucketRepository implements Repository {
 			throw new StatusCodeException(response.raw());
 		}
 	}
-	public HashSet<String> getExposeeHashes(long batchReleaseTime)
+
+	/**
+	 * Downloads the bucket of a batch into the store without matching it yet, so that downloading and matching can
+	 * overlap. If the store already contains the batch, it is only downloaded again if it was modified.
+	 */
+	public ExposeeBucket getExposeeBucket(long batchReleaseTime, @NonNull ExposeeHashStore store)
 			throws IOException, StatusCodeException, ServerTimeOffsetException, SignatureException {
-		Response<HashSet<String>> response;
-		try {
-			response = bucketService.getExposeeHashes(batchReleaseTime).execute();
-		} catch (RuntimeException re) {
-			if (re.getCause() instanceof InvalidProtocolBufferException) {
-				// unwrap protobuf exception
-				throw (InvalidProtocolBufferException) re.getCause();
-			} else {
-				throw re;
-			}
+		return getExposeeBucket(batchReleaseTime,
+				(eTag, lastModified) -> bucketService.getExposeeHashes(batchReleaseTime, eTag, lastModified), store, null);
+	}
+
+	/**
+	 * Like {@link #getExposeeBucket(long, ExposeeHashStore)}, but only downloads the shards of the given geohash prefixes.
+	 * Exposee hashes can only match local hashes of the same location, so the other shards are not needed. The whole
+	 * bucket is downloaded if no or too many regions are given or the backend does not offer shards. The regions are kept
+	 * with the batch, see {@link #addMissingShards}.
+	 *
+	 * @param regions geohash prefixes of {@link DeviceLocation#REGION_HASH_LENGTH}
+	 */
+	public ExposeeBucket getExposeeBucket(long batchReleaseTime, @Nullable Collection<String> regions,
+			@NonNull ExposeeHashStore store)
+			throws IOException, StatusCodeException, ServerTimeOffsetException, SignatureException {
+		if (regions == null || regions.isEmpty() || regions.size() > MAX_REGIONS_PER_REQUEST) {
+			return getExposeeBucket(batchReleaseTime, store);
 		}
-		if (response.isSuccessful() && response.body() != null) {
-			return response.body();
-		} else {
+		String joinedRegions = TextUtils.join(",", regions);
+		return getExposeeBucket(batchReleaseTime, (eTag, lastModified) -> bucketService
+				.getExposeeHashShards(batchReleaseTime, joinedRegions, eTag, lastModified), store, regions);
+	}
+
+	/**
+	 * Merges the shards of regions that were visited after a batch was downloaded into the stored batch, so that local
+	 * hashes recorded there can still match it. Nothing is downloaded if the store has the whole bucket or all shards
+	 * already. The whole bucket replaces the stored shards if too many regions are missing or the backend does not offer
+	 * shards.
+	 */
+	public void addMissingShards(long batchReleaseTime, @NonNull Collection<String> regions,
+			@NonNull ExposeeHashStore store)
+			throws IOException, StatusCodeException, ServerTimeOffsetException, SignatureException {
+		Set<String> storedRegions = store.getRegions(batchReleaseTime);
+		if (storedRegions == null) {
+			return;
+		}
+		Set<String> missingRegions = new TreeSet<>(regions);
+		missingRegions.removeAll(storedRegions);
+		if (missingRegions.isEmpty()) {
+			return;
+		}
+		if (missingRegions.size() > MAX_REGIONS_PER_REQUEST) {
+			getExposeeBucket(batchReleaseTime, store);
+			return;
+		}
+		Response<ResponseBody> response = bucketService
+				.getExposeeHashShards(batchReleaseTime, TextUtils.join(",", missingRegions), null, null).execute();
+		if (response.code() == 404) {
+			closeErrorBody(response);
+			getExposeeBucket(batchReleaseTime, store);
+			return;
+		}
+		if (!response.isSuccessful() || response.body() == null) {
+			closeErrorBody(response);
 			throw new StatusCodeException(response.raw());
 		}
+		Set<String> mergedRegions = new TreeSet<>(storedRegions);
+		mergedRegions.addAll(missingRegions);
+		try (ResponseBody body = response.body()) {
+			ExposeeBucket.readShards(batchReleaseTime, body.contentType(), body.byteStream(), body.contentLength(), store,
+					mergedRegions);
+		}
 	}
 
-	public HashSet<String> getTestExposeeHashes(int count) throws IOException, StatusCodeException, ServerTimeOffsetException, SignatureException {
-		Response<HashSet<String>> response;
+	/**
+	 * @param regions the regions of the requested shards or null if the whole bucket is requested
+	 */
+	private ExposeeBucket getExposeeBucket(long batchReleaseTime, BucketCall bucketCall, ExposeeHashStore store,
+			@Nullable Collection<String> regions) throws IOException, StatusCodeException {
+		Call<ResponseBody> call = bucketCall.create(null, null);
+		BucketValidators validators = BucketValidators.decode(store.getMetadata(batchReleaseTime));
+		if (validators != null && validators.appliesTo(call.request())) {
+			Response<ResponseBody> response =
+					bucketCall.create(validators.getETag(), validators.getLastModified()).execute();
+			if (response.code() != HTTP_NOT_MODIFIED) {
+				return readExposeeBucket(batchReleaseTime, response, store, regions);
+			}
+			closeErrorBody(response);
+			ExposeeBucket bucket = getNotModifiedBucket(batchReleaseTime, response, validators, store);
+			if (bucket != null) {
+				return bucket;
+			}
+			// the stored bucket could not be verified, download it again
+		}
+		return readExposeeBucket(batchReleaseTime, call.execute(), store, regions);
+	}
+
+	/**
+	 * Reuses the stored bucket if the signature of the response, or of the original download if the backend does not
+	 * repeat it, is valid for the stored content.
+	 *
+	 * @return null if the stored bucket could not be verified
+	 */
+	@Nullable
+	private ExposeeBucket getNotModifiedBucket(long batchReleaseTime, Response<ResponseBody> response,
+			BucketValidators validators, ExposeeHashStore store) throws IOException {
+		String jws = response.headers().get(SignatureUtil.HTTP_HEADER_JWS);
+		if (jws == null) {
+			jws = validators.getJws();
+		}
+		if (jws == null) {
+			return null;
+		}
 		try {
-			response = bucketService.getTestExposeeHashes(count).execute();
-		} catch (RuntimeException re) {
-			if (re.getCause() instanceof InvalidProtocolBufferException) {
-				// unwrap protobuf exception
-				throw (InvalidProtocolBufferException) re.getCause();
-			} else {
-				throw re;
+			if (!Arrays.equals(SignatureUtil.getVerifiedContentHash(jws, publicKey), validators.getContentHash())) {
+				return null;
 			}
+		} catch (JwtException | IllegalArgumentException e) {
+			Logger.e(TAG, e);
+			return null;
 		}
-		if (response.isSuccessful() && response.body() != null) {
-			return response.body();
-		} else {
+		return ExposeeBucket.fromStore(batchReleaseTime, validators.getCount(), validators.getContentHash(), store);
+	}
+
+	private ExposeeBucket readExposeeBucket(long batchReleaseTime, Response<ResponseBody> response,
+			ExposeeHashStore store, @Nullable Collection<String> regions) throws IOException, StatusCodeException {
+		// without shards the whole bucket is downloaded
+		if (regions != null && response.code() == 404) {
+			closeErrorBody(response);
+			return getExposeeBucket(batchReleaseTime, store);
+		}
+		if (!response.isSuccessful() || response.body() == null) {
+			closeErrorBody(response);
+			throw new StatusCodeException(response.raw());
+		}
+		ExposeeBucket bucket;
+		try (ResponseBody body = response.body()) {
+			bucket = ExposeeBucket.read(batchReleaseTime, body.contentType(), body.byteStream(), body.contentLength(), store,
+					regions);
+		}
+		BucketValidators validators = BucketValidators.fromResponse(response.raw(), bucket);
+		if (validators != null) {
+			store.putMetadata(batchReleaseTime, validators.encode());
+		}
+		return bucket;
+	}
+
+	/**
+	 * Releases the connection of a response whose body is not read.
+	 */
+	private static void closeErrorBody(Response<?> response) {
+		if (response.errorBody() != null) {
+			response.errorBody().close();
+		}
+	}
+
+	/**
+	 * Like {@link #getExposeeBucket(long, Collection, ExposeeHashStore)}, but first downloads a {@link HashBloomFilter} of
+	 * the batch and skips the bucket if the filter rules out all local hashes. The local hashes never leave the device. The
+	 * filter of a skipped bucket is kept in the store, so that local hashes recorded later can be checked against it.
+	 */
+	public ExposeeBucket getExposeeBucketWithFilter(long batchReleaseTime, @NonNull SortedHashIndex localHashes,
+			@Nullable Collection<String> regions, @NonNull ExposeeHashStore store)
+			throws IOException, StatusCodeException, ServerTimeOffsetException, SignatureException {
+		HashBloomFilter filter = getExposeeHashFilter(batchReleaseTime);
+		if (filter != null && filter.countPositives(localHashes) == 0) {
+			store.addFilter(batchReleaseTime, filter);
+			return ExposeeBucket.skipped(batchReleaseTime, filter.getCount());
+		}
+		return getExposeeBucket(batchReleaseTime, regions, store);
+	}
+
+	/**
+	 * @return the filter or null if the backend does not provide filters
+	 */
+	private HashBloomFilter getExposeeHashFilter(long batchReleaseTime)
+			throws IOException, StatusCodeException, ServerTimeOffsetException, SignatureException {
+		Response<ResponseBody> response = bucketService.getExposeeHashFilter(batchReleaseTime).execute();
+		if (response.code() == 404) {
+			closeErrorBody(response);
+			return null;
+		}
+		if (!response.isSuccessful() || response.body() == null) {
+			closeErrorBody(response);
 			throw new StatusCodeException(response.raw());
 		}
+		try (ResponseBody body = response.body()) {
+			HashBloomFilter filter = HashBloomFilter.read(body.byteStream());
+			ExposeeBucket.readToEnd(body.byteStream());
+			return filter;
+		}
 	}
+
 }
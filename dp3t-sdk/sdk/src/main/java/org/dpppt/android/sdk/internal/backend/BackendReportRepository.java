@@ -13,13 +13,14 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 
 import java.io.IOException;
-import java.util.ArrayList;
 
 import org.dpppt.android.sdk.backend.ResponseCallback;
 import org.dpppt.android.sdk.backend.models.ExposeeAuthMethod;
 import org.dpppt.android.sdk.backend.models.ExposeeAuthMethodAuthorization;
 import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
 
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
@@ -28,18 +29,28 @@ import retrofit2.converter.gson.GsonConverterFactory;
 
 public class BackendReportRepository implements Repository {
 
+	/**
+	 * The server of reports and of the first hotspot shares.
+	 */
+	public static final int SERVER_1 = 1;
+	/**
+	 * The server of the second hotspot shares.
+	 */
+	public static final int SERVER_2 = 2;
+
 	private ReportService reportService1;
 	private ReportService reportService2;
 
 	public BackendReportRepository(@NonNull Context context, String reportBaseUrl1,String reportBaseUrl2) {
+		OkHttpClient client = getClientBuilder(context).build();
 		Retrofit reportRetrofit1 = new Retrofit.Builder()
 				.baseUrl(reportBaseUrl1)
-				.client(getClientBuilder(context).build())
+				.client(client)
 				.addConverterFactory(GsonConverterFactory.create())
 				.build();
 		Retrofit reportRetrofit2 = new Retrofit.Builder()
 				.baseUrl(reportBaseUrl2)
-				.client(getClientBuilder(context).build())
+				.client(client)
 				.addConverterFactory(GsonConverterFactory.create())
 				.build();
 
@@ -63,60 +74,43 @@ public class BackendReportRepository implements Repository {
 			}
 		});
 	}
-	public void sendHotspotVectors(ArrayList<Integer> hotspotRandomVectorA,ArrayList<Integer> hotspotRandomVectorB, @NonNull ResponseCallback<Void> responseCallback){
-		
-		reportService2.addHotspot(hotspotRandomVectorB).enqueue(new Callback<Void>() {
-			@Override
-			public void onResponse(@NonNull Call<Void> call, @NonNull Response<Void> response) {
-				if (response.isSuccessful()) {
-					responseCallback.onSuccess(null);
-				} else {
-					onFailure(call, new StatusCodeException(response.raw()));
-				}
-			}
-
-			@Override
-			public void onFailure(@NonNull Call<Void> call, @NonNull Throwable throwable) {
-				responseCallback.onError(throwable);
-			}
-		});
-		reportService1.addHotspot(hotspotRandomVectorA).enqueue(new Callback<Void>() {
-			@Override
-			public void onResponse(@NonNull Call<Void> call, @NonNull Response<Void> response) {
-				if (response.isSuccessful()) {
-					responseCallback.onSuccess(null);
-				} else {
-					onFailure(call, new StatusCodeException(response.raw()));
-				}
-			}
-
-			@Override
-			public void onFailure(@NonNull Call<Void> call, @NonNull Throwable throwable) {
-				responseCallback.onError(throwable);
-			}
-		});
-
+	/**
+	 * Posts a batch of hotspot share vectors to one of the report servers.
+	 *
+	 * @param server {@link #SERVER_1} or {@link #SERVER_2}
+	 */
+	public void addHotspotSharesSync(int server, @NonNull HotspotShareBatch hotspotShares)
+			throws IOException, StatusCodeException {
+		RequestBody body = RequestBody.create(HotspotShareBatch.CONTENT_TYPE, hotspotShares.encode());
+		Response<Void> response = getReportService(server).addHotspot(body).execute();
+		if (!response.isSuccessful()) {
+			throw new StatusCodeException(response.raw());
+		}
 	}
-	public void addExposee(@NonNull ExposeeRequest exposeeRequest, ExposeeAuthMethod exposeeAuthMethod,
-			@NonNull ResponseCallback<Void> responseCallback) {
+
+	/**
+	 * Posts one page of a report, see {@link ExposeeHashesRequestBody}.
+	 */
+	public void addExposeeHashesSync(@NonNull ExposeeHashesRequestBody exposeeHashes, ExposeeAuthMethod exposeeAuthMethod)
+			throws IOException, StatusCodeException {
 		String authorizationHeader = exposeeAuthMethod instanceof ExposeeAuthMethodAuthorization
 									 ? ((ExposeeAuthMethodAuthorization) exposeeAuthMethod).getAuthorization()
 									 : null;
-		reportService1.addExposee(exposeeRequest, authorizationHeader).enqueue(new Callback<Void>() {
-			@Override
-			public void onResponse(@NonNull Call<Void> call, @NonNull Response<Void> response) {
-				if (response.isSuccessful()) {
-					responseCallback.onSuccess(null);
-				} else {
-					onFailure(call, new StatusCodeException(response.raw()));
-				}
-			}
+		Response<Void> response = reportService1.addExposeeHashes(exposeeHashes, authorizationHeader).execute();
+		if (!response.isSuccessful()) {
+			throw new StatusCodeException(response.raw());
+		}
+	}
 
-			@Override
-			public void onFailure(@NonNull Call<Void> call, @NonNull Throwable throwable) {
-				responseCallback.onError(throwable);
-			}
-		});
+	private ReportService getReportService(int server) {
+		switch (server) {
+			case SERVER_1:
+				return reportService1;
+			case SERVER_2:
+				return reportService2;
+			default:
+				throw new IllegalArgumentException("Unknown report server " + server);
+		}
 	}
 
 	public void addExposeeSync(@NonNull ExposeeRequest exposeeRequest, ExposeeAuthMethod exposeeAuthMethod) throws IOException {
@@ -13,13 +13,13 @@ import org.dpppt.android.sdk.internal.backend.models.ExposedOverview;
 import org.dpppt.android.sdk.internal.backend.proto.Exposed;
 import org.dpppt.android.sdk.internal.gatt.GattConnectionTask;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.Headers;
 import retrofit2.http.Path;
+import retrofit2.http.Streaming;
 
 interface BucketService {
 
@@ -27,11 +27,31 @@ interface BucketService {
 	@GET("v1/exposed/{batchReleaseTime}")
 	Call<Exposed.ProtoExposedList> getExposees(@Path("batchReleaseTime") long batchReleaseTime);
 
-	@Headers("Accept: application/json")
+	@Streaming
+	@Headers({
+			"Accept: application/x-protobuf, application/json;q=0.9",
+			"Accept-Hash-Encoding: delta-varint, time-partitioned"
+	})
 	@GET("v1/exposedHashes/{batchReleaseTime}")
-	Call<HashSet<String>> getExposeeHashes(@Path("batchReleaseTime") long batchReleaseTime);
+	Call<ResponseBody> getExposeeHashes(@Path("batchReleaseTime") long batchReleaseTime,
+			@Header("If-None-Match") String eTag, @Header("If-Modified-Since") String lastModified);
+
+	/**
+	 * Like {@link #getExposeeHashes(long, String, String)}, restricted to the hashes uploaded from the given comma
+	 * separated geohash prefixes.
+	 */
+	@Streaming
+	@Headers({
+			"Accept: application/x-protobuf, application/json;q=0.9",
+			"Accept-Hash-Encoding: delta-varint, time-partitioned"
+	})
+	@GET("v1/exposedHashes/{batchReleaseTime}/{regions}")
+	Call<ResponseBody> getExposeeHashShards(@Path("batchReleaseTime") long batchReleaseTime, @Path("regions") String regions,
+			@Header("If-None-Match") String eTag, @Header("If-Modified-Since") String lastModified);
+
+	@Streaming
+	@Headers("Accept: application/x-dp3t-bloom-filter")
+	@GET("v1/exposedHashFilter/{batchReleaseTime}")
+	Call<ResponseBody> getExposeeHashFilter(@Path("batchReleaseTime") long batchReleaseTime);
 
-	@Headers("Accept: application/json")
-	@GET("v1/testExposedHashes/{count}")
-	Call<HashSet<String>> getTestExposeeHashes(@Path("count") int count);
 }
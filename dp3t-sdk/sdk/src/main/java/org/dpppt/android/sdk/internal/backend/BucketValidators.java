@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.dpppt.android.sdk.util.SignatureUtil;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The validators of a stored bucket, so it can be requested conditionally. The signature of the download is kept with
+ * them, a bucket that is not modified is only reused if its signed content hash still matches the stored content.
+ */
+class BucketValidators {
+
+	private static final int VERSION = 1;
+
+	private final String url;
+	private final String eTag;
+	private final String lastModified;
+	private final String jws;
+	private final byte[] contentHash;
+	private final int count;
+
+	private BucketValidators(@NonNull String url, @Nullable String eTag, @Nullable String lastModified,
+			@Nullable String jws, @NonNull byte[] contentHash, int count) {
+		this.url = url;
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+		this.jws = jws;
+		this.contentHash = contentHash;
+		this.count = count;
+	}
+
+	/**
+	 * @return the validators of the response or null if it has none
+	 */
+	@Nullable
+	static BucketValidators fromResponse(@NonNull Response response, @NonNull ExposeeBucket bucket) {
+		String eTag = response.header("ETag");
+		String lastModified = response.header("Last-Modified");
+		if ((eTag == null && lastModified == null) || bucket.getContentHash() == null) {
+			return null;
+		}
+		return new BucketValidators(response.request().url().toString(), eTag, lastModified,
+				response.header(SignatureUtil.HTTP_HEADER_JWS), bucket.getContentHash(), bucket.getCount());
+	}
+
+	@Nullable
+	static BucketValidators decode(@Nullable byte[] data) throws IOException {
+		if (data == null) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readInt() != VERSION) {
+			return null;
+		}
+		String url = in.readUTF();
+		String eTag = readNullableString(in);
+		String lastModified = readNullableString(in);
+		String jws = readNullableString(in);
+		byte[] contentHash = new byte[in.readInt()];
+		in.readFully(contentHash);
+		int count = in.readInt();
+		return new BucketValidators(url, eTag, lastModified, jws, contentHash, count);
+	}
+
+	byte[] encode() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(VERSION);
+		out.writeUTF(url);
+		writeNullableString(out, eTag);
+		writeNullableString(out, lastModified);
+		writeNullableString(out, jws);
+		out.writeInt(contentHash.length);
+		out.write(contentHash);
+		out.writeInt(count);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Validators are only valid for the resource they were sent with, e.g. not for another set of shards.
+	 */
+	boolean appliesTo(@NonNull Request request) {
+		return url.equals(request.url().toString());
+	}
+
+	@Nullable
+	String getETag() {
+		return eTag;
+	}
+
+	@Nullable
+	String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the signature of the download
+	 */
+	@Nullable
+	String getJws() {
+		return jws;
+	}
+
+	byte[] getContentHash() {
+		return contentHash;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	@Nullable
+	private static String readNullableString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeNullableString(DataOutputStream out, @Nullable String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+}
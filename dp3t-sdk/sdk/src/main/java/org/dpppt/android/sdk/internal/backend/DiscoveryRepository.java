@@ -11,11 +11,13 @@ package org.dpppt.android.sdk.internal.backend;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.IOException;
 
 import org.dpppt.android.sdk.backend.ResponseCallback;
 import org.dpppt.android.sdk.internal.backend.models.ApplicationsList;
+import org.dpppt.android.sdk.internal.backend.models.DiscoveryResult;
 
 import retrofit2.Call;
 import retrofit2.Callback;
@@ -25,12 +27,20 @@ import retrofit2.converter.gson.GsonConverterFactory;
 
 public class DiscoveryRepository implements Repository {
 
+	public static final String DISCOVERY_BASE_URL = "https://discovery.dpppt.org/";
+
+	private static final int HTTP_NOT_MODIFIED = 304;
+
 	private DiscoveryService discoveryService;
 
 	public DiscoveryRepository(@NonNull Context context) {
+		this(context, DISCOVERY_BASE_URL);
+	}
+
+	public DiscoveryRepository(@NonNull Context context, @NonNull String discoveryBaseUrl) {
 
 		Retrofit retrofit = new Retrofit.Builder()
-				.baseUrl("https://discovery.dpppt.org/")
+				.baseUrl(discoveryBaseUrl)
 				.client(getClientBuilder(context).build())
 				.addConverterFactory(GsonConverterFactory.create())
 				.build();
@@ -38,18 +48,19 @@ public class DiscoveryRepository implements Repository {
 		discoveryService = retrofit.create(DiscoveryService.class);
 	}
 
-	public void getDiscovery(@NonNull ResponseCallback<ApplicationsList> responseCallback, boolean dev) {
-		//TODO caching for no network connection
-
-		Call<ApplicationsList> call = dev ? discoveryService.getDiscoveryDev() : discoveryService.getDiscovery();
-		call.enqueue(new Callback<ApplicationsList>() {
+	/**
+	 * Loads the discovery, or only revalidates it if the ETag of the cached one is given.
+	 */
+	public void getDiscovery(@NonNull ResponseCallback<DiscoveryResult> responseCallback, boolean dev,
+			@Nullable String eTag) {
+		getDiscoveryCall(dev, eTag).enqueue(new Callback<ApplicationsList>() {
 
 			@Override
 			public void onResponse(@NonNull Call<ApplicationsList> call, @NonNull Response<ApplicationsList> response) {
-				if (response.isSuccessful()) {
-					responseCallback.onSuccess(response.body());
-				} else {
-					onFailure(call, new StatusCodeException(response.raw()));
+				try {
+					responseCallback.onSuccess(toResult(response, eTag));
+				} catch (StatusCodeException e) {
+					onFailure(call, e);
 				}
 			}
 
@@ -60,8 +71,23 @@ public class DiscoveryRepository implements Repository {
 		});
 	}
 
-	public ApplicationsList getDiscoverySync(boolean dev) throws IOException {
-		return (dev ? discoveryService.getDiscoveryDev() : discoveryService.getDiscovery()).execute().body();
+	public DiscoveryResult getDiscoverySync(boolean dev, @Nullable String eTag) throws IOException, StatusCodeException {
+		return toResult(getDiscoveryCall(dev, eTag).execute(), eTag);
+	}
+
+	private Call<ApplicationsList> getDiscoveryCall(boolean dev, @Nullable String eTag) {
+		return dev ? discoveryService.getDiscoveryDev(eTag) : discoveryService.getDiscovery(eTag);
+	}
+
+	private static DiscoveryResult toResult(Response<ApplicationsList> response, @Nullable String eTag)
+			throws StatusCodeException {
+		if (eTag != null && response.code() == HTTP_NOT_MODIFIED) {
+			return new DiscoveryResult(null, eTag);
+		}
+		if (!response.isSuccessful() || response.body() == null) {
+			throw new StatusCodeException(response.raw());
+		}
+		return new DiscoveryResult(response.body(), response.headers().get("ETag"));
 	}
 
 }
@@ -7,19 +7,19 @@
  *
  * SPDX-License-Identifier: MPL-2.0
  */
-
 package org.dpppt.android.sdk.internal.backend;
 
 import org.dpppt.android.sdk.internal.backend.models.ApplicationsList;
 import retrofit2.Call;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 
 interface DiscoveryService {
 
 	@GET("discovery_dev.json")
-	Call<ApplicationsList> getDiscoveryDev();
+	Call<ApplicationsList> getDiscoveryDev(@Header("If-None-Match") String eTag);
 
 	@GET("discovery.json")
-	Call<ApplicationsList> getDiscovery();
+	Call<ApplicationsList> getDiscovery(@Header("If-None-Match") String eTag);
 
 }
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import org.dpppt.android.sdk.internal.backend.proto.Exposed;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.matching.DeltaHashCodec;
+import org.dpppt.android.sdk.internal.matching.ExposeeHashStore;
+import org.dpppt.android.sdk.internal.matching.HashMatcher;
+import org.dpppt.android.sdk.internal.matching.HashSink;
+import org.dpppt.android.sdk.internal.matching.PackedHashes;
+import org.dpppt.android.sdk.internal.matching.SortedHashFile;
+import org.dpppt.android.sdk.internal.matching.TimePartitionedHashIndex;
+import org.dpppt.android.sdk.util.SignatureUtil;
+
+import okhttp3.MediaType;
+
+/**
+ * A downloaded and signature checked bucket of exposee hashes. The hashes are decoded while downloading into a
+ * {@link SortedHashFile} of the {@link ExposeeHashStore}, so the bucket is neither buffered nor materialized on the heap
+ * and matching only probes the local hashes against the file. The file is only open while matching. The SHA-256 of the encoded bucket identifies the download
+ * in the sync checkpoints.
+ */
+public class ExposeeBucket {
+
+	private static final String PROTOBUF_SUBTYPE = "x-protobuf";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// approximate encoded size of a hash, used to size the writer from the content length
+	private static final int JSON_HASH_LENGTH = 23;
+	private static final int DEFAULT_EXPECTED_SIZE = 1024;
+
+	private final long batchReleaseTime;
+	private final ExposeeHashStore store;
+	private final long[] partitionTimes;
+	private final int count;
+	private final byte[] contentHash;
+
+	private ExposeeBucket(long batchReleaseTime, @Nullable ExposeeHashStore store, @Nullable long[] partitionTimes,
+			int count, @Nullable byte[] contentHash) {
+		this.batchReleaseTime = batchReleaseTime;
+		this.store = store;
+		this.partitionTimes = partitionTimes;
+		this.count = count;
+		this.contentHash = contentHash;
+	}
+
+	/**
+	 * A bucket that was not downloaded because its filter rules out all local hashes.
+	 */
+	public static ExposeeBucket skipped(long batchReleaseTime, int count) {
+		return new ExposeeBucket(batchReleaseTime, null, null, count, null);
+	}
+
+	/**
+	 * Reopens a bucket staged in the store by an earlier sync.
+	 *
+	 * @return null if the store does not contain the batch
+	 */
+	@Nullable
+	public static ExposeeBucket fromStore(long batchReleaseTime, int count, @Nullable byte[] contentHash,
+			@NonNull ExposeeHashStore store) throws IOException {
+		if (!store.contains(batchReleaseTime)) {
+			return null;
+		}
+		return new ExposeeBucket(batchReleaseTime, store, store.getPartitionTimes(batchReleaseTime), count, contentHash);
+	}
+
+	/**
+	 * Decodes a bucket from the response stream and adds it to the store.
+	 *
+	 * @param contentLength the length of the encoded bucket or -1 if unknown
+	 * @param regions the regions of the downloaded shards or null if the response is the whole bucket
+	 */
+	static ExposeeBucket read(long batchReleaseTime, @Nullable MediaType contentType, @NonNull InputStream in,
+			long contentLength, @NonNull ExposeeHashStore store, @Nullable Collection<String> regions) throws IOException {
+		return read(batchReleaseTime, contentType, in, contentLength, store, null, regions);
+	}
+
+	/**
+	 * Decodes further shards of a stored bucket from the response stream and merges them into the stored hashes. The
+	 * content hash and count of the returned bucket only cover the new shards.
+	 *
+	 * @param regions the regions of all shards that are stored afterwards
+	 */
+	static ExposeeBucket readShards(long batchReleaseTime, @Nullable MediaType contentType, @NonNull InputStream in,
+			long contentLength, @NonNull ExposeeHashStore store, @NonNull Collection<String> regions) throws IOException {
+		try (SortedHashFile storedFile = store.open(batchReleaseTime)) {
+			if (storedFile == null) {
+				throw new IOException("Batch " + batchReleaseTime + " is no longer stored");
+			}
+			return read(batchReleaseTime, contentType, in, contentLength, store, storedFile, regions);
+		}
+	}
+
+	private static ExposeeBucket read(long batchReleaseTime, @Nullable MediaType contentType, @NonNull InputStream in,
+			long contentLength, @NonNull ExposeeHashStore store, @Nullable SortedHashFile storedFile,
+			@Nullable Collection<String> regions) throws IOException {
+		boolean proto = isProtobuf(contentType);
+		int expectedSize = DEFAULT_EXPECTED_SIZE;
+		if (contentLength >= 0) {
+			expectedSize = (int) Math.min(Integer.MAX_VALUE,
+					contentLength / (proto ? BtLocHash.HASH_LENGTH : JSON_HASH_LENGTH));
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(SignatureUtil.HASH_ALGO);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		long[] storedPartitionTimes = null;
+		if (storedFile != null) {
+			expectedSize += storedFile.size();
+			storedPartitionTimes = store.getPartitionTimes(batchReleaseTime);
+		}
+		SortedHashFile.Writer writer = store.createWriter(batchReleaseTime, expectedSize);
+		try {
+			TimePartitions partitions = new TimePartitions();
+			InputStream content = new UnclosedInputStream(new DigestInputStream(in, digest));
+			int count = read(contentType, content, writer, partitions);
+			// the content hash must cover the whole body like its signature, also what the decoder did not read
+			readToEnd(content);
+			long[] partitionTimes = partitions.getTimes(count);
+			if (storedFile != null) {
+				storedFile.copyTo(writer);
+				if (storedFile.size() > 0) {
+					partitionTimes = count > 0
+									 ? TimePartitions.union(storedPartitionTimes, partitionTimes)
+									 : storedPartitionTimes;
+				}
+			}
+			store.add(batchReleaseTime, writer, partitionTimes, regions);
+			return new ExposeeBucket(batchReleaseTime, store, partitionTimes, count, digest.digest());
+		} catch (IOException | RuntimeException e) {
+			store.discard(writer);
+			throw e;
+		} finally {
+			writer.close();
+		}
+	}
+
+	public long getBatchReleaseTime() {
+		return batchReleaseTime;
+	}
+
+	/**
+	 * @return true if the bucket was not downloaded because its filter rules out all local hashes
+	 */
+	public boolean isSkipped() {
+		return store == null;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the SHA-256 of the encoded bucket or null if it was skipped
+	 */
+	@Nullable
+	public byte[] getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @return true if the backend sent the hashes grouped by time partition
+	 */
+	public boolean isTimePartitioned() {
+		return partitionTimes != null;
+	}
+
+	/**
+	 * @return the number of exposee hashes in the bucket
+	 */
+	public int match(@NonNull HashMatcher matcher) throws IOException {
+		if (store != null) {
+			try (SortedHashFile file = openFile()) {
+				file.probe(matcher);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Like {@link #match(HashMatcher)}, but if the bucket is time partitioned only the local hashes of the same partitions
+	 * are compared.
+	 */
+	public int match(@NonNull HashMatcher matcher, @NonNull TimePartitionedHashIndex localPartitions)
+			throws IOException {
+		if (store != null && partitionTimes != null) {
+			try (SortedHashFile file = openFile()) {
+				file.probe(matcher, localPartitions, partitionTimes);
+			}
+			return count;
+		}
+		return match(matcher);
+	}
+
+	private SortedHashFile openFile() throws IOException {
+		SortedHashFile file = store.open(batchReleaseTime);
+		if (file == null) {
+			throw new IOException("Batch " + batchReleaseTime + " is no longer stored");
+		}
+		return file;
+	}
+
+	/**
+	 * Streams the hashes of an encoded bucket into the sink. The stream is read to its end, so that a signature verified
+	 * there fails before this returns, but the sink has already seen the hashes then.
+	 *
+	 * @return the number of hashes read
+	 */
+	static int read(@Nullable MediaType contentType, @NonNull InputStream in, @NonNull HashSink sink) throws IOException {
+		InputStream content = new UnclosedInputStream(in);
+		int count = read(contentType, content, sink, new TimePartitions());
+		readToEnd(content);
+		return count;
+	}
+
+	/**
+	 * Skips what is left of a response body, its signature is only verified once the end is reached.
+	 */
+	static void readToEnd(@NonNull InputStream in) throws IOException {
+		byte[] rest = new byte[8192];
+		while (in.read(rest) != -1) {
+		}
+	}
+
+	private static int read(@Nullable MediaType contentType, @NonNull InputStream in, @NonNull HashSink sink,
+			@NonNull TimePartitions partitions) throws IOException {
+		if (isProtobuf(contentType)) {
+			return readProtoHashes(CodedInputStream.newInstance(in), sink, partitions);
+		}
+		Charset charset = contentType != null ? contentType.charset(UTF_8) : UTF_8;
+		return readJsonHashes(new InputStreamReader(in, charset), sink);
+	}
+
+	private static boolean isProtobuf(@Nullable MediaType contentType) {
+		return contentType != null && PROTOBUF_SUBTYPE.equals(contentType.subtype());
+	}
+
+	/**
+	 * Reads the {@link Exposed.ProtoExposedHashList} fields by hand, so the hashes are never copied into a ByteString.
+	 */
+	private static int readProtoHashes(CodedInputStream input, HashSink sink, TimePartitions partitions)
+			throws IOException {
+		int count = 0;
+		try {
+			while (true) {
+				int tag = input.readTag();
+				if (tag == 0) {
+					return count;
+				}
+				int fieldNumber = WireFormat.getTagFieldNumber(tag);
+				boolean lengthDelimited = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+				if (lengthDelimited && fieldNumber == Exposed.ProtoExposedHashList.HASHES_FIELD_NUMBER) {
+					int limit = input.pushLimit(input.readRawVarint32());
+					count += PackedHashes.read(input, sink);
+					input.popLimit(limit);
+				} else if (lengthDelimited && fieldNumber == Exposed.ProtoExposedHashList.DELTAHASHES_FIELD_NUMBER) {
+					int limit = input.pushLimit(input.readRawVarint32());
+					count += DeltaHashCodec.read(input, sink);
+					input.popLimit(limit);
+				} else if (lengthDelimited && fieldNumber == Exposed.ProtoExposedHashList.PARTITIONS_FIELD_NUMBER) {
+					int limit = input.pushLimit(input.readRawVarint32());
+					count += readProtoPartition(input, sink, partitions);
+					input.popLimit(limit);
+				} else if (!input.skipField(tag)) {
+					return count;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			throw new InvalidProtocolBufferException(e.getMessage());
+		}
+	}
+
+	private static int readProtoPartition(CodedInputStream input, HashSink sink, TimePartitions partitions)
+			throws IOException {
+		long time = 0;
+		int count = 0;
+		while (true) {
+			int tag = input.readTag();
+			if (tag == 0) {
+				break;
+			}
+			int fieldNumber = WireFormat.getTagFieldNumber(tag);
+			int wireType = WireFormat.getTagWireType(tag);
+			if (wireType == WireFormat.WIRETYPE_VARINT && fieldNumber == Exposed.ProtoHashPartition.TIME_FIELD_NUMBER) {
+				time = input.readInt64();
+			} else if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED &&
+					fieldNumber == Exposed.ProtoHashPartition.HASHES_FIELD_NUMBER) {
+				int limit = input.pushLimit(input.readRawVarint32());
+				count += PackedHashes.read(input, sink);
+				input.popLimit(limit);
+			} else if (!input.skipField(tag)) {
+				break;
+			}
+		}
+		partitions.add(TimePartitionedHashIndex.getPartitionTime(time), count);
+		return count;
+	}
+
+	private static int readJsonHashes(Reader in, HashSink sink) throws IOException {
+		try (JsonReader reader = new JsonReader(in)) {
+			int count = 0;
+			reader.beginArray();
+			while (reader.hasNext()) {
+				BtLocHash hash = BtLocHash.fromHex(reader.nextString());
+				sink.accept(hash.getHigh(), hash.getLow());
+				count++;
+			}
+			reader.endArray();
+			return count;
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			throw new IOException("Unexpected exposee hash format", e);
+		}
+	}
+
+	/**
+	 * Leaves the stream open when a decoder closes its reader, the caller closes the response.
+	 */
+	private static class UnclosedInputStream extends FilterInputStream {
+
+		UnclosedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+	/**
+	 * Collects the time partitions of a bucket while it is read.
+	 */
+	private static class TimePartitions {
+
+		private final TreeSet<Long> times = new TreeSet<>();
+		private int count;
+
+		void add(long time, int count) {
+			times.add(time);
+			this.count += count;
+		}
+
+		/**
+		 * @return the sorted partition times or null if not all hashes of the bucket were partitioned
+		 */
+		@Nullable
+		long[] getTimes(int bucketCount) {
+			if (times.isEmpty() || count != bucketCount) {
+				return null;
+			}
+			return toArray(times);
+		}
+
+		/**
+		 * @return the sorted times of both partitionings or null if the hashes of either were not partitioned
+		 */
+		@Nullable
+		static long[] union(@Nullable long[] times, @Nullable long[] otherTimes) {
+			if (times == null || otherTimes == null) {
+				return null;
+			}
+			TreeSet<Long> union = new TreeSet<>();
+			for (long time : times) {
+				union.add(time);
+			}
+			for (long time : otherTimes) {
+				union.add(time);
+			}
+			return toArray(union);
+		}
+
+		private static long[] toArray(TreeSet<Long> times) {
+			long[] result = new long[times.size()];
+			int index = 0;
+			for (long time : times) {
+				result[index++] = time;
+			}
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import android.database.Cursor;
+import androidx.annotation.NonNull;
+import androidx.core.util.Supplier;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * The gzip compressed JSON of an {@link ExposeeRequest} whose hashes are written straight from a database cursor, so the
+ * hashes of a report are neither loaded into a list nor serialized into one string. The first column of the cursor must
+ * be the hash. The cursor is queried again on every write, so the body can be retried, and the length is unknown, so it
+ * is sent chunked.
+ */
+public class ExposeeHashesRequestBody extends RequestBody {
+
+	public static final String CONTENT_ENCODING = "gzip";
+
+	private static final MediaType CONTENT_TYPE = MediaType.get("application/json; charset=utf-8");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String FIELD_HASHES = "hashes";
+	private static final Gson GSON = new Gson();
+
+	private final ExposeeRequest exposeeRequest;
+	private final Supplier<Cursor> hashes;
+
+	/**
+	 * @param exposeeRequest the request without hashes
+	 * @param hashes queries the hashes to send
+	 */
+	public ExposeeHashesRequestBody(@NonNull ExposeeRequest exposeeRequest, @NonNull Supplier<Cursor> hashes) {
+		this.exposeeRequest = exposeeRequest;
+		this.hashes = hashes;
+	}
+
+	@Override
+	public MediaType contentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public void writeTo(@NonNull BufferedSink sink) throws IOException {
+		BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+		JsonWriter writer = new JsonWriter(new OutputStreamWriter(gzipSink.outputStream(), UTF_8));
+		writer.beginObject();
+		JsonObject fields = GSON.toJsonTree(exposeeRequest).getAsJsonObject();
+		for (Map.Entry<String, JsonElement> field : fields.entrySet()) {
+			if (!FIELD_HASHES.equals(field.getKey())) {
+				writer.name(field.getKey());
+				GSON.toJson(field.getValue(), writer);
+			}
+		}
+		writer.name(FIELD_HASHES).beginArray();
+		try (Cursor cursor = hashes.get()) {
+			while (cursor.moveToNext()) {
+				writer.value(BtLocHash.fromBytes(cursor.getBlob(0)).toHex());
+			}
+		}
+		writer.endArray();
+		writer.endObject();
+		writer.close();
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend;
+
+import androidx.annotation.NonNull;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import okhttp3.MediaType;
+
+/**
+ * Hotspot share vectors of equal length, sent to a report server as one compact request. The encoding is the vector length
+ * and the number of vectors as big-endian ints, followed by the shares of all vectors as big-endian ints.
+ */
+public class HotspotShareBatch {
+
+	public static final MediaType CONTENT_TYPE = MediaType.get("application/x-dp3t-hotspot-shares");
+
+	private static final int INT_LENGTH = 4;
+	private static final int HEADER_LENGTH = 2 * INT_LENGTH;
+
+	private final int vectorLength;
+	private final int count;
+	private final int[] shares;
+
+	/**
+	 * @param shares the shares of the vectors one after the other, only the first count * vectorLength are used
+	 */
+	public HotspotShareBatch(int vectorLength, int count, @NonNull int[] shares) {
+		if (vectorLength <= 0 || count < 0 || shares.length < (long) count * vectorLength) {
+			throw new IllegalArgumentException("Invalid batch of " + count + " vectors of length " + vectorLength);
+		}
+		this.vectorLength = vectorLength;
+		this.count = count;
+		this.shares = shares;
+	}
+
+	public int getVectorLength() {
+		return vectorLength;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getShare(int vector, int index) {
+		return shares[vector * vectorLength + index];
+	}
+
+	public byte[] encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + count * vectorLength * INT_LENGTH);
+		buffer.putInt(vectorLength);
+		buffer.putInt(count);
+		buffer.asIntBuffer().put(shares, 0, count * vectorLength);
+		return buffer.array();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the batch is malformed
+	 */
+	public static HotspotShareBatch decode(@NonNull byte[] encoded) {
+		ByteBuffer buffer = ByteBuffer.wrap(encoded);
+		try {
+			int vectorLength = buffer.getInt();
+			int count = buffer.getInt();
+			if (vectorLength <= 0 || count < 0 || buffer.remaining() != (long) count * vectorLength * INT_LENGTH) {
+				throw new IllegalArgumentException("Malformed hotspot share batch");
+			}
+			int[] shares = new int[count * vectorLength];
+			buffer.asIntBuffer().get(shares);
+			return new HotspotShareBatch(vectorLength, count, shares);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated hotspot share batch", e);
+		}
+	}
+
+	/**
+	 * Joins batches with vectors of the same length into one.
+	 */
+	public static HotspotShareBatch concat(@NonNull List<HotspotShareBatch> batches) {
+		int vectorLength = batches.get(0).vectorLength;
+		int count = 0;
+		for (HotspotShareBatch batch : batches) {
+			if (batch.vectorLength != vectorLength) {
+				throw new IllegalArgumentException("Vector lengths differ");
+			}
+			count += batch.count;
+		}
+		int[] shares = new int[count * vectorLength];
+		int offset = 0;
+		for (HotspotShareBatch batch : batches) {
+			System.arraycopy(batch.shares, 0, shares, offset, batch.count * vectorLength);
+			offset += batch.count * vectorLength;
+		}
+		return new HotspotShareBatch(vectorLength, count, shares);
+	}
+
+}
@@ -12,8 +12,7 @@ package org.dpppt.android.sdk.internal.backend;
 
 import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
 
-import java.util.ArrayList;
-
+import okhttp3.RequestBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.GET;
@@ -27,9 +26,17 @@ interface ReportService {
 	@POST("v1/exposed")
 	Call<Void> addExposee(@Body ExposeeRequest exposeeRequest, @Header("Authorization") String authorizationHeader);
 
+	@Headers({
+			"Accept: application/json",
+			"Content-Encoding: " + ExposeeHashesRequestBody.CONTENT_ENCODING
+	})
+	@POST("v1/exposed")
+	Call<Void> addExposeeHashes(@Body ExposeeHashesRequestBody exposeeRequest,
+			@Header("Authorization") String authorizationHeader);
+
 	@Headers("Accept: application/json")
 	@POST("v1/addHotspot")
-	Call<Void> addHotspot(@Body ArrayList<Integer> hotspotRandomVector);
+	Call<Void> addHotspot(@Body RequestBody hotspotShareBatch);
 
 	@GET("v1/")
 	Call <Void> getBackend();
@@ -22,6 +22,10 @@ public class StatusCodeException extends Exception {
 		this.response = response;
 	}
 
+	public int getCode() {
+		return response.code();
+	}
+
 	@Nullable
 	@Override
 	public String getMessage() {
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.backend.models;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Result of revalidating the cached discovery with its ETag.
+ */
+public class DiscoveryResult {
+
+	private ApplicationsList applicationsList;
+	private String eTag;
+
+	public DiscoveryResult(@Nullable ApplicationsList applicationsList, @Nullable String eTag) {
+		this.applicationsList = applicationsList;
+		this.eTag = eTag;
+	}
+
+	/**
+	 * @return the loaded list or null if the cached one is still current
+	 */
+	@Nullable
+	public ApplicationsList getApplicationsList() {
+		return applicationsList;
+	}
+
+	public boolean isNotModified() {
+		return applicationsList == null;
+	}
+
+	@Nullable
+	public String getETag() {
+		return eTag;
+	}
+
+}
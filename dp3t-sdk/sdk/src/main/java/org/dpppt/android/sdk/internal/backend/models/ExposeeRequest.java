@@ -10,27 +10,25 @@
 package org.dpppt.android.sdk.internal.backend.models;
 
 import org.dpppt.android.sdk.backend.models.ExposeeAuthMethodJson;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
 
 import java.util.ArrayList;
 
 public class ExposeeRequest {
 
 	private String key;
-	private ArrayList<String> hashes;
+	private ArrayList<BtLocHash> hashes;
 	private long keyDate;
 	private ExposeeAuthMethodJson authData;
 	private int fake;
 
-	public ExposeeRequest(String key, ArrayList<String> hashes, long keyDate, ExposeeAuthMethodJson authData) {
+	public ExposeeRequest(String key, ArrayList<BtLocHash> hashes, long keyDate, ExposeeAuthMethodJson authData) {
 		this(key, hashes, keyDate, 0, authData);
 	}
 
-	public ExposeeRequest(String key, ArrayList<String> hashes, long keyDate, int fake, ExposeeAuthMethodJson authData) {
+	public ExposeeRequest(String key, ArrayList<BtLocHash> hashes, long keyDate, int fake, ExposeeAuthMethodJson authData) {
 		this.key = key;
-		if(hashes!=null){
-			this.hashes = new ArrayList<>();
-			this.hashes.addAll(hashes);
-		}
+		this.hashes = hashes;
 		this.keyDate = keyDate;
 		this.authData = authData;
 		this.fake = fake;
@@ -44,11 +42,11 @@ public class ExposeeRequest {
 		return keyDate;
 	}
 
-	public ArrayList<String> getHashes() {
+	public ArrayList<BtLocHash> getHashes() {
 		return hashes;
 	}
 
-	public void setHashes(ArrayList<String> hashes) {
+	public void setHashes(ArrayList<BtLocHash> hashes) {
 		this.hashes = hashes;
 	}
 
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.android.sdk.internal.crypto;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.annotations.JsonAdapter;
+
+/**
+ * 80 bit BT token + location hash, stored as the big-endian first 8 bytes ({@link #getHigh()}) and the trailing 2 bytes
+ * ({@link #getLow()}). Ordering is unsigned and equals the lexicographic order of {@link #toBytes()}.
+ */
+@JsonAdapter(BtLocHashJsonAdapter.class)
+public final class BtLocHash implements Comparable<BtLocHash> {
+
+	public static final int HASH_LENGTH = 10;
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final long high;
+	private final short low;
+
+	public BtLocHash(long high, short low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	public static BtLocHash fromBytes(@NonNull byte[] data) {
+		if (data.length != HASH_LENGTH) {
+			throw new IllegalArgumentException("Expected " + HASH_LENGTH + " bytes but got " + data.length);
+		}
+		return fromBytes(data, 0);
+	}
+
+	/**
+	 * Reads {@link #HASH_LENGTH} bytes starting at offset, longer inputs (e.g. a full cipher block) are truncated.
+	 */
+	public static BtLocHash fromBytes(@NonNull byte[] data, int offset) {
+		long high = 0;
+		for (int i = 0; i < 8; i++) {
+			high = (high << 8) | (data[offset + i] & 0xFF);
+		}
+		short low = (short) (((data[offset + 8] & 0xFF) << 8) | (data[offset + 9] & 0xFF));
+		return new BtLocHash(high, low);
+	}
+
+	/**
+	 * Parses the base16 representation used on the wire (case insensitive).
+	 */
+	public static BtLocHash fromHex(@NonNull String hex) {
+		if (hex.length() != 2 * HASH_LENGTH) {
+			throw new IllegalArgumentException("Expected " + 2 * HASH_LENGTH + " hex digits but got " + hex.length());
+		}
+		long high = 0;
+		for (int i = 0; i < 16; i++) {
+			high = (high << 4) | hexDigit(hex.charAt(i));
+		}
+		int low = 0;
+		for (int i = 16; i < 20; i++) {
+			low = (low << 4) | hexDigit(hex.charAt(i));
+		}
+		return new BtLocHash(high, (short) low);
+	}
+
+	private static int hexDigit(char c) {
+		int digit = Character.digit(c, 16);
+		if (digit < 0) {
+			throw new IllegalArgumentException("Invalid hex digit " + c);
+		}
+		return digit;
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public short getLow() {
+		return low;
+	}
+
+	public byte[] toBytes() {
+		byte[] data = new byte[HASH_LENGTH];
+		writeTo(data, 0);
+		return data;
+	}
+
+	public void writeTo(@NonNull byte[] dest, int offset) {
+		for (int i = 7; i >= 0; i--) {
+			dest[offset + i] = (byte) (high >>> (8 * (7 - i)));
+		}
+		dest[offset + 8] = (byte) (low >>> 8);
+		dest[offset + 9] = (byte) low;
+	}
+
+	public String toHex() {
+		char[] chars = new char[2 * HASH_LENGTH];
+		for (int i = 0; i < 16; i++) {
+			chars[i] = HEX_DIGITS[(int) (high >>> (60 - 4 * i)) & 0xF];
+		}
+		for (int i = 0; i < 4; i++) {
+			chars[16 + i] = HEX_DIGITS[(low >>> (12 - 4 * i)) & 0xF];
+		}
+		return new String(chars);
+	}
+
+	public static int compare(long high1, short low1, long high2, short low2) {
+		int cmp = Long.compare(high1 ^ Long.MIN_VALUE, high2 ^ Long.MIN_VALUE);
+		if (cmp != 0) {
+			return cmp;
+		}
+		return Integer.compare(low1 & 0xFFFF, low2 & 0xFFFF);
+	}
+
+	@Override
+	public int compareTo(@NonNull BtLocHash o) {
+		return compare(high, low, o.high, o.low);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		BtLocHash that = (BtLocHash) o;
+		return high == that.high && low == that.low;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (int) (high ^ (high >>> 32)) + low;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return toHex();
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.android.sdk.internal.crypto;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+class BtLocHashJsonAdapter extends TypeAdapter<BtLocHash> {
+
+	@Override
+	public void write(JsonWriter out, BtLocHash value) throws IOException {
+		out.value(value.toHex());
+	}
+
+	@Override
+	public BtLocHash read(JsonReader in) throws IOException {
+		String value = in.nextString();
+		try {
+			return BtLocHash.fromHex(value);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unexpected BtLocHash format " + value, e);
+		}
+	}
+
+}
@@ -19,7 +19,6 @@ import androidx.security.crypto.MasterKeys;
 import java.io.IOException;
 import java.security.*;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -37,7 +36,6 @@ import javax.crypto.spec.SecretKeySpec;
 import org.dpppt.android.sdk.backend.models.ExposeeAuthMethod;
 import org.dpppt.android.sdk.backend.models.ExposeeAuthMethodJson;
 import org.dpppt.android.sdk.internal.backend.models.ExposeeRequest;
-import org.dpppt.android.sdk.internal.database.Database;
 import org.dpppt.android.sdk.internal.database.models.BtLocToken;
 import org.dpppt.android.sdk.internal.database.models.Contact;
 import org.dpppt.android.sdk.internal.database.models.DeviceLocation;
@@ -47,7 +45,6 @@ import org.dpppt.android.sdk.internal.util.Json;
 
 import static org.dpppt.android.sdk.internal.util.Base64Util.toBase64;
 
-import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Longs;
 
@@ -286,7 +283,7 @@ public class CryptoModule {
 			ex.printStackTrace();
 		}
 	}
-	public ArrayList<String> getHashes(BtLocToken btLocToken){
+	public ArrayList<BtLocHash> getHashes(BtLocToken btLocToken){
 
 		DeviceLocation deviceLocation = btLocToken.getDeviceLocation();
 
@@ -295,80 +292,31 @@ public class CryptoModule {
 		EphId ephId = btLocToken.getEphId();
 		ArrayList<String> locationHashes = deviceLocation.getLocationHashes();
 
-		ArrayList<String> hashes = new ArrayList<>();
+		ArrayList<BtLocHash> hashes = new ArrayList<>();
 		for(String locHash: locationHashes){
 			// encrypt ephid, lochash, time
 			try {
 				hashes.add(digest(ephId, roundedTimestamp, locHash));
 			}
-			catch (IOException | DigestException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException | InvalidAlgorithmParameterException e){
+			catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException | InvalidAlgorithmParameterException e){
 				Logger.e(TAG,e);
 			}
 		}
 		return hashes;
 	}
-	private String digest(EphId ephId, long timestamp, String locHash) throws IOException, DigestException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
-//		byte[] source = Bytes.concat(ephId.getData(),locHash.getBytes(), Longs.toByteArray(timestamp));
-//		byte[] crpyt = SCrypt.generate(source, SALT, 4096, 8, 1, 8);
-//		try{
-//			MessageDigest md = MessageDigest.getInstance("SHA-256");
-//			md.update(source);
-//			MessageDigest tc1 = (MessageDigest) md.clone();
-//			byte[] crypt = tc1.digest();
-//			StringBuilder sb = new StringBuilder();
-//			for(byte b:crypt)
-//				sb.append(String.format("%02X",b));
-//			return sb.toString();
-//		}
-//		catch(CloneNotSupportedException | NoSuchAlgorithmException cnse){
-//			throw new DigestException("Couldn't make digest of content");
-//		}
-		BaseEncoding baseEncoding = BaseEncoding.base16();
+	private BtLocHash digest(EphId ephId, long timestamp, String locHash) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
 		byte[] key = ephId.getData();
 		byte[] plaintext = Bytes.concat(locHash.getBytes(), Longs.toByteArray(timestamp));
 		byte[] iv = new byte[16];
 		IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
 		SecretKey secretKey = new SecretKeySpec(key, "AES");
-		System.out.println("Secret key (BT token) = "+baseEncoding.encode(secretKey.getEncoded()));
-		System.out.println("Geohash = "+locHash);
-		System.out.println("Rounded time stamp = " + timestamp);
 		final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
 		cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivParameterSpec);
 		byte[] cipherText = cipher.doFinal(plaintext);
-		byte[] truncatedCipherText = Arrays.copyOfRange(cipherText,0,10);
-		String encode = baseEncoding.encode(truncatedCipherText);
-		System.out.println("AES Encrypted ciphertext = "+ encode +"; Size = "+encode.length());
-		return encode;
+		// truncate the cipher block to the first 80 bits
+		return BtLocHash.fromBytes(cipherText, 0);
 	}
 
-	public ExposeeRequest getHashesForPublishing(DayDate date, ExposeeAuthMethod exposeeAuthMethod) {
-		// Get BroadcastBtGpsTokens from database
-		System.out.println("Crypto thread:"+Thread.currentThread());
-		Database database = new Database(mContext);
-		ArrayList<String> hashes = database.getBroadcastBtLocHashes();
-
-		// return ExposeeRequest with the hashes
-		System.out.println("Sent hashes:"+hashes);
-		SKList skList = getSKList();
-		ExposeeAuthMethodJson jsonAuth =
-				exposeeAuthMethod instanceof ExposeeAuthMethodJson ? (ExposeeAuthMethodJson) exposeeAuthMethod : null;
-		for (Pair<DayDate, byte[]> daySKPair : skList) {
-			if (daySKPair.first.equals(date)) {
-				return new ExposeeRequest(
-						toBase64(daySKPair.second), hashes,
-						daySKPair.first.getStartOfDayTimestamp(),
-						jsonAuth);
-			}
-		}
-		if (date.isBefore(skList.get(skList.size() - 1).first)) {
-			return new ExposeeRequest(
-					toBase64(skList.get(skList.size() - 1).second), hashes,
-					skList.get(skList.size() - 1).first.getStartOfDayTimestamp(),
-					jsonAuth);
-		}
-		return null;
-    }
-
     public interface GetContactsCallback {
 		/**
 		 * @param timeFrom timestamp inclusive
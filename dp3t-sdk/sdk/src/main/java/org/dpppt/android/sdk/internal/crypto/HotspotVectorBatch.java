@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.crypto;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.dpppt.android.sdk.internal.backend.HotspotShareBatch;
+
+/**
+ * Collects hotspot vectors of equal length in one flat buffer and splits them into two additive secret shares, one for each
+ * report server. The shares are uniformly random ints whose sum equals the vector modulo 2^32, so neither share reveals
+ * anything about the vector, while the sums over all shares of both servers add up to the aggregate of the vectors.
+ */
+public class HotspotVectorBatch {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int INT_LENGTH = 4;
+
+	private final int vectorLength;
+	private int[] vectors;
+	private int count;
+
+	public HotspotVectorBatch(int vectorLength) {
+		if (vectorLength <= 0) {
+			throw new IllegalArgumentException("Invalid vector length " + vectorLength);
+		}
+		this.vectorLength = vectorLength;
+		this.vectors = new int[INITIAL_CAPACITY * vectorLength];
+	}
+
+	public void add(@NonNull int[] vector) {
+		if (vector.length != vectorLength) {
+			throw new IllegalArgumentException("Expected a vector of length " + vectorLength + " but got " + vector.length);
+		}
+		if ((count + 1) * vectorLength > vectors.length) {
+			vectors = Arrays.copyOf(vectors, vectors.length * 2);
+		}
+		System.arraycopy(vector, 0, vectors, count * vectorLength, vectorLength);
+		count++;
+	}
+
+	public int getVectorLength() {
+		return vectorLength;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Splits all vectors at once, the random shares are drawn from the generator in one call.
+	 *
+	 * @return the batch of shares for each of the two servers
+	 */
+	public HotspotShareBatch[] split(@NonNull SecureRandom random) {
+		int length = count * vectorLength;
+		byte[] randomBytes = new byte[length * INT_LENGTH];
+		random.nextBytes(randomBytes);
+		int[] shares1 = new int[length];
+		ByteBuffer.wrap(randomBytes).asIntBuffer().get(shares1);
+		int[] shares2 = new int[length];
+		for (int i = 0; i < length; i++) {
+			shares2[i] = vectors[i] - shares1[i];
+		}
+		return new HotspotShareBatch[] {
+				new HotspotShareBatch(vectorLength, count, shares1),
+				new HotspotShareBatch(vectorLength, count, shares2)
+		};
+	}
+
+}
@@ -14,7 +14,7 @@ interface BroadcastBtLocHashes {
         return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
                 ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
                 TIME + " INTEGER NOT NULL, " +
-                HASH + " TEXT NOT NULL" +
+                HASH + " BLOB NOT NULL" +
                 ")";
     }
 
@@ -20,6 +20,7 @@ import androidx.annotation.NonNull;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +29,7 @@ import org.bouncycastle.util.test.Test;
 import org.dpppt.android.sdk.BuildConfig;
 import org.dpppt.android.sdk.internal.AppConfigManager;
 import org.dpppt.android.sdk.internal.BroadcastHelper;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
 import org.dpppt.android.sdk.internal.crypto.ContactsFactory;
 import org.dpppt.android.sdk.internal.crypto.CryptoModule;
 import org.dpppt.android.sdk.internal.crypto.EphId;
@@ -36,9 +38,13 @@ import org.dpppt.android.sdk.internal.database.models.Contact;
 import org.dpppt.android.sdk.internal.database.models.DeviceLocation;
 import org.dpppt.android.sdk.internal.database.models.ExposureDay;
 import org.dpppt.android.sdk.internal.database.models.Handshake;
+import org.dpppt.android.sdk.internal.database.models.PendingUpload;
+import org.dpppt.android.sdk.internal.database.models.SyncedBatch;
+import org.dpppt.android.sdk.internal.matching.SortedHashIndex;
 import org.dpppt.android.sdk.internal.util.DayDate;
 
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_REPLACE;
 
 public class Database {
 	Context context;
@@ -123,6 +129,8 @@ public class Database {
 					new DayDate().subtractDays(CryptoModule.NUMBER_OF_DAYS_TO_KEEP_EXPOSED_DAYS);
 			db.delete(ExposureDays.TABLE_NAME, ExposureDays.REPORT_DATE + " < ?",
 					new String[] { Long.toString(lastDayToKeepMatchedContacts.getStartOfDayTimestamp()) });
+			db.delete(VisitedRegions.TABLE_NAME, VisitedRegions.LAST_VISIT + " < ?",
+					new String[] { Long.toString(lastDayToKeep.getStartOfDayTimestamp()) });
 			// TODO delete old location data
 			// TODO delete old broadcastBtLocHashes
 			// TODO delete old receivedBtLocHashes
@@ -156,61 +164,127 @@ public class Database {
 	private void addReceivedBtLocHashes(BtLocToken btLocToken, long handshakeId) {
 		System.out.println("Saving received BT token + location hash");
 		System.out.println("Handshake Id = "+handshakeId);
+		ArrayList<BtLocHash> hashes = CryptoModule.getInstance(context).getHashes(btLocToken);
+		addReceivedBtLocHashes(hashes, btLocToken.getDeviceLocation().getTime(), handshakeId);
+	}
+
+	/**
+	 * Records hashes received at the given time in one transaction.
+	 */
+	public void addReceivedBtLocHashes(@NonNull Collection<BtLocHash> hashes, long time, long handshakeId) {
 		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
-		ArrayList<String> hashes = CryptoModule.getInstance(context).getHashes(btLocToken);
-		for(String hash: hashes) {
-			ContentValues values = new ContentValues();
-			values.put(ReceivedBtLocHashes.TIME, btLocToken.getDeviceLocation().getTime());
-			values.put(ReceivedBtLocHashes.HASH,hash);
-			values.put(ReceivedBtLocHashes.HANDSHAKE_ID, handshakeId);
-			db.insertWithOnConflict(ReceivedBtLocHashes.TABLE_NAME, null, values, CONFLICT_IGNORE);
+		db.beginTransaction();
+		try {
+			for (BtLocHash hash : hashes) {
+				ContentValues values = new ContentValues();
+				values.put(ReceivedBtLocHashes.TIME, time);
+				values.put(ReceivedBtLocHashes.HASH, hash.toBytes());
+				values.put(ReceivedBtLocHashes.HANDSHAKE_ID, handshakeId);
+				db.insertWithOnConflict(ReceivedBtLocHashes.TABLE_NAME, null, values, CONFLICT_IGNORE);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
 		}
 	}
-	public void addTestHashes(ArrayList<String> hashes) {
-		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
-		for(String hash: hashes) {
-			ContentValues values = new ContentValues();
-			values.put(TestHashes.TIME, System.currentTimeMillis());
-			values.put(TestHashes.HASH,hash);
-			db.insertWithOnConflict(TestHashes.TABLE_NAME, null, values, CONFLICT_IGNORE);
+
+	/**
+	 * @return the number of received hashes that matched an exposee hash
+	 */
+	public long getMatchedReceivedBtLocHashCount() {
+		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
+		return DatabaseUtils.queryNumEntries(db, ReceivedBtLocHashes.TABLE_NAME, ReceivedBtLocHashes.MATCHED + " = 1");
+	}
+
+	public ArrayList<BtLocHash> getReceivedBtLocHashes(){
+		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
+		Cursor cursor = db
+				.query(ReceivedBtLocHashes.TABLE_NAME, ReceivedBtLocHashes.PROJECTION, null, null, null, null, ReceivedBtLocHashes.ID);
+		return getReceivedBtLocHashesFromCursor(cursor);
+	}
+
+	/**
+	 * Loads the received hashes recorded since timeFrom straight into a sorted index, without an intermediate list.
+	 * Only rows with afterId < id <= untilId are included, see {@link #getLastReceivedBtLocHashId()}.
+	 */
+	public SortedHashIndex getReceivedBtLocHashIndex(long timeFrom, long afterId, long untilId) {
+		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
+		Cursor cursor = db.query(ReceivedBtLocHashes.TABLE_NAME, new String[] { ReceivedBtLocHashes.TIME, ReceivedBtLocHashes.HASH },
+				ReceivedBtLocHashes.TIME + " >= ? AND " + ReceivedBtLocHashes.ID + " > ? AND " + ReceivedBtLocHashes.ID + " <= ?",
+				new String[] { Long.toString(timeFrom), Long.toString(afterId), Long.toString(untilId) }, null, null, null);
+		try {
+			SortedHashIndex.Builder builder = new SortedHashIndex.Builder(cursor.getCount());
+			int timeIndex = cursor.getColumnIndexOrThrow(ReceivedBtLocHashes.TIME);
+			int hashIndex = cursor.getColumnIndexOrThrow(ReceivedBtLocHashes.HASH);
+			while (cursor.moveToNext()) {
+				BtLocHash hash = BtLocHash.fromBytes(cursor.getBlob(hashIndex));
+				builder.add(hash.getHigh(), hash.getLow(), cursor.getLong(timeIndex));
+			}
+			return builder.build();
+		} finally {
+			cursor.close();
 		}
 	}
-	public ArrayList<String> getTestHashes(int count){
+
+	/**
+	 * @return the id of the most recently received hash, 0 if there is none
+	 */
+	public long getLastReceivedBtLocHashId() {
 		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
-		Cursor cursor;
-		cursor = db.query(TestHashes.TABLE_NAME, TestHashes.PROJECTION, null, null, null, null, TestHashes.ID,String.valueOf(count));
-		return getTestHashesFromCursor(cursor);
+		return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + ReceivedBtLocHashes.ID + "), 0) FROM " +
+				ReceivedBtLocHashes.TABLE_NAME, null);
 	}
 
-	private ArrayList<String> getTestHashesFromCursor(Cursor cursor) {
-		ArrayList<String> hashes = new ArrayList<>();
+	public ArrayList<BtLocHash> getReceivedBtLocHashesFromCursor(Cursor cursor){
+		ArrayList<BtLocHash> hashes = new ArrayList<>();
+		int hashIndex = cursor.getColumnIndexOrThrow(ReceivedBtLocHashes.HASH);
 		while (cursor.moveToNext()) {
-			String hash = cursor.getString(cursor.getColumnIndexOrThrow(TestHashes.HASH));
-			hashes.add(hash);
+			hashes.add(BtLocHash.fromBytes(cursor.getBlob(hashIndex)));
 		}
 		cursor.close();
 		return hashes;
 	}
-	public long getTestHashesCount() {
-		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
-		return  DatabaseUtils.queryNumEntries(db, TestHashes.TABLE_NAME);
+	/**
+	 * Records the checkpoint of a batch whose bucket was downloaded or matched but is not committed yet, replacing an
+	 * earlier checkpoint of the same batch.
+	 */
+	public void addSyncedBatch(@NonNull SyncedBatch syncedBatch) {
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		ContentValues values = new ContentValues();
+		values.put(SyncedBatches.BATCH_RELEASE_TIME, syncedBatch.getBatchReleaseTime());
+		values.put(SyncedBatches.NUMBER_OF_EXPOSEE_HASHES, syncedBatch.getNumberOfExposeeHashes());
+		values.put(SyncedBatches.NUMBER_OF_MATCHES, syncedBatch.getNumberOfMatches());
+		values.put(SyncedBatches.MATCHED, syncedBatch.isMatched() ? 1 : 0);
+		values.put(SyncedBatches.CONTENT_HASH, syncedBatch.getContentHash());
+		db.insertWithOnConflict(SyncedBatches.TABLE_NAME, null, values, CONFLICT_REPLACE);
 	}
 
-	public ArrayList<String> getReceivedBtLocHashes(){
+	public List<SyncedBatch> getSyncedBatches(long fromBatchReleaseTime) {
 		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
-		Cursor cursor = db
-				.query(ReceivedBtLocHashes.TABLE_NAME, ReceivedBtLocHashes.PROJECTION, null, null, null, null, ReceivedBtLocHashes.ID);
-		return getReceivedBtLocHashesFromCursor(cursor);
-	}
-	public ArrayList<String> getReceivedBtLocHashesFromCursor(Cursor cursor){
-		ArrayList<String> hashes = new ArrayList<>();
+		Cursor cursor = db.query(SyncedBatches.TABLE_NAME, SyncedBatches.PROJECTION, SyncedBatches.BATCH_RELEASE_TIME + " >= ?",
+				new String[] { Long.toString(fromBatchReleaseTime) }, null, null, SyncedBatches.BATCH_RELEASE_TIME);
+		List<SyncedBatch> syncedBatches = new ArrayList<>();
 		while (cursor.moveToNext()) {
-			String hash = cursor.getString(cursor.getColumnIndexOrThrow(ReceivedBtLocHashes.HASH));
-			hashes.add(hash);
+			syncedBatches.add(new SyncedBatch(
+					cursor.getLong(cursor.getColumnIndexOrThrow(SyncedBatches.BATCH_RELEASE_TIME)),
+					cursor.getInt(cursor.getColumnIndexOrThrow(SyncedBatches.NUMBER_OF_EXPOSEE_HASHES)),
+					cursor.getInt(cursor.getColumnIndexOrThrow(SyncedBatches.NUMBER_OF_MATCHES)),
+					cursor.getInt(cursor.getColumnIndexOrThrow(SyncedBatches.MATCHED)) != 0,
+					cursor.getBlob(cursor.getColumnIndexOrThrow(SyncedBatches.CONTENT_HASH))));
 		}
 		cursor.close();
-		return hashes;
+		return syncedBatches;
+	}
+
+	/**
+	 * Removes the records of all batches up to and including the given one, once they are committed.
+	 */
+	public void removeSyncedBatches(long untilBatchReleaseTime) {
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		db.delete(SyncedBatches.TABLE_NAME, SyncedBatches.BATCH_RELEASE_TIME + " <= ?",
+				new String[] { Long.toString(untilBatchReleaseTime) });
 	}
+
 	public List<Handshake> getHandshakes() {
 		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
 		Cursor cursor = db.query(Handshakes.TABLE_NAME, Handshakes.PROJECTION, null, null, null, null, Handshakes.ID);
@@ -286,33 +360,189 @@ public class Database {
 		values.put(DeviceLocations.LATITUDE,location.getLatitude());
 		values.put(DeviceLocations.LONGITUDE,location.getLongitude());
 		long rowId = db.insertWithOnConflict(DeviceLocations.TABLE_NAME, null, values, CONFLICT_IGNORE);
+		addVisitedRegions(db, location);
+	}
+
+	static void addVisitedRegions(SQLiteDatabase db, DeviceLocation location) {
+		ContentValues values = new ContentValues();
+		for (String region : location.getRegions()) {
+			values.put(VisitedRegions.REGION, region);
+			values.put(VisitedRegions.LAST_VISIT, location.getTime());
+			db.insertWithOnConflict(VisitedRegions.TABLE_NAME, null, values, CONFLICT_REPLACE);
+		}
+	}
 
+	/**
+	 * @return the sorted geohash prefixes of all regions visited since the given time
+	 */
+	public List<String> getVisitedRegions(long since) {
+		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
+		Cursor cursor = db.query(VisitedRegions.TABLE_NAME, new String[] { VisitedRegions.REGION },
+				VisitedRegions.LAST_VISIT + " >= ?", new String[] { Long.toString(since) }, null, null, VisitedRegions.REGION);
+		List<String> regions = new ArrayList<>();
+		while (cursor.moveToNext()) {
+			regions.add(cursor.getString(0));
+		}
+		cursor.close();
+		return regions;
 	}
 	public void saveBroadcastBtLocHashes(BtLocToken btLocToken){
+		ArrayList<BtLocHash> hashes = CryptoModule.getInstance(context).getHashes(btLocToken);
+		addBroadcastBtLocHashes(hashes, btLocToken.getDeviceLocation().getTime());
+//		addReceivedBtLocHashes(btLocToken);
+	}
+
+	/**
+	 * Records hashes broadcast at the given time in one transaction.
+	 */
+	public void addBroadcastBtLocHashes(@NonNull Collection<BtLocHash> hashes, long time) {
 		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
-		ArrayList<String> hashes = CryptoModule.getInstance(context).getHashes(btLocToken);
-		for(String hash: hashes) {
-			ContentValues values = new ContentValues();
-			values.put(BroadcastBtLocHashes.TIME, btLocToken.getDeviceLocation().getTime());
-			values.put(BroadcastBtLocHashes.HASH,hash);
-			db.insertWithOnConflict(BroadcastBtLocHashes.TABLE_NAME, null, values, CONFLICT_IGNORE);
+		db.beginTransaction();
+		try {
+			for (BtLocHash hash : hashes) {
+				ContentValues values = new ContentValues();
+				values.put(BroadcastBtLocHashes.TIME, time);
+				values.put(BroadcastBtLocHashes.HASH, hash.toBytes());
+				db.insertWithOnConflict(BroadcastBtLocHashes.TABLE_NAME, null, values, CONFLICT_IGNORE);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
 		}
-//		addReceivedBtLocHashes(btLocToken);
 	}
-	public ArrayList<String> getBroadcastBtLocHashes(){
+
+	/**
+	 * @return the id of the last broadcast hash of the page of at most pageSize hashes after the given id, or -1 if there are
+	 * no hashes after it
+	 */
+	public long getBroadcastBtLocHashPageEnd(long afterId, int pageSize) {
 		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
-		Cursor cursor = db
-				.query(BroadcastBtLocHashes.TABLE_NAME, BroadcastBtLocHashes.PROJECTION, null, null, null, null, BroadcastBtLocHashes.ID);
-		return getBroadcastBtLocHashesFromCursor(cursor);
+		Cursor cursor = db.rawQuery("SELECT MAX(" + BroadcastBtLocHashes.ID + ") FROM (SELECT " + BroadcastBtLocHashes.ID +
+						" FROM " + BroadcastBtLocHashes.TABLE_NAME + " WHERE " + BroadcastBtLocHashes.ID + " > ?" +
+						" ORDER BY " + BroadcastBtLocHashes.ID + " LIMIT ?)",
+				new String[] { Long.toString(afterId), Integer.toString(pageSize) });
+		try {
+			return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Queries the broadcast hashes with afterId < id <= untilId in the order they were added, the hash is the only column.
+	 * The caller has to close the cursor.
+	 */
+	public Cursor getBroadcastBtLocHashes(long afterId, long untilId) {
+		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
+		return db.query(BroadcastBtLocHashes.TABLE_NAME, new String[] { BroadcastBtLocHashes.HASH },
+				BroadcastBtLocHashes.ID + " > ? AND " + BroadcastBtLocHashes.ID + " <= ?",
+				new String[] { Long.toString(afterId), Long.toString(untilId) }, null, null, BroadcastBtLocHashes.ID);
+	}
+
+	public void addPendingUpload(int server, @NonNull String type, @NonNull String payload) {
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		ContentValues values = new ContentValues();
+		values.put(PendingUploads.SERVER, server);
+		values.put(PendingUploads.TYPE, type);
+		values.put(PendingUploads.PAYLOAD, payload);
+		values.put(PendingUploads.CREATED_AT, System.currentTimeMillis());
+		db.insert(PendingUploads.TABLE_NAME, null, values);
+	}
+
+	/**
+	 * Replaces all pending uploads of the type to the server with the given one.
+	 */
+	public void replacePendingUpload(int server, @NonNull String type, @NonNull String payload) {
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			removePendingUploads(server, type, Long.MAX_VALUE);
+			addPendingUpload(server, type, payload);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Stores two uploads of the type that are only useful together, one for each server, in one transaction. The listener
+	 * is called on the database thread once both are stored.
+	 */
+	public void addPendingUploadPair(@NonNull String type, int server1, @NonNull String payload1, int server2,
+			@NonNull String payload2, @NonNull ResultListener<Void> listener) {
+		databaseThread.post(() -> {
+			addPendingUploadPairSynchronous(type, server1, payload1, server2, payload2);
+			listener.onResult(null);
+		});
+	}
+
+	public void addPendingUploadPairSynchronous(@NonNull String type, int server1, @NonNull String payload1, int server2,
+			@NonNull String payload2) {
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		long now = System.currentTimeMillis();
+		db.beginTransaction();
+		try {
+			ContentValues values = new ContentValues();
+			values.put(PendingUploads.SERVER, server1);
+			values.put(PendingUploads.TYPE, type);
+			values.put(PendingUploads.PAYLOAD, payload1);
+			values.put(PendingUploads.CREATED_AT, now);
+			long pairId = db.insertOrThrow(PendingUploads.TABLE_NAME, null, values);
+			values.put(PendingUploads.PAIR_ID, pairId);
+			db.update(PendingUploads.TABLE_NAME, values, PendingUploads.ID + " = ?", new String[] { Long.toString(pairId) });
+			values.put(PendingUploads.SERVER, server2);
+			values.put(PendingUploads.PAYLOAD, payload2);
+			db.insertOrThrow(PendingUploads.TABLE_NAME, null, values);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
 	}
-	public ArrayList<String> getBroadcastBtLocHashesFromCursor(Cursor cursor){
-		ArrayList<String> hashes = new ArrayList<>();
+
+	/**
+	 * @return the pending uploads of the type to the server, oldest first
+	 */
+	public List<PendingUpload> getPendingUploads(int server, @NonNull String type) {
+		SQLiteDatabase db = databaseOpenHelper.getReadableDatabase();
+		Cursor cursor = db.query(PendingUploads.TABLE_NAME, PendingUploads.PROJECTION,
+				PendingUploads.SERVER + " = ? AND " + PendingUploads.TYPE + " = ?",
+				new String[] { Integer.toString(server), type }, null, null, PendingUploads.ID);
+		List<PendingUpload> uploads = new ArrayList<>();
 		while (cursor.moveToNext()) {
-			String hash = cursor.getString(cursor.getColumnIndexOrThrow(BroadcastBtLocHashes.HASH));
-			hashes.add(hash);
+			uploads.add(new PendingUpload(
+					cursor.getLong(cursor.getColumnIndexOrThrow(PendingUploads.ID)),
+					cursor.getInt(cursor.getColumnIndexOrThrow(PendingUploads.SERVER)),
+					cursor.getString(cursor.getColumnIndexOrThrow(PendingUploads.TYPE)),
+					cursor.getString(cursor.getColumnIndexOrThrow(PendingUploads.PAYLOAD)),
+					cursor.getLong(cursor.getColumnIndexOrThrow(PendingUploads.CREATED_AT))));
 		}
 		cursor.close();
-		return hashes;
+		return uploads;
+	}
+
+	/**
+	 * Removes the pending uploads of the type to the server up to the given id, uploads added since are kept.
+	 */
+	public void removePendingUploads(int server, @NonNull String type, long untilId) {
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		db.delete(PendingUploads.TABLE_NAME,
+				PendingUploads.SERVER + " = ? AND " + PendingUploads.TYPE + " = ? AND " + PendingUploads.ID + " <= ?",
+				new String[] { Integer.toString(server), type, Long.toString(untilId) });
+	}
+
+	/**
+	 * Removes the pending uploads of the type to the server up to the given id together with the other halves of their
+	 * pairs, whichever server those were meant for.
+	 */
+	public void removePendingUploadPairs(int server, @NonNull String type, long untilId) {
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		String selection = PendingUploads.SERVER + " = ? AND " + PendingUploads.TYPE + " = ? AND " + PendingUploads.ID + " <= ?";
+		String[] selectionArgs = { Integer.toString(server), type, Long.toString(untilId) };
+		db.delete(PendingUploads.TABLE_NAME,
+				"(" + selection + ") OR (" + PendingUploads.TYPE + " = ? AND " + PendingUploads.PAIR_ID + " IN (SELECT " +
+						PendingUploads.PAIR_ID + " FROM " + PendingUploads.TABLE_NAME + " WHERE " + selection + "))",
+				new String[] { selectionArgs[0], selectionArgs[1], selectionArgs[2], type, selectionArgs[0], selectionArgs[1],
+						selectionArgs[2] });
 	}
 
 	public ArrayList<DeviceLocation> getDeviceLocations(){
@@ -9,12 +9,17 @@
  */
 package org.dpppt.android.sdk.internal.database;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import androidx.annotation.NonNull;
 
 import org.bouncycastle.util.test.Test;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.database.models.DeviceLocation;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -23,7 +28,7 @@ import java.io.OutputStream;
 
 class DatabaseOpenHelper extends SQLiteOpenHelper {
 
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 9;
 	private static final String DATABASE_NAME = "dp3t_sdk.db";
 
 	private static DatabaseOpenHelper instance;
@@ -46,7 +51,85 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		//empty for now
+		if (oldVersion < 2) {
+			// hashes were stored as base16 TEXT, convert them to 10 byte BLOBs
+			db.beginTransaction();
+			try {
+				migrateHashesToBlob(db, BroadcastBtLocHashes.TABLE_NAME, BroadcastBtLocHashes.HASH, BroadcastBtLocHashes.create());
+				migrateHashesToBlob(db, ReceivedBtLocHashes.TABLE_NAME, ReceivedBtLocHashes.HASH, ReceivedBtLocHashes.create());
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+		if (oldVersion < 3) {
+			db.execSQL(SyncedBatches.create());
+		}
+		if (oldVersion < 4) {
+			db.beginTransaction();
+			try {
+				db.execSQL(VisitedRegions.create());
+				addVisitedRegionsOfLocations(db);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+		if (oldVersion < 5) {
+			db.execSQL(ReceivedBtLocHashes.createTimeIndex());
+		}
+		if (oldVersion < 6) {
+			if (oldVersion >= 2) {
+				// the table recreated by the blob migration already has the column
+				db.execSQL(ReceivedBtLocHashes.addMatchedColumn());
+			}
+			db.execSQL(ReceivedBtLocHashes.createHashIndex());
+		}
+		if (oldVersion < 7 && oldVersion >= 3) {
+			// batches recorded so far were all matched
+			for (String statement : SyncedBatches.addCheckpointColumns()) {
+				db.execSQL(statement);
+			}
+		}
+		if (oldVersion < 8) {
+			db.execSQL(PendingUploads.create());
+		}
+		if (oldVersion < 9) {
+			db.execSQL(TestHashes.drop());
+		}
+	}
+
+	private void addVisitedRegionsOfLocations(SQLiteDatabase db) {
+		Cursor cursor = db.query(DeviceLocations.TABLE_NAME, DeviceLocations.PROJECTION, null, null, null, null,
+				DeviceLocations.ID);
+		int timeIndex = cursor.getColumnIndexOrThrow(DeviceLocations.TIME);
+		int latitudeIndex = cursor.getColumnIndexOrThrow(DeviceLocations.LATITUDE);
+		int longitudeIndex = cursor.getColumnIndexOrThrow(DeviceLocations.LONGITUDE);
+		while (cursor.moveToNext()) {
+			Database.addVisitedRegions(db, new DeviceLocation(cursor.getLong(timeIndex), cursor.getDouble(latitudeIndex),
+					cursor.getDouble(longitudeIndex)));
+		}
+		cursor.close();
+	}
+
+	private void migrateHashesToBlob(SQLiteDatabase db, String tableName, String hashColumn, String createQuery) {
+		String oldTableName = tableName + "_old";
+		db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + oldTableName);
+		db.execSQL(createQuery);
+		Cursor cursor = db.query(oldTableName, null, null, null, null, null, null);
+		ContentValues values = new ContentValues();
+		while (cursor.moveToNext()) {
+			values.clear();
+			DatabaseUtils.cursorRowToContentValues(cursor, values);
+			try {
+				values.put(hashColumn, BtLocHash.fromHex(values.getAsString(hashColumn)).toBytes());
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+			db.insert(tableName, null, values);
+		}
+		cursor.close();
+		db.execSQL("DROP TABLE " + oldTableName);
 	}
 
 	@Override
@@ -64,6 +147,9 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
 				BroadcastBtLocHashes.drop(),
 				ReceivedBtLocHashes.drop(),
 				TestHashes.drop(),
+				SyncedBatches.drop(),
+				VisitedRegions.drop(),
+				PendingUploads.drop(),
 				KnownCases.create(),
 				Handshakes.create(),
 				Contacts.create(),
@@ -71,7 +157,11 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
 				DeviceLocations.create(),
 				BroadcastBtLocHashes.create(),
 				ReceivedBtLocHashes.create(),
-				TestHashes.create()
+				ReceivedBtLocHashes.createTimeIndex(),
+				ReceivedBtLocHashes.createHashIndex(),
+				SyncedBatches.create(),
+				VisitedRegions.create(),
+				PendingUploads.create()
 		).run();
 	}
 
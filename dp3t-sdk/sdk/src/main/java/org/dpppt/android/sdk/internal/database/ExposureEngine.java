@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.dpppt.android.sdk.internal.AppConfigManager;
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+import org.dpppt.android.sdk.internal.crypto.ContactsFactory;
+import org.dpppt.android.sdk.internal.crypto.CryptoModule;
+import org.dpppt.android.sdk.internal.util.DayDate;
+
+/**
+ * Turns matched hashes into {@link ExposureDays}. Matched hashes are marked in {@link ReceivedBtLocHashes} and joined to
+ * their {@link Handshakes} by {@link ReceivedBtLocHashes#HANDSHAKE_ID}. Like {@link ContactsFactory}, the handshakes of an
+ * EphId are split into windows from its first handshake, a window counts if its mean attenuation is below the threshold,
+ * and a day is an exposure day if its windows reach the configured number. Everything runs as a few set based statements
+ * in one transaction, the matches are passed in through a temporary table.
+ */
+public class ExposureEngine {
+
+	private static final String MATCHED_HASHES_TABLE = "temp.matched_hashes";
+	private static final long DAY_LENGTH = TimeUnit.DAYS.toMillis(1);
+
+	private static final String CREATE_MATCHED_HASHES =
+			"CREATE TEMP TABLE IF NOT EXISTS matched_hashes (" + ReceivedBtLocHashes.HASH + " BLOB PRIMARY KEY NOT NULL)";
+
+	private static final String MARK_MATCHED_HASHES =
+			"UPDATE " + ReceivedBtLocHashes.TABLE_NAME + " SET " + ReceivedBtLocHashes.MATCHED + " = 1" +
+					" WHERE " + ReceivedBtLocHashes.MATCHED + " = 0 AND " + ReceivedBtLocHashes.HASH + " IN" +
+					" (SELECT " + ReceivedBtLocHashes.HASH + " FROM " + MATCHED_HASHES_TABLE + ")";
+
+	private static final String INSERT_EXPOSURE_DAYS =
+			"WITH matched AS (SELECT " + Handshakes.EPHID + ", " + Handshakes.TIMESTAMP + ", " +
+					Handshakes.TX_POWER_LEVEL + " - " + Handshakes.RSSI + " AS attenuation" +
+					" FROM " + Handshakes.TABLE_NAME + " WHERE " + Handshakes.ID + " IN" +
+					" (SELECT " + ReceivedBtLocHashes.HANDSHAKE_ID + " FROM " + ReceivedBtLocHashes.TABLE_NAME +
+					" WHERE " + ReceivedBtLocHashes.MATCHED + " = 1)), " +
+					"contact_start AS (SELECT " + Handshakes.EPHID + ", MIN(" + Handshakes.TIMESTAMP + ") AS start" +
+					" FROM matched GROUP BY " + Handshakes.EPHID + "), " +
+					"contact_windows AS (SELECT s.start AS start FROM matched m JOIN contact_start s" +
+					" ON m." + Handshakes.EPHID + " = s." + Handshakes.EPHID +
+					" WHERE m." + Handshakes.TIMESTAMP + " < s.start + ?1" +
+					" GROUP BY m." + Handshakes.EPHID + ", (m." + Handshakes.TIMESTAMP + " - s.start) / ?2" +
+					" HAVING AVG(m.attenuation) < ?3) " +
+					"INSERT OR IGNORE INTO " + ExposureDays.TABLE_NAME +
+					" (" + ExposureDays.EXPOSED_DATE + ", " + ExposureDays.REPORT_DATE + ")" +
+					" SELECT start - start % ?4 AS day, ?5 FROM contact_windows" +
+					" GROUP BY day HAVING COUNT(*) >= ?6 AND day >= ?7";
+
+	private final Context context;
+	private final DatabaseOpenHelper databaseOpenHelper;
+
+	public ExposureEngine(@NonNull Context context) {
+		this.context = context;
+		this.databaseOpenHelper = DatabaseOpenHelper.getInstance(context);
+	}
+
+	/**
+	 * Records matched hashes and adds the exposure days they result in, together with earlier matches.
+	 *
+	 * @return true if a new exposure day was added
+	 */
+	public boolean addMatchedHashes(@NonNull Collection<BtLocHash> matchedHashes) {
+		if (matchedHashes.isEmpty()) {
+			return false;
+		}
+		AppConfigManager appConfigManager = AppConfigManager.getInstance(context);
+		SQLiteDatabase db = databaseOpenHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.execSQL(CREATE_MATCHED_HASHES);
+			db.execSQL("DELETE FROM " + MATCHED_HASHES_TABLE);
+			SQLiteStatement insertHash = db.compileStatement(
+					"INSERT OR IGNORE INTO " + MATCHED_HASHES_TABLE + " (" + ReceivedBtLocHashes.HASH + ") VALUES (?)");
+			for (BtLocHash hash : matchedHashes) {
+				insertHash.bindBlob(1, hash.toBytes());
+				insertHash.executeInsert();
+			}
+			insertHash.close();
+			db.execSQL(MARK_MATCHED_HASHES);
+
+			SQLiteStatement insertExposureDays = db.compileStatement(INSERT_EXPOSURE_DAYS);
+			insertExposureDays.bindLong(1, CryptoModule.MILLISECONDS_PER_EPOCH);
+			insertExposureDays.bindLong(2, ContactsFactory.WINDOW_DURATION);
+			insertExposureDays.bindDouble(3, appConfigManager.getContactAttenuationThreshold());
+			insertExposureDays.bindLong(4, DAY_LENGTH);
+			insertExposureDays.bindLong(5, System.currentTimeMillis());
+			insertExposureDays.bindLong(6, appConfigManager.getNumberOfWindowsForExposure());
+			insertExposureDays.bindLong(7,
+					new DayDate().subtractDays(CryptoModule.NUMBER_OF_DAYS_TO_KEEP_EXPOSED_DAYS).getStartOfDayTimestamp());
+			int addedDays = insertExposureDays.executeUpdateDelete();
+			insertExposureDays.close();
+
+			db.execSQL("DELETE FROM " + MATCHED_HASHES_TABLE);
+			db.setTransactionSuccessful();
+			return addedDays > 0;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+}
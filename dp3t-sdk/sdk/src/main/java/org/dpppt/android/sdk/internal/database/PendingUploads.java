@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.database;
+
+interface PendingUploads {
+
+	String TABLE_NAME = "pending_uploads";
+
+	String ID = "id";
+	String SERVER = "server";
+	String TYPE = "type";
+	String PAYLOAD = "payload";
+	String CREATED_AT = "created_at";
+	// id of the first row of a pair of uploads that are only useful together, null for single uploads
+	String PAIR_ID = "pair_id";
+
+	String[] PROJECTION = {
+			ID,
+			SERVER,
+			TYPE,
+			PAYLOAD,
+			CREATED_AT
+	};
+
+	static String create() {
+		return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+				ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+				SERVER + " INTEGER NOT NULL, " +
+				TYPE + " TEXT NOT NULL, " +
+				PAYLOAD + " TEXT NOT NULL, " +
+				CREATED_AT + " INTEGER NOT NULL, " +
+				PAIR_ID + " INTEGER)";
+	}
+
+	static String drop() {
+		return "DROP TABLE IF EXISTS " + TABLE_NAME;
+	}
+
+}
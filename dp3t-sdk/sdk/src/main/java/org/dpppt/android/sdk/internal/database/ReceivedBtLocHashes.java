@@ -6,21 +6,44 @@ interface ReceivedBtLocHashes {
     String TIME = "time";
     String HASH = "hash";
     String HANDSHAKE_ID = "handshake_id";
+    String MATCHED = "matched";
+    String TIME_INDEX = TABLE_NAME + "_" + TIME;
+    String HASH_INDEX = TABLE_NAME + "_" + HASH;
     String[] PROJECTION = {
             ID,
             TIME,
             HASH,
-            HANDSHAKE_ID
+            HANDSHAKE_ID,
+            MATCHED
     };
     static String create() {
         return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
                 ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
                 TIME + " INTEGER NOT NULL, " +
-                HASH + " TEXT NOT NULL, " +
-                HANDSHAKE_ID + " INTEGER NOT NULL"+
+                HASH + " BLOB NOT NULL, " +
+                HANDSHAKE_ID + " INTEGER NOT NULL, "+
+                MATCHED + " INTEGER NOT NULL DEFAULT 0"+
                 ")";
     }
 
+    /**
+     * The time is the partition key of the local hashes, matching loads them by time range.
+     */
+    static String createTimeIndex() {
+        return "CREATE INDEX IF NOT EXISTS " + TIME_INDEX + " ON " + TABLE_NAME + " (" + TIME + ")";
+    }
+
+    /**
+     * Matched hashes are looked up by value to find their handshakes.
+     */
+    static String createHashIndex() {
+        return "CREATE INDEX IF NOT EXISTS " + HASH_INDEX + " ON " + TABLE_NAME + " (" + HASH + ")";
+    }
+
+    static String addMatchedColumn() {
+        return "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + MATCHED + " INTEGER NOT NULL DEFAULT 0";
+    }
+
     static String drop() {
         return "DROP TABLE IF EXISTS " + TABLE_NAME;
     }
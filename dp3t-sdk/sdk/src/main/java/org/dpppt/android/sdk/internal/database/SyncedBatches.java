@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.database;
+
+interface SyncedBatches {
+
+	String TABLE_NAME = "synced_batches";
+
+	String BATCH_RELEASE_TIME = "batch_release_time";
+	String NUMBER_OF_EXPOSEE_HASHES = "number_of_exposee_hashes";
+	String NUMBER_OF_MATCHES = "number_of_matches";
+	String MATCHED = "matched";
+	String CONTENT_HASH = "content_hash";
+
+	String[] PROJECTION = {
+			BATCH_RELEASE_TIME,
+			NUMBER_OF_EXPOSEE_HASHES,
+			NUMBER_OF_MATCHES,
+			MATCHED,
+			CONTENT_HASH
+	};
+
+	static String create() {
+		return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+				BATCH_RELEASE_TIME + " INTEGER PRIMARY KEY NOT NULL, " +
+				NUMBER_OF_EXPOSEE_HASHES + " INTEGER NOT NULL, " +
+				NUMBER_OF_MATCHES + " INTEGER NOT NULL, " +
+				MATCHED + " INTEGER NOT NULL DEFAULT 1, " +
+				CONTENT_HASH + " BLOB)";
+	}
+
+	static String[] addCheckpointColumns() {
+		return new String[] {
+				"ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + MATCHED + " INTEGER NOT NULL DEFAULT 1",
+				"ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + CONTENT_HASH + " BLOB"
+		};
+	}
+
+	static String drop() {
+		return "DROP TABLE IF EXISTS " + TABLE_NAME;
+	}
+
+}
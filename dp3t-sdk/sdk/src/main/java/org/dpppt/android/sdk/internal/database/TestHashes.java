@@ -1,26 +1,13 @@
 package org.dpppt.android.sdk.internal.database;
 
+/**
+ * Formerly held local hashes for matching benchmarks against the live backend, only kept to drop the table.
+ */
 interface TestHashes {
     String TABLE_NAME = "TestHashes";
-    String ID = "id";
-    String TIME = "time";
-    String HASH = "hash";
-    String[] PROJECTION = {
-            ID,
-            TIME,
-            HASH
-    };
-    static String create() {
-        return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
-                ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
-                TIME + " INTEGER NOT NULL, " +
-                HASH + " TEXT NOT NULL" +
-                ")";
-    }
 
     static String drop() {
         return "DROP TABLE IF EXISTS " + TABLE_NAME;
     }
 
 }
-
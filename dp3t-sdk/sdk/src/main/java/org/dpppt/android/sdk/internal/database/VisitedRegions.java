@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.database;
+
+interface VisitedRegions {
+
+	String TABLE_NAME = "visited_regions";
+
+	String REGION = "region";
+	String LAST_VISIT = "last_visit";
+
+	String[] PROJECTION = {
+			REGION,
+			LAST_VISIT
+	};
+
+	static String create() {
+		return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+				REGION + " TEXT PRIMARY KEY NOT NULL, " +
+				LAST_VISIT + " INTEGER NOT NULL)";
+	}
+
+	static String drop() {
+		return "DROP TABLE IF EXISTS " + TABLE_NAME;
+	}
+
+}
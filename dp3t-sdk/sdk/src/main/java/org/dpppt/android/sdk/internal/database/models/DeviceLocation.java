@@ -11,6 +11,11 @@ import java.util.Set;
 import com.github.davidmoten.geo.GeoHash;
 
 public class DeviceLocation {
+    /**
+     * Length of the geohash prefixes exposee hash buckets are sharded by, about 40 by 20 km.
+     */
+    public static final int REGION_HASH_LENGTH = 4;
+
     private int id;
     private long interval = 5*60*1000;
     private long time;
@@ -38,6 +43,17 @@ public class DeviceLocation {
     public ArrayList<String> getLocationHashes(){
         return getGeoHashes();
     }
+
+    /**
+     * @return the distinct {@link #REGION_HASH_LENGTH} prefixes of the location hashes
+     */
+    public Set<String> getRegions(){
+        Set<String> regions = new HashSet<>();
+        for (String geoHash : getGeoHashes()) {
+            regions.add(geoHash.substring(0, Math.min(REGION_HASH_LENGTH, geoHash.length())));
+        }
+        return regions;
+    }
     private ArrayList<String> getGeoHashes(){
         Set<String> geoHashesSet = new HashSet<>();
         for (double[] radius : radii) {
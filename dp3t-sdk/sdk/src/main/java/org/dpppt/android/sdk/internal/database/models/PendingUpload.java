@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.database.models;
+
+/**
+ * An upload to one of the report servers that was not accepted yet.
+ */
+public class PendingUpload {
+
+	private long id;
+	private int server;
+	private String type;
+	private String payload;
+	private long createdAt;
+
+	public PendingUpload(long id, int server, String type, String payload, long createdAt) {
+		this.id = id;
+		this.server = server;
+		this.type = type;
+		this.payload = payload;
+		this.createdAt = createdAt;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public int getServer() {
+		return server;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getPayload() {
+		return payload;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.database.models;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Checkpoint of a batch that is not committed yet. A batch is first recorded once its bucket is downloaded into the
+ * {@link org.dpppt.android.sdk.internal.matching.ExposeeHashStore} and again once it is matched.
+ */
+public class SyncedBatch {
+
+	private long batchReleaseTime;
+	private int numberOfExposeeHashes;
+	private int numberOfMatches;
+	private boolean matched;
+	private byte[] contentHash;
+
+	public SyncedBatch(long batchReleaseTime, int numberOfExposeeHashes, int numberOfMatches, boolean matched,
+			@Nullable byte[] contentHash) {
+		this.batchReleaseTime = batchReleaseTime;
+		this.numberOfExposeeHashes = numberOfExposeeHashes;
+		this.numberOfMatches = numberOfMatches;
+		this.matched = matched;
+		this.contentHash = contentHash;
+	}
+
+	public static SyncedBatch downloaded(long batchReleaseTime, int numberOfExposeeHashes, @Nullable byte[] contentHash) {
+		return new SyncedBatch(batchReleaseTime, numberOfExposeeHashes, 0, false, contentHash);
+	}
+
+	public static SyncedBatch matched(long batchReleaseTime, int numberOfExposeeHashes, int numberOfMatches,
+			@Nullable byte[] contentHash) {
+		return new SyncedBatch(batchReleaseTime, numberOfExposeeHashes, numberOfMatches, true, contentHash);
+	}
+
+	public long getBatchReleaseTime() {
+		return batchReleaseTime;
+	}
+
+	public int getNumberOfExposeeHashes() {
+		return numberOfExposeeHashes;
+	}
+
+	public int getNumberOfMatches() {
+		return numberOfMatches;
+	}
+
+	/**
+	 * @return false if the bucket was only downloaded
+	 */
+	public boolean isMatched() {
+		return matched;
+	}
+
+	/**
+	 * @return the SHA-256 of the downloaded bucket or null if it was not downloaded
+	 */
+	@Nullable
+	public byte[] getContentHash() {
+		return contentHash;
+	}
+
+}
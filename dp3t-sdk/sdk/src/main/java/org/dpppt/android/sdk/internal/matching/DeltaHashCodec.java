@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Compressed encoding of an ascending list of hashes. Every record is the unsigned varint delta of the leading 64 bits to
+ * the previous record, followed by the trailing 2 bytes big-endian. The first delta is relative to 0.
+ */
+public class DeltaHashCodec {
+
+	public static byte[] encode(@NonNull SortedHashIndex hashes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(hashes.size() * 9);
+		long previousHigh = 0;
+		for (int i = 0; i < hashes.size(); i++) {
+			long high = hashes.getHigh(i);
+			long delta = high - previousHigh;
+			while ((delta & ~0x7FL) != 0) {
+				out.write((int) ((delta & 0x7F) | 0x80));
+				delta >>>= 7;
+			}
+			out.write((int) delta);
+			short low = hashes.getLow(i);
+			out.write(low >>> 8);
+			out.write(low);
+			previousHigh = high;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Streams the compressed records from the input up to its current limit into the sink, in ascending order.
+	 *
+	 * @return the number of hashes read
+	 */
+	public static int read(@NonNull CodedInputStream input, @NonNull HashSink sink) throws IOException {
+		long high = 0;
+		int count = 0;
+		while (!input.isAtEnd()) {
+			high += input.readRawVarint64();
+			if (input.getBytesUntilLimit() < 2) {
+				throw new InvalidProtocolBufferException("Truncated hash record");
+			}
+			short low = (short) ((input.readRawByte() << 8) | (input.readRawByte() & 0xFF));
+			sink.accept(high, low);
+			count++;
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps the downloaded exposee hashes of the last days on disk, so that local hashes which are recorded after their bucket
+ * was matched can still be checked without downloading it again. Every batch is one {@link SortedHashFile} named after its
+ * batch release time. Files are written under a temporary name while the bucket is downloaded and only become visible to
+ * {@link #match} once complete. The time partitions of a bucket and metadata of its download are kept next to its file.
+ * <p>
+ * A batch whose bucket was skipped because its {@link HashBloomFilter} ruled out all local hashes keeps the filter instead,
+ * so that local hashes recorded later can still be checked against it. The bucket has to be fetched once the filter
+ * reports a positive for them, see {@link #getFilterPositives}.
+ * <p>
+ * If only the shards of some regions were downloaded, these regions are kept next to the file, so that the shards of
+ * regions visited later can be merged into it, see {@link #getBatchesMissingRegions}.
+ * <p>
+ * Disk budget: a batch takes 10 bytes per distinct exposee hash plus 0.4% for its block index, about 10 MB for a batch of
+ * one million hashes. The store holds the batches of {@link
+ * org.dpppt.android.sdk.internal.crypto.CryptoModule#NUMBER_OF_DAYS_TO_KEEP_DATA} days, so it needs 10 bytes for every
+ * hash published in that period, and while a bucket is downloaded the size of that bucket once more for its sorted runs.
+ * The filter kept for a skipped bucket takes about an eighth of the bucket at a false positive probability of 1%.
+ */
+public class ExposeeHashStore {
+
+	private static final String DIRECTORY = "exposee_hashes";
+	private static final String FILE_SUFFIX = ".tbl";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String PARTITIONS_SUFFIX = ".prt";
+	private static final String METADATA_SUFFIX = ".meta";
+	private static final String FILTER_SUFFIX = ".flt";
+	private static final String REGIONS_SUFFIX = ".rgn";
+
+	// stored instead of the number of regions if the whole bucket was downloaded
+	private static final int WHOLE_BUCKET = -1;
+
+	private final File directory;
+
+	public ExposeeHashStore(@NonNull Context context) {
+		this(new File(context.getFilesDir(), DIRECTORY));
+	}
+
+	public ExposeeHashStore(@NonNull File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Starts writing the hashes of a batch. The writer must be passed to {@link #add} or {@link #discard} afterwards.
+	 */
+	public SortedHashFile.Writer createWriter(long batchReleaseTime, int expectedSize) throws IOException {
+		synchronized (this) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+		}
+		return SortedHashFile.create(new File(directory, batchReleaseTime + TEMP_SUFFIX), expectedSize);
+	}
+
+	/**
+	 * Sorts and stores all hashes passed to the writer, replacing an earlier download of the same batch.
+	 *
+	 * @param partitionTimes the sorted times of the partitions the hashes were sent in or null
+	 */
+	public void add(long batchReleaseTime, @NonNull SortedHashFile.Writer writer, @Nullable long[] partitionTimes)
+			throws IOException {
+		add(batchReleaseTime, writer, partitionTimes, null);
+	}
+
+	/**
+	 * Like {@link #add(long, SortedHashFile.Writer, long[])}, but the hashes may only be the shards of some regions.
+	 *
+	 * @param regions the regions of all shards passed to the writer or null if it got the whole bucket
+	 */
+	public synchronized void add(long batchReleaseTime, @NonNull SortedHashFile.Writer writer,
+			@Nullable long[] partitionTimes, @Nullable Collection<String> regions) throws IOException {
+		try {
+			writer.finish();
+		} catch (IOException e) {
+			discard(writer);
+			throw e;
+		}
+		getMetadataFile(batchReleaseTime).delete();
+		// if the regions are not written below, the batch counts as having no shards and all of them are fetched again
+		File regionsFile = getRegionsFile(batchReleaseTime);
+		regionsFile.delete();
+		File partitionsFile = getPartitionsFile(batchReleaseTime);
+		if (partitionTimes != null) {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(partitionsFile)))) {
+				out.writeInt(partitionTimes.length);
+				for (long partitionTime : partitionTimes) {
+					out.writeLong(partitionTime);
+				}
+			} catch (IOException e) {
+				discard(writer);
+				throw e;
+			}
+		} else {
+			partitionsFile.delete();
+		}
+		File batchFile = getBatchFile(batchReleaseTime);
+		if (!writer.getFile().renameTo(batchFile)) {
+			discard(writer);
+			throw new IOException("Could not replace " + batchFile);
+		}
+		// the hashes themselves replace the filter of a skipped bucket
+		getFilterFile(batchReleaseTime).delete();
+
+		File tempFile = new File(directory, batchReleaseTime + REGIONS_SUFFIX + TEMP_SUFFIX);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			if (regions != null) {
+				out.writeInt(regions.size());
+				for (String region : regions) {
+					out.writeUTF(region);
+				}
+			} else {
+				out.writeInt(WHOLE_BUCKET);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		if (!tempFile.renameTo(regionsFile)) {
+			tempFile.delete();
+			throw new IOException("Could not replace " + regionsFile);
+		}
+	}
+
+	/**
+	 * Keeps the filter of a batch whose bucket was skipped.
+	 */
+	public synchronized void addFilter(long batchReleaseTime, @NonNull HashBloomFilter filter) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		File filterFile = getFilterFile(batchReleaseTime);
+		File tempFile = new File(directory, batchReleaseTime + FILTER_SUFFIX + TEMP_SUFFIX);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+			filter.writeTo(out);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		if (!tempFile.renameTo(filterFile)) {
+			tempFile.delete();
+			throw new IOException("Could not replace " + filterFile);
+		}
+	}
+
+	/**
+	 * @return true if the store keeps the filter of any batch whose bucket was skipped
+	 */
+	public synchronized boolean hasFilters() {
+		return getFilteredBatches().length > 0;
+	}
+
+	/**
+	 * @return the batches whose bucket was skipped, but whose filter reports a positive for any of the local hashes
+	 */
+	public synchronized List<Long> getFilterPositives(@NonNull SortedHashIndex localHashes) throws IOException {
+		List<Long> positives = new ArrayList<>();
+		if (localHashes.size() == 0) {
+			return positives;
+		}
+		for (long batchReleaseTime : getFilteredBatches()) {
+			HashBloomFilter filter;
+			try (InputStream in = new BufferedInputStream(new FileInputStream(getFilterFile(batchReleaseTime)))) {
+				filter = HashBloomFilter.read(in);
+			}
+			if (filter.countPositives(localHashes) > 0) {
+				positives.add(batchReleaseTime);
+			}
+		}
+		return positives;
+	}
+
+	public void discard(@NonNull SortedHashFile.Writer writer) {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			// the runs are deleted anyway
+		}
+		writer.getFile().delete();
+	}
+
+	public synchronized boolean contains(long batchReleaseTime) {
+		return getBatchFile(batchReleaseTime).isFile();
+	}
+
+	/**
+	 * @return the stored file of the batch, which the caller has to close, or null if it was not downloaded completely
+	 */
+	@Nullable
+	public synchronized SortedHashFile open(long batchReleaseTime) throws IOException {
+		File batchFile = getBatchFile(batchReleaseTime);
+		return batchFile.isFile() ? SortedHashFile.open(batchFile) : null;
+	}
+
+	/**
+	 * @return the partition times stored with the batch or null if its hashes were not partitioned
+	 */
+	@Nullable
+	public synchronized long[] getPartitionTimes(long batchReleaseTime) throws IOException {
+		File partitionsFile = getPartitionsFile(batchReleaseTime);
+		if (!partitionsFile.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(partitionsFile)))) {
+			long[] partitionTimes = new long[in.readInt()];
+			for (int i = 0; i < partitionTimes.length; i++) {
+				partitionTimes[i] = in.readLong();
+			}
+			return partitionTimes;
+		}
+	}
+
+	/**
+	 * @return the regions whose shards are stored for the batch or null if the whole bucket is stored
+	 */
+	@Nullable
+	public synchronized Set<String> getRegions(long batchReleaseTime) throws IOException {
+		Set<String> regions = new TreeSet<>();
+		File regionsFile = getRegionsFile(batchReleaseTime);
+		if (!regionsFile.isFile()) {
+			return regions;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(regionsFile)))) {
+			int count = in.readInt();
+			if (count == WHOLE_BUCKET) {
+				return null;
+			}
+			for (int i = 0; i < count; i++) {
+				regions.add(in.readUTF());
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * @return the stored batches of which only the shards of some regions were downloaded and that lack any of the given
+	 * regions
+	 */
+	public synchronized List<Long> getBatchesMissingRegions(@NonNull Collection<String> regions) throws IOException {
+		List<Long> batches = new ArrayList<>();
+		if (regions.isEmpty()) {
+			return batches;
+		}
+		for (long batchReleaseTime : getStoredBatches()) {
+			Set<String> storedRegions = getRegions(batchReleaseTime);
+			if (storedRegions != null && !storedRegions.containsAll(regions)) {
+				batches.add(batchReleaseTime);
+			}
+		}
+		return batches;
+	}
+
+	/**
+	 * Stores opaque metadata of the download of a stored batch, it is removed together with the batch.
+	 */
+	public synchronized void putMetadata(long batchReleaseTime, @NonNull byte[] metadata) throws IOException {
+		if (!contains(batchReleaseTime)) {
+			return;
+		}
+		try (FileOutputStream out = new FileOutputStream(getMetadataFile(batchReleaseTime))) {
+			out.write(metadata);
+		}
+	}
+
+	/**
+	 * @return the metadata of a stored batch or null if there is none
+	 */
+	@Nullable
+	public synchronized byte[] getMetadata(long batchReleaseTime) throws IOException {
+		File metadataFile = getMetadataFile(batchReleaseTime);
+		if (!contains(batchReleaseTime) || !metadataFile.isFile()) {
+			return null;
+		}
+		byte[] metadata = new byte[(int) metadataFile.length()];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(metadataFile))) {
+			in.readFully(metadata);
+		}
+		return metadata;
+	}
+
+	/**
+	 * Offers every local hash contained in any stored batch to the matcher. Only one batch is open at a time.
+	 *
+	 * @return the number of batches checked
+	 */
+	public synchronized int match(@NonNull HashMatcher matcher) throws IOException {
+		int batches = 0;
+		for (long batchReleaseTime : getStoredBatches()) {
+			try (SortedHashFile file = SortedHashFile.open(getBatchFile(batchReleaseTime))) {
+				file.probe(matcher);
+			}
+			batches++;
+		}
+		return batches;
+	}
+
+	/**
+	 * Deletes all batches released before the given time together with everything that does not belong to a stored batch,
+	 * like the temporary files of a download that was killed. Must not run while a batch is written.
+	 */
+	public synchronized void removeBatchesBefore(long batchReleaseTime) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (!belongsToBatchSince(file.getName(), batchReleaseTime)) {
+				file.delete();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private long[] getStoredBatches() {
+		String[] names = directory.list();
+		if (names == null) {
+			return new long[0];
+		}
+		long[] batches = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.endsWith(FILE_SUFFIX)) {
+				try {
+					long batchReleaseTime = Long.parseLong(name.substring(0, name.length() - FILE_SUFFIX.length()));
+					batches[count++] = batchReleaseTime;
+				} catch (NumberFormatException e) {
+					// not a batch file
+				}
+			}
+		}
+		long[] result = new long[count];
+		System.arraycopy(batches, 0, result, 0, count);
+		return result;
+	}
+
+	private boolean belongsToBatchSince(String name, long batchReleaseTime) {
+		int dot = name.indexOf('.');
+		if (dot <= 0) {
+			return false;
+		}
+		String suffix = name.substring(dot);
+		boolean filter = suffix.equals(FILTER_SUFFIX);
+		if (!filter && !suffix.equals(FILE_SUFFIX) && !suffix.equals(PARTITIONS_SUFFIX) &&
+				!suffix.equals(METADATA_SUFFIX) && !suffix.equals(REGIONS_SUFFIX)) {
+			return false;
+		}
+		try {
+			long storedBatch = Long.parseLong(name.substring(0, dot));
+			return storedBatch >= batchReleaseTime && (filter || getBatchFile(storedBatch).isFile());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private long[] getFilteredBatches() {
+		String[] names = directory.list();
+		if (names == null) {
+			return new long[0];
+		}
+		long[] batches = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.endsWith(FILTER_SUFFIX)) {
+				try {
+					long batchReleaseTime = Long.parseLong(name.substring(0, name.length() - FILTER_SUFFIX.length()));
+					if (!getBatchFile(batchReleaseTime).isFile()) {
+						batches[count++] = batchReleaseTime;
+					}
+				} catch (NumberFormatException e) {
+					// not a filter file
+				}
+			}
+		}
+		return Arrays.copyOf(batches, count);
+	}
+
+	private File getBatchFile(long batchReleaseTime) {
+		return new File(directory, batchReleaseTime + FILE_SUFFIX);
+	}
+
+	private File getPartitionsFile(long batchReleaseTime) {
+		return new File(directory, batchReleaseTime + PARTITIONS_SUFFIX);
+	}
+
+	private File getMetadataFile(long batchReleaseTime) {
+		return new File(directory, batchReleaseTime + METADATA_SUFFIX);
+	}
+
+	private File getFilterFile(long batchReleaseTime) {
+		return new File(directory, batchReleaseTime + FILTER_SUFFIX);
+	}
+
+	private File getRegionsFile(long batchReleaseTime) {
+		return new File(directory, batchReleaseTime + REGIONS_SUFFIX);
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Bloom filter over exposee hashes. Wire format (big-endian): int32 number of hash functions, int32 number of inserted
+ * hashes, int64 number of bits, followed by the bit array where bit i is {@code bits[i / 8] & (1 << (i % 8))}.
+ * <p>
+ * The hashes are already uniformly distributed, so the k bit positions are derived directly from them by double
+ * hashing: {@code (h1 + i * h2) mod numBits} with h1 the leading 64 bits and h2 mixed from all 80 bits.
+ */
+public class HashBloomFilter {
+
+	public static final int HEADER_LENGTH = 16;
+
+	private static final int MAX_HASH_FUNCTIONS = 32;
+	private static final long H2_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	private final ByteBuffer bits;
+	private final long numBits;
+	private final int numHashFunctions;
+	private final int count;
+
+	private HashBloomFilter(ByteBuffer bits, long numBits, int numHashFunctions, int count) {
+		this.bits = bits;
+		this.numBits = numBits;
+		this.numHashFunctions = numHashFunctions;
+		this.count = count;
+	}
+
+	/**
+	 * Reads a serialized filter, the bit array is kept in a direct (off-heap) buffer.
+	 */
+	public static HashBloomFilter read(@NonNull InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+		int numHashFunctions = dataIn.readInt();
+		int count = dataIn.readInt();
+		long numBits = dataIn.readLong();
+		checkHeader(numHashFunctions, count, numBits);
+
+		ByteBuffer bits = ByteBuffer.allocateDirect(byteLength(numBits));
+		ReadableByteChannel channel = Channels.newChannel(dataIn);
+		while (bits.hasRemaining()) {
+			if (channel.read(bits) < 0) {
+				throw new EOFException("Truncated filter, missing " + bits.remaining() + " bytes");
+			}
+		}
+		bits.flip();
+		return new HashBloomFilter(bits, numBits, numHashFunctions, count);
+	}
+
+	/**
+	 * Wraps a serialized filter without copying, e.g. a memory-mapped file.
+	 */
+	public static HashBloomFilter wrap(@NonNull ByteBuffer serialized) throws IOException {
+		ByteBuffer buffer = serialized.duplicate();
+		if (buffer.remaining() < HEADER_LENGTH) {
+			throw new EOFException("Truncated filter header");
+		}
+		int numHashFunctions = buffer.getInt();
+		int count = buffer.getInt();
+		long numBits = buffer.getLong();
+		checkHeader(numHashFunctions, count, numBits);
+		if (buffer.remaining() < byteLength(numBits)) {
+			throw new EOFException("Truncated filter, missing " + (byteLength(numBits) - buffer.remaining()) + " bytes");
+		}
+		ByteBuffer bits = buffer.slice();
+		bits.limit(byteLength(numBits));
+		return new HashBloomFilter(bits, numBits, numHashFunctions, count);
+	}
+
+	private static void checkHeader(int numHashFunctions, int count, long numBits) throws IOException {
+		if (numHashFunctions < 1 || numHashFunctions > MAX_HASH_FUNCTIONS || count < 0 || numBits < 1 ||
+				(numBits + 7) / 8 > Integer.MAX_VALUE) {
+			throw new IOException("Invalid filter header k=" + numHashFunctions + " n=" + count + " m=" + numBits);
+		}
+	}
+
+	private static int byteLength(long numBits) {
+		return (int) ((numBits + 7) / 8);
+	}
+
+	/**
+	 * Serializes the filter in the format {@link #read} expects.
+	 */
+	public void writeTo(@NonNull OutputStream out) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(numHashFunctions);
+		header.putInt(count);
+		header.putLong(numBits);
+		out.write(header.array());
+		ByteBuffer content = bits.duplicate();
+		content.rewind();
+		WritableByteChannel channel = Channels.newChannel(out);
+		while (content.hasRemaining()) {
+			channel.write(content);
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public boolean mightContain(long high, short low) {
+		long h2 = h2(high, low);
+		long combined = high;
+		for (int i = 0; i < numHashFunctions; i++) {
+			long index = (combined & Long.MAX_VALUE) % numBits;
+			if ((bits.get((int) (index >>> 3)) & (1 << (index & 7))) == 0) {
+				return false;
+			}
+			combined += h2;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of distinct local hashes the filter reports as possibly exposed
+	 */
+	public int countPositives(@NonNull SortedHashIndex localHashes) {
+		int positives = 0;
+		for (int i = 0; i < localHashes.size(); i++) {
+			long high = localHashes.getHigh(i);
+			short low = localHashes.getLow(i);
+			if (i > 0 && localHashes.getHigh(i - 1) == high && localHashes.getLow(i - 1) == low) {
+				continue;
+			}
+			if (mightContain(high, low)) {
+				positives++;
+			}
+		}
+		return positives;
+	}
+
+	private static long h2(long high, short low) {
+		return (Long.rotateLeft(high, 32) ^ (low & 0xFFFFL)) * H2_MULTIPLIER;
+	}
+
+	/**
+	 * Serializes a filter containing the given hashes, sized for the requested false positive probability.
+	 */
+	public static byte[] create(@NonNull SortedHashIndex hashes, double falsePositiveProbability) {
+		int n = Math.max(hashes.size(), 1);
+		long numBits = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2))));
+		int numHashFunctions = (int) Math.max(1, Math.min(MAX_HASH_FUNCTIONS, Math.round((double) numBits / n * Math.log(2))));
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + byteLength(numBits));
+		buffer.putInt(numHashFunctions);
+		buffer.putInt(hashes.size());
+		buffer.putLong(numBits);
+		for (int i = 0; i < hashes.size(); i++) {
+			long high = hashes.getHigh(i);
+			long h2 = h2(high, hashes.getLow(i));
+			long combined = high;
+			for (int k = 0; k < numHashFunctions; k++) {
+				long index = (combined & Long.MAX_VALUE) % numBits;
+				int position = HEADER_LENGTH + (int) (index >>> 3);
+				buffer.put(position, (byte) (buffer.get(position) | (1 << (index & 7))));
+				combined += h2;
+			}
+		}
+		return buffer.array();
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+
+/**
+ * Joins a stream of exposee hashes against a {@link SortedHashIndex} of local hashes, every hash is probed by binary
+ * search. Only the matched local positions are kept, so memory does not depend on the number of exposee hashes.
+ */
+public class HashMatcher implements HashSink {
+
+	private final SortedHashIndex localHashes;
+	private final BitSet matched;
+
+	private long timeFrom = Long.MIN_VALUE;
+	private long timeUntil = Long.MAX_VALUE;
+
+	public HashMatcher(@NonNull SortedHashIndex localHashes) {
+		this.localHashes = localHashes;
+		this.matched = new BitSet(localHashes.size());
+	}
+
+	public SortedHashIndex getLocalHashes() {
+		return localHashes;
+	}
+
+	/**
+	 * Restricts matches to local hashes recorded in the given window, entries outside are ignored.
+	 *
+	 * @param timeFrom timestamp inclusive
+	 * @param timeUntil timestamp exclusive
+	 */
+	public HashMatcher setTimeWindow(long timeFrom, long timeUntil) {
+		this.timeFrom = timeFrom;
+		this.timeUntil = timeUntil;
+		return this;
+	}
+
+	/**
+	 * @return false if no local hash recorded in the given interval can match because of the time window
+	 */
+	public boolean overlapsTimeWindow(long from, long until) {
+		return from < timeUntil && until > timeFrom;
+	}
+
+	/**
+	 * Probes a single exposee hash, in any order.
+	 *
+	 * @return true if the hash is contained in the local hashes
+	 */
+	public boolean offer(long high, short low) {
+		int index = localHashes.indexOf(high, low);
+		if (index < 0) {
+			return false;
+		}
+		return markEqualRange(index);
+	}
+
+	@Override
+	public void accept(long high, short low) {
+		offer(high, low);
+	}
+
+	public boolean offer(@NonNull BtLocHash hash) {
+		return offer(hash.getHigh(), hash.getLow());
+	}
+
+	private boolean markEqualRange(int firstIndex) {
+		long high = localHashes.getHigh(firstIndex);
+		short low = localHashes.getLow(firstIndex);
+		boolean marked = false;
+		int index = firstIndex;
+		while (index < localHashes.size() && localHashes.getHigh(index) == high && localHashes.getLow(index) == low) {
+			long time = localHashes.getTime(index);
+			if (time >= timeFrom && time < timeUntil) {
+				matched.set(index);
+				marked = true;
+			}
+			index++;
+		}
+		return marked;
+	}
+
+	/**
+	 * @return the number of local hash entries (including duplicates) that matched any exposee hash
+	 */
+	public int getMatchCount() {
+		return matched.cardinality();
+	}
+
+	public List<BtLocHash> getMatchedHashes() {
+		List<BtLocHash> result = new ArrayList<>();
+		for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+			result.add(localHashes.get(i));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+
+/**
+ * Reader for hashes packed as consecutive big-endian {@link BtLocHash#HASH_LENGTH} byte records.
+ */
+public class PackedHashes {
+
+	/**
+	 * Streams packed hashes from the input up to its current limit into the sink.
+	 *
+	 * @return the number of hashes read
+	 */
+	public static int read(@NonNull CodedInputStream input, @NonNull HashSink sink) throws IOException {
+		int count = 0;
+		while (!input.isAtEnd()) {
+			if (input.getBytesUntilLimit() < BtLocHash.HASH_LENGTH) {
+				throw new InvalidProtocolBufferException("Packed hashes length is not a multiple of " + BtLocHash.HASH_LENGTH);
+			}
+			long high = Long.reverseBytes(input.readRawLittleEndian64());
+			short low = (short) ((input.readRawByte() << 8) | (input.readRawByte() & 0xFF));
+			sink.accept(high, low);
+			count++;
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+
+/**
+ * Set of hashes in a file, stored as distinct {@link BtLocHash#HASH_LENGTH} byte records in ascending order, so a batch
+ * takes 10 bytes per hash on disk. Every {@link #BLOCK_LENGTH} records the first record of the block is repeated in a
+ * fence index at the end of the file. Only the fences are kept in memory while the file is open, a lookup binary searches
+ * the fences and then reads a single block through the file channel, no mapping is held.
+ * <p>
+ * File format (big-endian): int32 magic, int32 number of records, int32 records per block, followed by the records and the
+ * fences.
+ */
+public class SortedHashFile implements Closeable {
+
+	public static final int HEADER_LENGTH = 12;
+	public static final int BLOCK_LENGTH = 256;
+
+	/**
+	 * Number of hashes a {@link Writer} sorts in memory before it spills them to disk as one sorted run.
+	 */
+	static final int RUN_LENGTH = 1 << 16;
+
+	private static final int MAGIC = 0x44505453;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final int size;
+	private final long[] fenceHighs;
+	private final short[] fenceLows;
+	private final ByteBuffer block = ByteBuffer.allocate(BLOCK_LENGTH * BtLocHash.HASH_LENGTH);
+	private int loadedBlock = -1;
+
+	private SortedHashFile(File file, RandomAccessFile randomAccessFile, int size, long[] fenceHighs, short[] fenceLows) {
+		this.file = file;
+		this.randomAccessFile = randomAccessFile;
+		this.size = size;
+		this.fenceHighs = fenceHighs;
+		this.fenceLows = fenceLows;
+	}
+
+	/**
+	 * Starts writing a new file, sized for expectedSize hashes. The hashes may arrive in any order and with duplicates.
+	 */
+	public static Writer create(@NonNull File file, int expectedSize) {
+		return new Writer(file, expectedSize);
+	}
+
+	/**
+	 * Opens a file written by {@link Writer#finish()}. The header is checked against the file length, so probing a corrupt
+	 * file fails instead of reading past its records.
+	 */
+	public static SortedHashFile open(@NonNull File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			long length = randomAccessFile.length();
+			if (length < HEADER_LENGTH) {
+				throw new IOException("Truncated hash file " + file);
+			}
+			int magic = randomAccessFile.readInt();
+			int size = randomAccessFile.readInt();
+			int blockLength = randomAccessFile.readInt();
+			if (magic != MAGIC || size < 0 || blockLength != BLOCK_LENGTH ||
+					length != HEADER_LENGTH + (long) (size + fenceCount(size)) * BtLocHash.HASH_LENGTH) {
+				throw new IOException("Invalid hash file " + file);
+			}
+			byte[] fences = new byte[fenceCount(size) * BtLocHash.HASH_LENGTH];
+			randomAccessFile.seek(HEADER_LENGTH + (long) size * BtLocHash.HASH_LENGTH);
+			randomAccessFile.readFully(fences);
+			ByteBuffer fenceBuffer = ByteBuffer.wrap(fences);
+			long[] fenceHighs = new long[fenceCount(size)];
+			short[] fenceLows = new short[fenceHighs.length];
+			for (int i = 0; i < fenceHighs.length; i++) {
+				fenceHighs[i] = fenceBuffer.getLong();
+				fenceLows[i] = fenceBuffer.getShort();
+			}
+			return new SortedHashFile(file, randomAccessFile, size, fenceHighs, fenceLows);
+		} catch (IOException | RuntimeException e) {
+			randomAccessFile.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of distinct hashes
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(long high, short low) throws IOException {
+		// the last block whose first hash is not greater than the searched one
+		int lo = 0;
+		int hi = fenceHighs.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BtLocHash.compare(fenceHighs[mid], fenceLows[mid], high, low) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		if (lo == 0) {
+			return false;
+		}
+		int blockSize = loadBlock(lo - 1);
+		lo = 0;
+		hi = blockSize;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int position = mid * BtLocHash.HASH_LENGTH;
+			int cmp = BtLocHash.compare(block.getLong(position), block.getShort(position + 8), high, low);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Offers every distinct local hash that is contained in the file to the matcher.
+	 *
+	 * @return the number of distinct local hashes found
+	 */
+	public int probe(@NonNull HashMatcher matcher) throws IOException {
+		return probe(matcher, matcher.getLocalHashes());
+	}
+
+	/**
+	 * Like {@link #probe(HashMatcher)}, but only probes the local hashes of the given time partitions the file was
+	 * built from. Partitions outside the time window of the matcher are skipped.
+	 *
+	 * @param partitionTimes the start times of the partitions of the file
+	 */
+	public int probe(@NonNull HashMatcher matcher, @NonNull TimePartitionedHashIndex localPartitions,
+			@NonNull long[] partitionTimes) throws IOException {
+		int found = 0;
+		for (long partitionTime : partitionTimes) {
+			if (!matcher.overlapsTimeWindow(partitionTime, partitionTime + TimePartitionedHashIndex.PARTITION_LENGTH)) {
+				continue;
+			}
+			SortedHashIndex partition = localPartitions.getPartition(partitionTime);
+			if (partition != null) {
+				found += probe(matcher, partition);
+			}
+		}
+		return found;
+	}
+
+	private int probe(HashMatcher matcher, SortedHashIndex localHashes) throws IOException {
+		int found = 0;
+		for (int i = 0; i < localHashes.size(); i++) {
+			long high = localHashes.getHigh(i);
+			short low = localHashes.getLow(i);
+			if (i > 0 && localHashes.getHigh(i - 1) == high && localHashes.getLow(i - 1) == low) {
+				continue;
+			}
+			if (contains(high, low)) {
+				matcher.offer(high, low);
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Passes every hash of the file to the sink in ascending order.
+	 */
+	public void copyTo(@NonNull HashSink sink) throws IOException {
+		for (int index = 0; index < fenceHighs.length; index++) {
+			int blockSize = loadBlock(index);
+			for (int i = 0; i < blockSize; i++) {
+				int position = i * BtLocHash.HASH_LENGTH;
+				sink.accept(block.getLong(position), block.getShort(position + 8));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		randomAccessFile.close();
+	}
+
+	/**
+	 * Reads the block into the block buffer unless it is loaded already. Local hashes are probed in ascending order, so
+	 * consecutive lookups that fall into the same block read it only once.
+	 *
+	 * @return the number of records in the block
+	 */
+	private int loadBlock(int index) throws IOException {
+		int blockSize = Math.min(BLOCK_LENGTH, size - index * BLOCK_LENGTH);
+		if (loadedBlock == index) {
+			return blockSize;
+		}
+		loadedBlock = -1;
+		FileChannel channel = randomAccessFile.getChannel();
+		long position = HEADER_LENGTH + (long) index * BLOCK_LENGTH * BtLocHash.HASH_LENGTH;
+		block.clear();
+		block.limit(blockSize * BtLocHash.HASH_LENGTH);
+		while (block.hasRemaining()) {
+			if (channel.read(block, position + block.position()) < 0) {
+				throw new EOFException("Truncated hash file " + file);
+			}
+		}
+		loadedBlock = index;
+		return blockSize;
+	}
+
+	private static int fenceCount(int size) {
+		return (int) (((long) size + BLOCK_LENGTH - 1) / BLOCK_LENGTH);
+	}
+
+	/**
+	 * Collects hashes in any order and writes them as a {@link SortedHashFile}. Up to {@link #RUN_LENGTH} hashes are
+	 * sorted on the heap, more are spilled to a temporary file in sorted runs that {@link #finish()} merges. The temporary
+	 * file is as large as the finished one, so writing a batch needs twice its size on disk for a moment.
+	 */
+	public static class Writer implements HashSink, Closeable {
+
+		private final File file;
+		private final File runsFile;
+		private final int expectedSize;
+		private final List<Integer> runSizes = new ArrayList<>();
+		private SortedHashIndex.Builder run;
+		private int runSize;
+		private DataOutputStream runsOut;
+
+		// state of the output while finishing
+		private int count;
+		private long lastHigh;
+		private short lastLow;
+		private long[] fenceHighs = new long[16];
+		private short[] fenceLows = new short[16];
+
+		private Writer(File file, int expectedSize) {
+			this.file = file;
+			this.runsFile = new File(file.getPath() + ".runs");
+			this.expectedSize = Math.max(expectedSize, 0);
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		@Override
+		public void accept(long high, short low) {
+			if (run == null) {
+				run = new SortedHashIndex.Builder(Math.min(expectedSize, RUN_LENGTH));
+			}
+			run.add(high, low, 0);
+			runSize++;
+			if (runSize == RUN_LENGTH) {
+				try {
+					spillRun();
+				} catch (IOException e) {
+					throw new IllegalStateException("Could not write " + runsFile, e);
+				}
+			}
+		}
+
+		/**
+		 * Sorts and writes all hashes to the file and flushes it to disk.
+		 */
+		public void finish() throws IOException {
+			count = 0;
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				out.writeInt(MAGIC);
+				// the number of records is only known once duplicates are dropped
+				out.writeInt(0);
+				out.writeInt(BLOCK_LENGTH);
+				if (runSizes.isEmpty()) {
+					SortedHashIndex sorted = run != null ? run.build() : new SortedHashIndex.Builder(0).build();
+					for (int i = 0; i < sorted.size(); i++) {
+						write(out, sorted.getHigh(i), sorted.getLow(i));
+					}
+				} else {
+					if (runSize > 0) {
+						spillRun();
+					}
+					runsOut.close();
+					runsOut = null;
+					mergeRuns(out);
+				}
+				for (int i = 0; i < fenceCount(count); i++) {
+					out.writeLong(fenceHighs[i]);
+					out.writeShort(fenceLows[i]);
+				}
+			}
+			run = null;
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+				randomAccessFile.seek(4);
+				randomAccessFile.writeInt(count);
+				randomAccessFile.getFD().sync();
+			}
+			runsFile.delete();
+		}
+
+		/**
+		 * Deletes the temporary runs, the file itself is left to the caller.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (runsOut != null) {
+				runsOut.close();
+				runsOut = null;
+			}
+			run = null;
+			runsFile.delete();
+		}
+
+		private void spillRun() throws IOException {
+			if (runsOut == null) {
+				runsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runsFile)));
+			}
+			SortedHashIndex sorted = run.build();
+			int written = 0;
+			for (int i = 0; i < sorted.size(); i++) {
+				long high = sorted.getHigh(i);
+				short low = sorted.getLow(i);
+				if (i > 0 && sorted.getHigh(i - 1) == high && sorted.getLow(i - 1) == low) {
+					continue;
+				}
+				runsOut.writeLong(high);
+				runsOut.writeShort(low);
+				written++;
+			}
+			runSizes.add(written);
+			run = null;
+			runSize = 0;
+		}
+
+		private void mergeRuns(DataOutputStream out) throws IOException {
+			RunReader[] readers = new RunReader[runSizes.size()];
+			try {
+				long offset = 0;
+				for (int i = 0; i < readers.length; i++) {
+					readers[i] = new RunReader(runsFile, offset, runSizes.get(i));
+					offset += (long) runSizes.get(i) * BtLocHash.HASH_LENGTH;
+				}
+				while (true) {
+					RunReader min = null;
+					for (RunReader reader : readers) {
+						if (reader.hasCurrent() && (min == null ||
+								BtLocHash.compare(reader.high, reader.low, min.high, min.low) < 0)) {
+							min = reader;
+						}
+					}
+					if (min == null) {
+						return;
+					}
+					write(out, min.high, min.low);
+					min.next();
+				}
+			} finally {
+				for (RunReader reader : readers) {
+					if (reader != null) {
+						reader.close();
+					}
+				}
+			}
+		}
+
+		private void write(DataOutputStream out, long high, short low) throws IOException {
+			if (count > 0 && high == lastHigh && low == lastLow) {
+				return;
+			}
+			if (count % BLOCK_LENGTH == 0) {
+				int fence = count / BLOCK_LENGTH;
+				if (fence == fenceHighs.length) {
+					fenceHighs = Arrays.copyOf(fenceHighs, fence * 2);
+					fenceLows = Arrays.copyOf(fenceLows, fence * 2);
+				}
+				fenceHighs[fence] = high;
+				fenceLows[fence] = low;
+			}
+			out.writeLong(high);
+			out.writeShort(low);
+			lastHigh = high;
+			lastLow = low;
+			count++;
+		}
+
+	}
+
+	private static class RunReader implements Closeable {
+
+		private final DataInputStream in;
+		private int remaining;
+		private long high;
+		private short low;
+		private boolean current;
+
+		RunReader(File runsFile, long offset, int size) throws IOException {
+			FileInputStream fileIn = new FileInputStream(runsFile);
+			fileIn.getChannel().position(offset);
+			in = new DataInputStream(new BufferedInputStream(fileIn));
+			remaining = size;
+			try {
+				next();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		boolean hasCurrent() {
+			return current;
+		}
+
+		void next() throws IOException {
+			current = remaining > 0;
+			if (current) {
+				high = in.readLong();
+				low = in.readShort();
+				remaining--;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
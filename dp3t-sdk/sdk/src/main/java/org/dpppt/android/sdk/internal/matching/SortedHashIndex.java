@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.dpppt.android.sdk.internal.crypto.BtLocHash;
+
+/**
+ * Sorted, primitive backed set of {@link BtLocHash} values, each with the time it was recorded. Duplicates are kept, equal
+ * entries are adjacent.
+ */
+public class SortedHashIndex {
+
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	private final long[] highs;
+	private final short[] lows;
+	private final long[] times;
+	private final int size;
+
+	private SortedHashIndex(long[] highs, short[] lows, long[] times, int size) {
+		this.highs = highs;
+		this.lows = lows;
+		this.times = times;
+		this.size = size;
+	}
+
+	public static SortedHashIndex fromHashes(@NonNull Collection<BtLocHash> hashes) {
+		Builder builder = new Builder(hashes.size());
+		for (BtLocHash hash : hashes) {
+			builder.add(hash.getHigh(), hash.getLow(), 0);
+		}
+		return builder.build();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getHigh(int index) {
+		return highs[index];
+	}
+
+	public short getLow(int index) {
+		return lows[index];
+	}
+
+	public long getTime(int index) {
+		return times[index];
+	}
+
+	public BtLocHash get(int index) {
+		return new BtLocHash(highs[index], lows[index]);
+	}
+
+	/**
+	 * @return the index of the first entry equal to the given hash or -1 if there is none
+	 */
+	public int indexOf(long high, short low) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BtLocHash.compare(highs[mid], lows[mid], high, low) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		if (lo < size && highs[lo] == high && lows[lo] == low) {
+			return lo;
+		}
+		return -1;
+	}
+
+	public boolean contains(long high, short low) {
+		return indexOf(high, low) >= 0;
+	}
+
+	public static class Builder {
+
+		private long[] highs;
+		private short[] lows;
+		private long[] times;
+		private int size;
+
+		public Builder(int expectedSize) {
+			int capacity = Math.max(expectedSize, 16);
+			highs = new long[capacity];
+			lows = new short[capacity];
+			times = new long[capacity];
+		}
+
+		public Builder add(long high, short low, long time) {
+			if (size == highs.length) {
+				int capacity = size + (size >> 1);
+				highs = Arrays.copyOf(highs, capacity);
+				lows = Arrays.copyOf(lows, capacity);
+				times = Arrays.copyOf(times, capacity);
+			}
+			highs[size] = high;
+			lows[size] = low;
+			times[size] = time;
+			size++;
+			return this;
+		}
+
+		public SortedHashIndex build() {
+			new Sorter(highs, lows, times).sort(0, size - 1);
+			return new SortedHashIndex(highs, lows, times, size);
+		}
+
+	}
+
+	private static class Sorter {
+
+		private final long[] highs;
+		private final short[] lows;
+		private final long[] times;
+
+		Sorter(long[] highs, short[] lows, long[] times) {
+			this.highs = highs;
+			this.lows = lows;
+			this.times = times;
+		}
+
+		void sort(int left, int right) {
+			while (right - left >= INSERTION_SORT_THRESHOLD) {
+				int mid = (left + right) >>> 1;
+				// median of three as pivot
+				if (compare(mid, left) < 0) swap(mid, left);
+				if (compare(right, left) < 0) swap(right, left);
+				if (compare(right, mid) < 0) swap(right, mid);
+				long pivotHigh = highs[mid];
+				short pivotLow = lows[mid];
+				// three way partition, local hashes contain many duplicates
+				int lt = left;
+				int gt = right;
+				int i = left;
+				while (i <= gt) {
+					int cmp = BtLocHash.compare(highs[i], lows[i], pivotHigh, pivotLow);
+					if (cmp < 0) {
+						swap(lt++, i++);
+					} else if (cmp > 0) {
+						swap(i, gt--);
+					} else {
+						i++;
+					}
+				}
+				// recurse into the smaller half to bound the stack depth
+				if (lt - left < right - gt) {
+					sort(left, lt - 1);
+					left = gt + 1;
+				} else {
+					sort(gt + 1, right);
+					right = lt - 1;
+				}
+			}
+			for (int i = left + 1; i <= right; i++) {
+				int j = i;
+				while (j > left && compare(j - 1, j) > 0) {
+					swap(j - 1, j);
+					j--;
+				}
+			}
+		}
+
+		private int compare(int i, int j) {
+			return BtLocHash.compare(highs[i], lows[i], highs[j], lows[j]);
+		}
+
+		private void swap(int i, int j) {
+			long high = highs[i];
+			highs[i] = highs[j];
+			highs[j] = high;
+			short low = lows[i];
+			lows[i] = lows[j];
+			lows[j] = low;
+			long time = times[i];
+			times[i] = times[j];
+			times[j] = time;
+		}
+
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.android.sdk.internal.matching;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local hashes split into partitions by the rounded timestamp they were computed for. A hash binds the rounded timestamp of
+ * its {@link org.dpppt.android.sdk.internal.database.models.DeviceLocation}, so it can only equal exposee hashes of the
+ * same partition.
+ */
+public class TimePartitionedHashIndex {
+
+	/**
+	 * Same interval as {@link org.dpppt.android.sdk.internal.database.models.DeviceLocation#getRoundedTimestamp()}.
+	 */
+	public static final long PARTITION_LENGTH = TimeUnit.MINUTES.toMillis(5);
+
+	private final long[] partitionTimes;
+	private final SortedHashIndex[] partitions;
+
+	private TimePartitionedHashIndex(long[] partitionTimes, SortedHashIndex[] partitions) {
+		this.partitionTimes = partitionTimes;
+		this.partitions = partitions;
+	}
+
+	public static TimePartitionedHashIndex fromIndex(@NonNull SortedHashIndex hashes) {
+		TreeMap<Long, SortedHashIndex.Builder> builders = new TreeMap<>();
+		for (int i = 0; i < hashes.size(); i++) {
+			long partitionTime = getPartitionTime(hashes.getTime(i));
+			SortedHashIndex.Builder builder = builders.get(partitionTime);
+			if (builder == null) {
+				builder = new SortedHashIndex.Builder(0);
+				builders.put(partitionTime, builder);
+			}
+			builder.add(hashes.getHigh(i), hashes.getLow(i), hashes.getTime(i));
+		}
+		long[] partitionTimes = new long[builders.size()];
+		SortedHashIndex[] partitions = new SortedHashIndex[builders.size()];
+		int index = 0;
+		for (Map.Entry<Long, SortedHashIndex.Builder> entry : builders.entrySet()) {
+			partitionTimes[index] = entry.getKey();
+			partitions[index] = entry.getValue().build();
+			index++;
+		}
+		return new TimePartitionedHashIndex(partitionTimes, partitions);
+	}
+
+	public static long getPartitionTime(long time) {
+		return time - Math.floorMod(time, PARTITION_LENGTH);
+	}
+
+	public int getPartitionCount() {
+		return partitions.length;
+	}
+
+	/**
+	 * @return the hashes of the partition starting at the given time or null if there are none
+	 */
+	@Nullable
+	public SortedHashIndex getPartition(long partitionTime) {
+		int index = Arrays.binarySearch(partitionTimes, partitionTime);
+		return index >= 0 ? partitions[index] : null;
+	}
+
+}